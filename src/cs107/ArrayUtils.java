@@ -1,5 +1,8 @@
 package cs107;
 
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteOrder;
 import java.util.ArrayList;
 // import java.util.Arrays;
 
@@ -17,6 +20,12 @@ public final class ArrayUtils {
      */
     private ArrayUtils(){}
 
+    /**
+     * View of a byte array as big endian integers, at any (unaligned) offset
+     */
+    private static final VarHandle INT_BE =
+            MethodHandles.byteArrayViewVarHandle(int[].class, ByteOrder.BIG_ENDIAN);
+
     // ==================================================================================
     // =========================== ARRAY EQUALITY METHODS ===============================
     // ==================================================================================
@@ -118,20 +127,7 @@ public final class ArrayUtils {
         assert bytes != null : "The array is null ";
         assert (bytes.length == 4) : "The array does not contain 4 elements";
 
-        int[] masks = new int[]{0xFF000000, 0xFF0000, 0xFF00, 0xFF};
-        int shift = 24;
-        int composite = 0;
-
-        for (int i = 0; i < 4; i++) {
-
-            int shifted = bytes[i] << shift;
-            int masked = shifted & masks[i];
-            composite |= masked;
-
-            shift -= 8;
-        }
-
-        return composite;
+        return readInt(bytes, 0);
     }
 
     /**
@@ -144,14 +140,34 @@ public final class ArrayUtils {
      */
     public static byte[] fromInt(int value){
         byte[] output = new byte[4];
-        int shift = 24;
+        writeInt(output, 0, value);
+        return output;
+    }
 
-        for (int i = 0; i < 4; i++) {
-            output[i] = (byte) (value >> shift);
-            shift -= 8;
-        }
+    /**
+     * Read the "Big Endian" integer stored at the given offset of an array, with a single load
+     * @param bytes (byte[]) - Array to read from
+     * @param offset (int) - Index of the first (most significant) byte
+     * @return (int) - The integer
+     * @throws AssertionError if the array is null or doesn't contain 4 bytes from the offset
+     */
+    public static int readInt(byte[] bytes, int offset) {
+        assert bytes != null : "The array is null";
+        assert offset >= 0 && offset + 4 <= bytes.length : "The array does not contain 4 bytes from the offset";
+        return (int) INT_BE.get(bytes, offset);
+    }
 
-        return output;
+    /**
+     * Write an integer at the given offset of an array, in "Big Endian", with a single store
+     * @param bytes (byte[]) - Array to write to
+     * @param offset (int) - Index of the first (most significant) byte
+     * @param value (int) - The integer
+     * @throws AssertionError if the array is null or doesn't contain 4 bytes from the offset
+     */
+    public static void writeInt(byte[] bytes, int offset, int value) {
+        assert bytes != null : "The array is null";
+        assert offset >= 0 && offset + 4 <= bytes.length : "The array does not contain 4 bytes from the offset";
+        INT_BE.set(bytes, offset, value);
     }
 
     // ==================================================================================
@@ -254,6 +270,28 @@ public final class ArrayUtils {
     }
 
 
+    // ==================================================================================
+    // ============================== ARRAY INSPECTION METHODS ==========================
+    // ==================================================================================
+
+    /**
+     * Check if every pixel of an image is fully opaque (alpha = 255).
+     * Each row is reduced with a bitwise AND, a branch-free loop the JIT vectorizes,
+     * and the scan stops at the first row holding a transparent pixel.
+     * @param input (int[][]) - ARGB image data
+     * @return (boolean) - True if the alpha channel of every pixel is 255
+     * @throws AssertionError if the input is null
+     */
+    public static boolean isOpaque(int[][] input) {
+        assert input != null : "The input is null";
+        for (int[] line : input) {
+            int alpha = 0xFF000000;
+            for (int pixel : line) alpha &= pixel;
+            if (alpha != 0xFF000000) return false;
+        }
+        return true;
+    }
+
     // ==================================================================================
     // ============================== ARRAY FORMATTING METHODS ==========================
     // ==================================================================================
@@ -0,0 +1,164 @@
+package cs107;
+
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.Arrays;
+
+/**
+ * Micro benchmark of the payload reads of the "Quite Ok Image" decoder. Both measured decoders run
+ * the same loop straight to ARGB data and only differ in how the payloads of the QOI_OP_RGB and
+ * QOI_OP_RGBA chunks are read: byte by byte, as the original decoder copied them, or with a single
+ * load of {@link ArrayUtils#readInt(byte[], int)} (a {@code VarHandle}), as {@link ReusableQOIDecoder} does.
+ * @version 1.0
+ * @since 1.0
+ */
+public final class Benchmark {
+
+    /**
+     * Minimal number of pixels decoded before the measure, to let the JIT compile both paths
+     */
+    private static final long WARMUP_PIXELS = 10_000_000L;
+
+    /**
+     * Minimal number of decoded pixels of a measure, so that tiny images still take some time
+     */
+    private static final long MEASURED_PIXELS = 20_000_000L;
+
+    // ============================================================================================
+    // ==================================== BENCHMARK =============================================
+    // ============================================================================================
+
+    /**
+     * Measure both payload reads on "Quite Ok Image" files (by default "references/random.qoi",
+     * whose chunks are almost all QOI_OP_RGBA) and print the result in the Terminal.
+     * Run it without {@code -ea}: the asserts of {@link ArrayUtils#readInt(byte[], int)} are measured otherwise
+     * @param args (String[]) - Paths of the files to decode, empty for the default one
+     */
+    public static void main(String[] args){
+        String[] paths = args.length == 0 ? new String[]{"references/random.qoi"} : args;
+
+        System.out.println("=================================== QOI DECODER BENCHMARK ==================================");
+        System.out.println("== File                          |  Pixels  | Bytes (ns/px)  | Load (ns/px)   | Speedup");
+        for (String path : paths) {
+            byte[] content = Helper.read(path);
+            int[] header = QOIDecoder.decodeHeader(ArrayUtils.extract(content, 0, QOISpecification.HEADER_SIZE));
+            int width = header[0];
+            int height = header[1];
+            long pixels = (long) width * height;
+            int rounds = (int) Math.max(2, MEASURED_PIXELS / Math.max(1, pixels));
+            int warmup = (int) Math.max(2, WARMUP_PIXELS / Math.max(1, pixels));
+
+            int[][] expected = QOIDecoder.decodeQoiFile(content).data();
+            check(decode(content, width, height, false), expected, path);
+            check(decode(content, width, height, true), expected, path);
+            for (int i = 0; i < warmup; i++) {
+                decode(content, width, height, false);
+                decode(content, width, height, true);
+            }
+            double bytesTime = measure(() -> decode(content, width, height, false), rounds) / pixels;
+            double loadTime = measure(() -> decode(content, width, height, true), rounds) / pixels;
+            System.out.printf("== %-30s| %8d | %14.2f | %14.2f | x%.2f%n", path, pixels,
+                    bytesTime, loadTime, bytesTime / loadTime);
+        }
+        System.out.println("============================================================================================");
+    }
+
+    // ============================================================================================
+    // ===================================== UTILITIES ============================================
+    // ============================================================================================
+
+    /**
+     * Decode the chunks of a file straight to ARGB data
+     * @param content (byte[]) - Content of the file to decode
+     * @param width (int) - Width of the image
+     * @param height (int) - Height of the image
+     * @param load (boolean) - true to read the payloads with a single load, false to read them byte by byte
+     * @return (int[][]) - ARGB image data
+     */
+    private static int[][] decode(byte[] content, int width, int height, boolean load){
+        int[][] output = new int[height][width];
+        int[] hashTable = new int[64];
+        int prev = 0xFF000000;
+        int run = 0;
+        int idx = QOISpecification.HEADER_SIZE;
+        for (int[] line : output) {
+            for (int x = 0; x < width; x++) {
+                if (run > 0) {
+                    run--;
+                    line[x] = prev;
+                    continue;
+                }
+                int chunk = content[idx++] & 0xFF;
+                if (chunk == (QOISpecification.QOI_OP_RGB_TAG & 0xFF)) {
+                    int rgb = load ? ArrayUtils.readInt(content, idx - 1)
+                            : (content[idx] & 0xFF) << 16 | (content[idx + 1] & 0xFF) << 8 | (content[idx + 2] & 0xFF);
+                    prev = (prev & 0xFF000000) | (rgb & 0xFF_FF_FF);
+                    idx += 3;
+                } else if (chunk == (QOISpecification.QOI_OP_RGBA_TAG & 0xFF)) {
+                    prev = load ? Integer.rotateRight(ArrayUtils.readInt(content, idx), 8)
+                            : (content[idx + 3] & 0xFF) << 24 | (content[idx] & 0xFF) << 16
+                            | (content[idx + 1] & 0xFF) << 8 | (content[idx + 2] & 0xFF);
+                    idx += 4;
+                } else {
+                    switch (chunk >>> 6) {
+                        case 0 -> prev = hashTable[chunk];
+                        case 1 -> {
+                            int r = (prev >>> 16) + ((chunk >>> 4) & 0b11) - 2;
+                            int g = (prev >>> 8) + ((chunk >>> 2) & 0b11) - 2;
+                            int b = prev + (chunk & 0b11) - 2;
+                            prev = (prev & 0xFF000000) | (r & 0xFF) << 16 | (g & 0xFF) << 8 | (b & 0xFF);
+                        }
+                        case 2 -> {
+                            int second = content[idx++] & 0xFF;
+                            int dg = (chunk & 0b11_11_11) - 32;
+                            int r = (prev >>> 16) + dg + (second >>> 4) - 8;
+                            int g = (prev >>> 8) + dg;
+                            int b = prev + dg + (second & 0b11_11) - 8;
+                            prev = (prev & 0xFF000000) | (r & 0xFF) << 16 | (g & 0xFF) << 8 | (b & 0xFF);
+                        }
+                        default -> run = chunk & 0b11_11_11;
+                    }
+                }
+                hashTable[QOIScan.hash(prev)] = prev;
+                line[x] = prev;
+            }
+        }
+        return output;
+    }
+
+    /**
+     * Check that a measured decoder agrees with {@link QOIDecoder#decodeQoiFile(byte[])}
+     * @param measured (int[][]) - ARGB data of the measured decoder
+     * @param expected (int[][]) - ARGB data of {@link QOIDecoder#decodeQoiFile(byte[])}
+     * @param path (String) - Path of the decoded file
+     */
+    private static void check(int[][] measured, int[][] expected, String path){
+        for (int y = 0; y < measured.length; y++)
+            if (!Arrays.equals(measured[y], expected[y]))
+                Helper.fail("The decoders disagree on row %d of %s", y, path);
+    }
+
+    /**
+     * Time a number of decodings, without the output of the metrics in the Terminal
+     * @param decode (Runnable) - Decoding to time
+     * @param rounds (int) - Number of decodings
+     * @return (double) - Mean time of a decoding, in nanoseconds
+     */
+    private static double measure(Runnable decode, int rounds){
+        var out = System.out;
+        System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+        try {
+            long start = System.nanoTime();
+            for (int i = 0; i < rounds; i++) decode.run();
+            return (double) (System.nanoTime() - start) / rounds;
+        } finally {
+            System.setOut(out);
+        }
+    }
+
+    // ============================================================================================
+
+    // Hide default constructor
+    private Benchmark(){}
+
+}
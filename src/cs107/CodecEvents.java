@@ -0,0 +1,137 @@
+package cs107;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * Java Flight Recorder events emitted by the converter.
+ * <p>
+ * A recording ({@code -XX:StartFlightRecording} or {@code jcmd <pid> JFR.start}) shows how the
+ * time of a conversion is split between the image I/O, the formatting of the pixels and the
+ * codec itself. When no recording is running, {@link Event#shouldCommit()} is false and the
+ * events only cost a timestamp.
+ * @version 1.0
+ * @since 1.0
+ */
+public final class CodecEvents {
+
+    // Hide default constructor
+    private CodecEvents(){}
+
+    /**
+     * Name of the phases recorded with a {@link Phase} event
+     */
+    public static final String ENCODE_DATA = "QOIEncoder.encodeData";
+    public static final String DECODE_DATA = "QOIDecoder.decodeData";
+    public static final String PNG_READ    = "PngReader.nextRow";
+    public static final String ENCODE_ROWS = "ReusableQOIEncoder.encodeRow";
+    public static final String QOI_WRITE   = "ReusableQOIEncoder.drainTo";
+    public static final String DECODE_ROWS = "ReusableQOIDecoder.nextRow";
+    public static final String PNG_WRITE   = "PngWriter.writeRow";
+
+    // ==================================================================================
+    // ===================================== EVENTS =====================================
+    // ==================================================================================
+
+    /**
+     * A whole "PNG" to "QOI" or "QOI" to "PNG" conversion
+     */
+    @Name("cs107.Conversion")
+    @Label("Conversion")
+    @Category({"QOI", "Conversion"})
+    public static final class Conversion extends Event {
+        @Label("Direction") public String direction;
+        @Label("Input") public String input;
+        @Label("Output") public String output;
+        @Label("Width") public int width;
+        @Label("Height") public int height;
+        @Label("Channels") public int channels;
+        @Label("Bytes Written") @DataAmount public long bytes;
+    }
+
+    /**
+     * One call to {@link QOIEncoder#qoiFile(Helper.Image)}
+     */
+    @Name("cs107.Encode")
+    @Label("QOI Encode")
+    @Category({"QOI", "Codec"})
+    public static final class Encode extends Event {
+        @Label("Width") public int width;
+        @Label("Height") public int height;
+        @Label("Channels") public int channels;
+        @Label("Encoded Size") @DataAmount public long bytes;
+    }
+
+    /**
+     * One call to {@link QOIDecoder#decodeQoiFile(byte[])}
+     */
+    @Name("cs107.Decode")
+    @Label("QOI Decode")
+    @Category({"QOI", "Codec"})
+    public static final class Decode extends Event {
+        @Label("Width") public int width;
+        @Label("Height") public int height;
+        @Label("Channels") public int channels;
+        @Label("Encoded Size") @DataAmount public long bytes;
+    }
+
+    /**
+     * One step of an encoding or a decoding
+     */
+    @Name("cs107.Phase")
+    @Label("Codec Phase")
+    @Description("Reading, encoding, decoding or writing step of the codec")
+    @Category({"QOI", "Codec"})
+    public static final class Phase extends Event {
+        @Label("Phase") public String phase;
+        @Label("Width") public int width;
+        @Label("Height") public int height;
+        @Label("Channels") public int channels;
+        @Label("Bytes") @DataAmount public long bytes;
+
+        public Phase(String phase){
+            this.phase = phase;
+        }
+    }
+
+    /**
+     * Reading or writing an image through {@code ImageIO}
+     */
+    @Name("cs107.ImageIO")
+    @Label("Image I/O")
+    @Category({"QOI", "I/O"})
+    public static final class ImageIO extends Event {
+        @Label("Operation") public String operation;
+        @Label("Path") public String path;
+        @Label("Width") public int width;
+        @Label("Height") public int height;
+        @Label("Channels") public int channels;
+
+        public ImageIO(String operation, String path){
+            this.operation = operation;
+            this.path = path;
+        }
+    }
+
+    /**
+     * Reading or writing a binary file
+     */
+    @Name("cs107.FileIO")
+    @Label("File I/O")
+    @Category({"QOI", "I/O"})
+    public static final class FileIO extends Event {
+        @Label("Operation") public String operation;
+        @Label("Path") public String path;
+        @Label("Bytes") @DataAmount public long bytes;
+
+        public FileIO(String operation, String path){
+            this.operation = operation;
+            this.path = path;
+        }
+    }
+
+}
@@ -0,0 +1,227 @@
+package cs107;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Runtime metrics of the "Quite Ok Image" codec, exposed through JMX
+ * under the name {@value #OBJECT_NAME}.
+ * <p>
+ * Every update is lock-free ({@link LongAdder} and atomic arrays) and happens once per call
+ * (or once per encoded image for the op mix), never per pixel.
+ * @version 1.0
+ * @since 1.0
+ */
+public final class CodecMetrics implements CodecMetricsMBean {
+
+    /**
+     * JMX name under which the metrics are registered
+     */
+    public static final String OBJECT_NAME = "cs107:type=CodecMetrics";
+
+    /**
+     * Length of the sliding window, in seconds (one slot per second)
+     */
+    private static final int WINDOW = 60;
+
+    // Indexes of the windowed counters
+    private static final int W_PIXELS_ENCODED = 0;
+    private static final int W_PIXELS_DECODED = 1;
+    private static final int W_BYTES_IN       = 2;
+    private static final int W_BYTES_OUT      = 3;
+    private static final int W_COUNTERS       = 4;
+
+    private static final CodecMetrics INSTANCE = new CodecMetrics();
+
+    static {
+        try {
+            ManagementFactory.getPlatformMBeanServer()
+                    .registerMBean(INSTANCE, new ObjectName(OBJECT_NAME));
+        } catch (JMException | SecurityException e) {
+            // Metrics are optional: the codec keeps working without the MBean
+            System.err.printf("Cannot register %s : %s%n", OBJECT_NAME, e.getMessage());
+        }
+    }
+
+    private final LongAdder encodeCalls   = new LongAdder();
+    private final LongAdder decodeCalls   = new LongAdder();
+    private final LongAdder pixelsEncoded = new LongAdder();
+    private final LongAdder pixelsDecoded = new LongAdder();
+    private final LongAdder bytesIn       = new LongAdder();
+    private final LongAdder bytesOut      = new LongAdder();
+
+    // Same indexes as the statistics of QOIEncoder.encodeData
+    private final LongAdder[] ops = new LongAdder[6];
+
+    private volatile LatencyHistogram encodeLatency = new LatencyHistogram();
+    private volatile LatencyHistogram decodeLatency = new LatencyHistogram();
+    private volatile LatencyHistogram admissionWait = new LatencyHistogram();
+    private final LongAdder admissionQueued = new LongAdder();
+
+    // One row of W_COUNTERS values per second of the window, stamped with its epoch second
+    private final AtomicLongArray windowStamps = new AtomicLongArray(WINDOW);
+    private final AtomicLongArray windowValues = new AtomicLongArray(WINDOW * W_COUNTERS);
+
+    private CodecMetrics(){
+        for (int i = 0; i < ops.length; i++) ops[i] = new LongAdder();
+        for (int i = 0; i < WINDOW; i++) windowStamps.set(i, Long.MIN_VALUE);
+    }
+
+    /**
+     * @return (CodecMetrics) - The process wide metrics, registered in the platform MBean server
+     */
+    public static CodecMetrics get(){
+        return INSTANCE;
+    }
+
+    // ==================================================================================
+    // ================================== RECORDING =====================================
+    // ==================================================================================
+
+    /**
+     * Record a completed encoding
+     * @param pixels (long) - Number of encoded pixels
+     * @param rawBytes (long) - Size of the raw input (pixels * channels)
+     * @param encodedBytes (long) - Size of the produced "Quite Ok Image" file
+     * @param nanos (long) - Duration of the call
+     */
+    public void recordEncode(long pixels, long rawBytes, long encodedBytes, long nanos){
+        encodeCalls.increment();
+        pixelsEncoded.add(pixels);
+        bytesIn.add(rawBytes);
+        bytesOut.add(encodedBytes);
+        encodeLatency.record(nanos);
+        int slot = currentSlot();
+        windowValues.addAndGet(slot + W_PIXELS_ENCODED, pixels);
+        windowValues.addAndGet(slot + W_BYTES_IN, rawBytes);
+        windowValues.addAndGet(slot + W_BYTES_OUT, encodedBytes);
+    }
+
+    /**
+     * Record a completed decoding
+     * @param pixels (long) - Number of decoded pixels
+     * @param encodedBytes (long) - Size of the consumed "Quite Ok Image" file
+     * @param rawBytes (long) - Size of the raw output (pixels * channels)
+     * @param nanos (long) - Duration of the call
+     */
+    public void recordDecode(long pixels, long encodedBytes, long rawBytes, long nanos){
+        decodeCalls.increment();
+        pixelsDecoded.add(pixels);
+        bytesIn.add(encodedBytes);
+        bytesOut.add(rawBytes);
+        decodeLatency.record(nanos);
+        int slot = currentSlot();
+        windowValues.addAndGet(slot + W_PIXELS_DECODED, pixels);
+        windowValues.addAndGet(slot + W_BYTES_IN, encodedBytes);
+        windowValues.addAndGet(slot + W_BYTES_OUT, rawBytes);
+    }
+
+    /**
+     * Record a conversion entering or leaving the queue of the admission control
+     * @param delta (int) - +1 when the conversion is queued, -1 when it is admitted
+     */
+    public void recordAdmissionQueued(int delta){
+        admissionQueued.add(delta);
+    }
+
+    /**
+     * Record the time a conversion waited for its memory budget
+     * @param nanos (long) - Time between the submission and the admission of the conversion
+     */
+    public void recordAdmissionWait(long nanos){
+        admissionWait.record(nanos);
+    }
+
+    /**
+     * Record the op mix of one encoding or decoding
+     * @param stats (int[]) - Statistics as computed by {@link QOIEncoder#encodeData(byte[][])}
+     *              or {@link ReusableQOIDecoder#stats()}
+     *              (0-QOI_OP_RUN, 1-QOI_OP_INDEX, 2-QOI_OP_DIFF, 3-QOI_OP_LUMA, 4-QOI_OP_RGB, 5-QOI_OP_RGBA)
+     * @throws AssertionError if stats is null or doesn't contain 6 values
+     */
+    public void recordOps(int[] stats){
+        assert stats != null && stats.length == ops.length : "The statistics are corrupted";
+        for (int i = 0; i < ops.length; i++)
+            if (stats[i] != 0) ops[i].add(stats[i]);
+    }
+
+    /**
+     * Find the row of the current second in the window, clearing it if it still holds
+     * the values of an older second. Two threads racing on a new second may lose a few
+     * increments of that second, which is acceptable for monitoring purposes.
+     */
+    private int currentSlot(){
+        long second = System.nanoTime() / 1_000_000_000L;
+        int index = Math.floorMod(second, WINDOW);
+        long stamp = windowStamps.get(index);
+        if (stamp != second && windowStamps.compareAndSet(index, stamp, second)) {
+            for (int i = 0; i < W_COUNTERS; i++)
+                windowValues.set(index * W_COUNTERS + i, 0);
+        }
+        return index * W_COUNTERS;
+    }
+
+    private long windowSum(int counter){
+        long now = System.nanoTime() / 1_000_000_000L;
+        long total = 0;
+        for (int i = 0; i < WINDOW; i++)
+            if (windowStamps.get(i) > now - WINDOW)
+                total += windowValues.get(i * W_COUNTERS + counter);
+        return total;
+    }
+
+    // ==================================================================================
+    // =================================== MBEAN API ====================================
+    // ==================================================================================
+
+    @Override public long getEncodeCalls()   { return encodeCalls.sum(); }
+    @Override public long getDecodeCalls()   { return decodeCalls.sum(); }
+    @Override public long getPixelsEncoded() { return pixelsEncoded.sum(); }
+    @Override public long getPixelsDecoded() { return pixelsDecoded.sum(); }
+    @Override public long getBytesIn()       { return bytesIn.sum(); }
+    @Override public long getBytesOut()      { return bytesOut.sum(); }
+
+    @Override public int getWindowSeconds()        { return WINDOW; }
+    @Override public long getWindowPixelsEncoded() { return windowSum(W_PIXELS_ENCODED); }
+    @Override public long getWindowPixelsDecoded() { return windowSum(W_PIXELS_DECODED); }
+    @Override public long getWindowBytesIn()       { return windowSum(W_BYTES_IN); }
+    @Override public long getWindowBytesOut()      { return windowSum(W_BYTES_OUT); }
+
+    @Override public double getEncodeLatencyMeanMicros() { return encodeLatency.mean() / 1_000; }
+    @Override public long getEncodeLatencyP50Micros()    { return encodeLatency.percentile(50) / 1_000; }
+    @Override public long getEncodeLatencyP99Micros()    { return encodeLatency.percentile(99) / 1_000; }
+    @Override public double getDecodeLatencyMeanMicros() { return decodeLatency.mean() / 1_000; }
+    @Override public long getDecodeLatencyP50Micros()    { return decodeLatency.percentile(50) / 1_000; }
+    @Override public long getDecodeLatencyP99Micros()    { return decodeLatency.percentile(99) / 1_000; }
+
+    @Override public double getAdmissionWaitMeanMicros() { return admissionWait.mean() / 1_000; }
+    @Override public long getAdmissionWaitP99Micros()    { return admissionWait.percentile(99) / 1_000; }
+    @Override public long getAdmissionQueued()           { return admissionQueued.sum(); }
+
+    @Override public long getOpRunPixels()  { return ops[0].sum(); }
+    @Override public long getOpIndexCount() { return ops[1].sum(); }
+    @Override public long getOpDiffCount()  { return ops[2].sum(); }
+    @Override public long getOpLumaCount()  { return ops[3].sum(); }
+    @Override public long getOpRgbCount()   { return ops[4].sum(); }
+    @Override public long getOpRgbaCount()  { return ops[5].sum(); }
+
+    @Override
+    public void reset(){
+        encodeCalls.reset();
+        decodeCalls.reset();
+        pixelsEncoded.reset();
+        pixelsDecoded.reset();
+        bytesIn.reset();
+        bytesOut.reset();
+        for (LongAdder op : ops) op.reset();
+        encodeLatency = new LatencyHistogram();
+        decodeLatency = new LatencyHistogram();
+        admissionWait = new LatencyHistogram();
+        for (int i = 0; i < WINDOW; i++) windowStamps.set(i, Long.MIN_VALUE);
+        for (int i = 0; i < windowValues.length(); i++) windowValues.set(i, 0);
+    }
+
+}
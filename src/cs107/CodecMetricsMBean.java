@@ -0,0 +1,106 @@
+package cs107;
+
+/**
+ * Management interface of {@link CodecMetrics}.
+ * All the values are read from lock-free counters, a snapshot is therefore not atomic
+ * across attributes.
+ * @version 1.0
+ * @since 1.0
+ */
+public interface CodecMetricsMBean {
+
+    // ==================================================================================
+    // ============================== CUMULATIVE COUNTERS ===============================
+    // ==================================================================================
+
+    long getEncodeCalls();
+
+    long getDecodeCalls();
+
+    long getPixelsEncoded();
+
+    long getPixelsDecoded();
+
+    /**
+     * @return (long) - Bytes consumed by the codec (raw pixels when encoding, "Quite Ok Image" files when decoding)
+     */
+    long getBytesIn();
+
+    /**
+     * @return (long) - Bytes produced by the codec ("Quite Ok Image" files when encoding, raw pixels when decoding)
+     */
+    long getBytesOut();
+
+    // ==================================================================================
+    // =============================== WINDOWED COUNTERS ================================
+    // ==================================================================================
+
+    /**
+     * @return (int) - Length of the sliding window used by the windowed counters, in seconds
+     */
+    int getWindowSeconds();
+
+    long getWindowPixelsEncoded();
+
+    long getWindowPixelsDecoded();
+
+    long getWindowBytesIn();
+
+    long getWindowBytesOut();
+
+    // ==================================================================================
+    // ==================================== LATENCY =====================================
+    // ==================================================================================
+
+    double getEncodeLatencyMeanMicros();
+
+    long getEncodeLatencyP50Micros();
+
+    long getEncodeLatencyP99Micros();
+
+    double getDecodeLatencyMeanMicros();
+
+    long getDecodeLatencyP50Micros();
+
+    long getDecodeLatencyP99Micros();
+
+    // ==================================================================================
+    // ================================== ADMISSION =====================================
+    // ==================================================================================
+
+    /**
+     * @return (double) - Mean time spent by the conversions waiting for their memory budget
+     */
+    double getAdmissionWaitMeanMicros();
+
+    long getAdmissionWaitP99Micros();
+
+    /**
+     * @return (long) - Number of conversions currently waiting for their memory budget
+     */
+    long getAdmissionQueued();
+
+    // ==================================================================================
+    // ==================================== OP MIX ======================================
+    // ==================================================================================
+
+    /**
+     * @return (long) - Pixels encoded with QOI_OP_RUN (a run of n pixels counts n)
+     */
+    long getOpRunPixels();
+
+    long getOpIndexCount();
+
+    long getOpDiffCount();
+
+    long getOpLumaCount();
+
+    long getOpRgbCount();
+
+    long getOpRgbaCount();
+
+    /**
+     * Reset all the counters to zero
+     */
+    void reset();
+}
@@ -0,0 +1,363 @@
+package cs107;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Scheduler of conversions under a global memory budget.
+ * <p>
+ * Before a conversion starts, its peak heap use is estimated from the header of its image
+ * ({@link ImageProbe}, nothing is decoded) and charged against the budget, held by a fair
+ * {@link Semaphore} whose permits are KiB. Conversions are admitted in submission order by a
+ * dispatcher thread: a conversion that doesn't fit waits (and the ones behind it too, so that a
+ * large image is not starved by small ones) until running conversions give their memory back.
+ * A conversion larger than the whole budget runs alone. A caller that has its own workers (for
+ * instance a {@link ShortestJobFirstExecutor}) can also convert on its thread once the memory is
+ * admitted ({@link #convertNow(ImageProbe.Info)}), waiting in the same queue.
+ * <p>
+ * The time spent waiting for admission is recorded by the scheduler and in {@link CodecMetrics}.
+ * @version 1.0
+ * @since 1.0
+ */
+public final class ConversionScheduler implements AutoCloseable {
+
+    /**
+     * Size of a permit of the semaphore, in bytes
+     */
+    private static final int UNIT = 1024;
+
+    /**
+     * Heap use per pixel of a row and per channel of a "QOI" to "PNG" conversion
+     * (see {@link Pipe#qoiToPng}): the rows of the {@link PngWriter}, the raw one, the previous one
+     * and the five filtered candidates. No image is held: the rows go from the decoder to the writer.
+     */
+    private static final int QOI_TO_PNG_ROWS = 7;
+
+    /**
+     * Heap use of the {@link PngWriter} that doesn't depend on the image: the block being filled
+     * (256 KiB)
+     */
+    private static final long PNG_WRITER_BYTES = 256 * 1024;
+
+    /**
+     * Heap use of each block deflated at the same time by the {@link PngWriter}, one per processor:
+     * its copy (128 KiB), its dictionary (32 KiB), the buffer of deflate (64 KiB) and the
+     * compressed block (at most 128 KiB)
+     */
+    private static final long PNG_WRITER_BYTES_PER_BLOCK = (128 + 32 + 64 + 128) * 1024;
+
+    /**
+     * Heap use per pixel of a "PNG" to "QOI" conversion (see {@link Pipe#pngToQoi}): the image read
+     * by ImageIO when the "PNG" cannot be streamed by the {@link PngReader}, which its header alone
+     * doesn't tell
+     */
+    private static final int PNG_TO_QOI_BYTES_PER_PIXEL = 4;
+
+    /**
+     * Heap use per pixel of a row of a "PNG" to "QOI" conversion: the two scanlines of the
+     * {@link PngReader} (4 bytes per pixel at most each), the ARGB row (4) and, in the
+     * {@link ReusableQOIEncoder} of the thread, the chunks of a row (5 bytes per pixel in the worst
+     * case, and its buffer grows by half: 8)
+     */
+    private static final int PNG_TO_QOI_BYTES_PER_ROW_PIXEL = 4 + 4 + 4 + 8;
+
+    /**
+     * Heap use of a "PNG" to "QOI" conversion that doesn't depend on the image: the compressed
+     * data of the {@link PngReader} (64 KiB) and the chunks the encoder gathers before writing them
+     * (64 KiB, and its buffer grows by half)
+     */
+    private static final long PNG_TO_QOI_BYTES = (64 + 96) * 1024;
+
+    /**
+     * Number of copies of the converted file held by {@link #convert(ImageProbe.Info)}: the output stream,
+     * whose array can be twice as large as its content, and the copy out of it
+     */
+    private static final int OUTPUT_COPIES = 3;
+
+    private final long              budget;
+    private final int               units;
+    private final Semaphore         permits;
+    private final ExecutorService   dispatcher;
+    private final ExecutorService   workers;
+    private final LatencyHistogram  queueWait = new LatencyHistogram();
+    private final AtomicInteger     queued    = new AtomicInteger();
+
+    /**
+     * Create a scheduler
+     * @param budgetBytes (long) - Memory budget shared by the running conversions, in bytes
+     * @param threads (int) - Maximal number of conversions running at the same time on the workers of the scheduler
+     * @throws AssertionError if the budget or the number of threads isn't positive
+     */
+    public ConversionScheduler(long budgetBytes, int threads){
+        assert budgetBytes >= UNIT : "The budget is smaller than 1 KiB";
+        assert threads > 0 : "The number of threads is not positive";
+        this.budget = budgetBytes;
+        this.units = (int) Math.min(Integer.MAX_VALUE, budgetBytes / UNIT);
+        this.permits = new Semaphore(units, true);
+        this.dispatcher = Executors.newSingleThreadExecutor(r -> daemon(r, "conversion-dispatcher"));
+        AtomicInteger count = new AtomicInteger();
+        this.workers = Executors.newFixedThreadPool(threads, r -> daemon(r, "conversion-" + count.incrementAndGet()));
+    }
+
+    // ============================================================================================
+    // ===================================== SUBMISSION ===========================================
+    // ============================================================================================
+
+    /**
+     * Give a budget for a process whose main work is the conversions: half of the maximal heap,
+     * the other half being left to the rest of the program and to the garbage collector
+     * @return (long) - The budget, in bytes
+     */
+    public static long defaultBudget(){
+        return Math.max(UNIT, Runtime.getRuntime().maxMemory() / 2);
+    }
+
+    /**
+     * Convert a file ("PNG" to "QOI" or "QOI" to "PNG", see {@link Pipe#convert}) in memory once its
+     * estimated memory, including the converted file, fits in the budget
+     * @param path (String) - Path of the file to convert
+     * @return (CompletableFuture<byte[]>) - The converted file
+     * @throws AssertionError if the path is null
+     * @throws RuntimeException if the header of the file cannot be read
+     */
+    public CompletableFuture<byte[]> convert(String path){
+        assert path != null : "The path is null";
+        return convert(ImageProbe.probe(path));
+    }
+
+    /**
+     * Convert a file whose header is already read ("PNG" to "QOI" or "QOI" to "PNG", see
+     * {@link Pipe#convert}) in memory once its estimated memory, including the converted file,
+     * fits in the budget
+     * @param info (ImageProbe.Info) - Metadata of the file to convert, see {@link ImageProbe#probe(String)}
+     * @return (CompletableFuture<byte[]>) - The converted file
+     * @throws AssertionError if the metadata is null
+     */
+    public CompletableFuture<byte[]> convert(ImageProbe.Info info){
+        assert info != null : "The metadata is null";
+        return submit(estimateConversionBytes(info), () -> convertFile(info.path()));
+    }
+
+    /**
+     * Convert a file whose header is already read on the calling thread, once its estimated memory,
+     * including the converted file, fits in the budget. The thread waits in the queue of the
+     * conversions submitted to the scheduler, and no worker of the scheduler is used.
+     * @param info (ImageProbe.Info) - Metadata of the file to convert, see {@link ImageProbe#probe(String)}
+     * @return (byte[]) - The converted file
+     * @throws AssertionError if the metadata is null
+     * @throws IOException if the file cannot be read
+     * @throws RuntimeException if the file cannot be converted
+     */
+    public byte[] convertNow(ImageProbe.Info info) throws IOException {
+        assert info != null : "The metadata is null";
+        int needed = units(estimateConversionBytes(info));
+        long submitted = System.nanoTime();
+        enqueue();
+        acquire(needed, submitted);
+        try {
+            return convertFile(info.path());
+        } finally {
+            permits.release(needed);
+        }
+    }
+
+    /**
+     * Run a job once the given amount of memory fits in the budget
+     * @param peakBytes (long) - Estimated peak heap use of the job
+     * @param job (Callable<T>) - The job
+     * @return (CompletableFuture<T>) - Result of the job
+     * @param <T> - Type of the result
+     * @throws AssertionError if the job is null or the amount is negative
+     * @throws RejectedExecutionException if the scheduler is closed
+     */
+    public <T> CompletableFuture<T> submit(long peakBytes, Callable<T> job){
+        assert job != null : "The job is null";
+        assert peakBytes >= 0 : "The peak memory is negative";
+        int needed = units(peakBytes);
+        var result = new CompletableFuture<T>();
+        long submitted = System.nanoTime();
+        enqueue();
+        try {
+            dispatcher.execute(() -> admit(needed, submitted, job, result));
+        } catch (RejectedExecutionException e) {
+            queued.decrementAndGet();
+            CodecMetrics.get().recordAdmissionQueued(-1);
+            throw e;
+        }
+        return result;
+    }
+
+    /**
+     * Wait until the memory of a job fits in the budget, then give the job to the workers.
+     * Runs on the dispatcher thread.
+     */
+    private <T> void admit(int needed, long submitted, Callable<T> job, CompletableFuture<T> result){
+        acquire(needed, submitted);
+        try {
+            workers.execute(() -> {
+                try {
+                    result.complete(job.call());
+                } catch (Throwable t) {
+                    result.completeExceptionally(t);
+                } finally {
+                    permits.release(needed);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            permits.release(needed);
+            result.completeExceptionally(e);
+        }
+    }
+
+    /**
+     * @return (int) - Number of permits of a job, between 1 and the whole budget
+     */
+    private int units(long peakBytes){
+        return (int) Math.max(1, Math.min(units, (peakBytes + UNIT - 1) / UNIT));
+    }
+
+    /**
+     * Count a conversion entering the queue
+     */
+    private void enqueue(){
+        queued.incrementAndGet();
+        CodecMetrics.get().recordAdmissionQueued(1);
+    }
+
+    /**
+     * Wait until the permits of a queued conversion are available, and record its wait
+     */
+    private void acquire(int needed, long submitted){
+        permits.acquireUninterruptibly(needed);
+        long wait = System.nanoTime() - submitted;
+        queued.decrementAndGet();
+        queueWait.record(wait);
+        CodecMetrics.get().recordAdmissionQueued(-1);
+        CodecMetrics.get().recordAdmissionWait(wait);
+    }
+
+    /**
+     * Convert a file in memory
+     * @return (byte[]) - The converted file
+     */
+    private static byte[] convertFile(String path) throws IOException {
+        var output = new ByteArrayOutputStream();
+        try (var input = new BufferedInputStream(new FileInputStream(path), 1 << 16)) {
+            Pipe.convert(input, output);
+        }
+        return output.toByteArray();
+    }
+
+    /**
+     * @return (long) - Estimated memory of a conversion by {@link #convert(ImageProbe.Info)}, converted file included
+     */
+    private static long estimateConversionBytes(ImageProbe.Info info){
+        return estimatePeakBytes(info) + OUTPUT_COPIES * estimateOutputBytes(info);
+    }
+
+    /**
+     * Estimate the peak heap use of the conversion of an image by {@link Pipe#convert}, from its
+     * metadata, when the converted file is written to a stream that doesn't keep it (a file).
+     * For a "PNG" input, this includes the buffer of the {@link ReusableQOIEncoder} of the thread,
+     * which the thread keeps after the conversion.
+     * @param info (ImageProbe.Info) - Metadata of the image
+     * @return (long) - Estimated peak heap use, in bytes
+     * @throws AssertionError if the metadata is null
+     */
+    public static long estimatePeakBytes(ImageProbe.Info info){
+        assert info != null : "The metadata is null";
+        if (info.format() == ImageProbe.Format.QOI) {
+            // The input is read as the rows need it (5 bytes per pixel of a row at most, in a buffer
+            // of 64 KiB at least), and decoded one ARGB row at a time
+            return Math.max(1 << 16, info.width() * 5L) + (long) info.width() * (4 + QOI_TO_PNG_ROWS * info.channels())
+                    + PNG_WRITER_BYTES + PNG_WRITER_BYTES_PER_BLOCK * Runtime.getRuntime().availableProcessors();
+        }
+        // The input is streamed
+        return info.pixels() * PNG_TO_QOI_BYTES_PER_PIXEL + (long) info.width() * PNG_TO_QOI_BYTES_PER_ROW_PIXEL
+                + PNG_TO_QOI_BYTES;
+    }
+
+    /**
+     * Give the largest size of the converted file of an image: a "PNG" of stored blocks
+     * (the channels of each pixel and the filter of each row), or a "QOI" made of QOI_OP_RGB
+     * (or QOI_OP_RGBA with an alpha channel) chunks
+     * @param info (ImageProbe.Info) - Metadata of the image
+     * @return (long) - Largest size of the converted file, in bytes
+     * @throws AssertionError if the metadata is null
+     */
+    public static long estimateOutputBytes(ImageProbe.Info info){
+        assert info != null : "The metadata is null";
+        if (info.format() == ImageProbe.Format.QOI) {
+            long raw = info.pixels() * info.channels() + info.height();
+            // The framing of the blocks and of the chunks is well below 1/1000 of the data
+            return raw + raw / 1000 + 1024;
+        }
+        return info.pixels() * (info.channels() + 1) + QOISpecification.HEADER_SIZE + QOISpecification.QOI_EOF.length;
+    }
+
+    // ============================================================================================
+    // ======================================= METRICS ============================================
+    // ============================================================================================
+
+    /**
+     * @return (LatencyHistogram) - Time spent by the conversions between their submission and their admission
+     */
+    public LatencyHistogram queueWait(){
+        return queueWait;
+    }
+
+    /**
+     * @return (int) - Number of conversions waiting for their memory budget
+     */
+    public int queued(){
+        return queued.get();
+    }
+
+    /**
+     * @return (long) - Memory of the budget that is not charged to a running conversion, in bytes
+     */
+    public long availableBytes(){
+        return (long) permits.availablePermits() * UNIT;
+    }
+
+    /**
+     * @return (long) - The memory budget, in bytes
+     */
+    public long budget(){
+        return budget;
+    }
+
+    /**
+     * Stop accepting conversions and wait for the submitted ones to finish
+     */
+    @Override
+    public void close(){
+        dispatcher.shutdown();
+        try {
+            // The dispatcher must hand every queued conversion to the workers before they stop
+            while (!dispatcher.awaitTermination(1, TimeUnit.SECONDS)) Thread.onSpinWait();
+            workers.shutdown();
+            while (!workers.awaitTermination(1, TimeUnit.SECONDS)) Thread.onSpinWait();
+        } catch (InterruptedException e) {
+            workers.shutdownNow();
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static Thread daemon(Runnable runnable, String name){
+        var thread = new Thread(runnable, name);
+        thread.setDaemon(true);
+        return thread;
+    }
+
+}
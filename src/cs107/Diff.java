@@ -1,11 +1,16 @@
 package cs107;
 
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
 import java.util.Arrays;
 
 /**
  * Utility class used to simulate the Unix command "diff"
  * @author Hamza REMMAL (hamza.remmal@epfl.ch)
- * @version 1.0
+ * @version 1.1
  * @since 1.0
  */
 public final class Diff {
@@ -29,7 +34,9 @@ public final class Diff {
             showSameFileMessage();
         else {
             var size_to_check = b1.length != b2.length ? sizeWarning(b1.length, b2.length) : b1.length;
-            compareAndShow(b1, b2, size_to_check);
+            var out = new StringBuilder(FLUSH_SIZE + LINE_SIZE);
+            compareAndShow(b1, b2, 0, size_to_check, 0, out);
+            flush(out);
         }
 
         showEnd();
@@ -37,19 +44,57 @@ public final class Diff {
 
     /**
      * Compare the content of 2 files and print in the Terminal the difference
-     * between them
+     * between them. The files are streamed by blocks, so they can be arbitrarily large.
      * @param file_1 (String) - Path of the first file
      * @param file_2 (String) - Path of the second file
      * @throws AssertionError if one of the paths is null
      */
     public static void diff(String file_1, String file_2){
+        diff(file_1, file_2, 0, Long.MAX_VALUE);
+    }
+
+    /**
+     * Compare a window of the content of 2 files and print in the Terminal the difference
+     * between them. Only one block of each file is in memory at a time.
+     * @param file_1 (String) - Path of the first file
+     * @param file_2 (String) - Path of the second file
+     * @param start_address (long) - Offset from which we start comparing
+     * @param end_address (long) - Offset from which we stop comparing (inclusive),
+     *                    clamped to the last byte of the shortest file
+     * @throws AssertionError if one of the paths is null or the addresses are invalid
+     */
+    public static void diff(String file_1, String file_2, long start_address, long end_address){
         assert file_1 != null;
         assert file_2 != null;
-
-        var b1 = Helper.read(file_1);
-        var b2 = Helper.read(file_2);
-        showHeader(file_1, file_2, b1, b2);
-        diff(b1, b2);
+        assert 0 <= start_address && start_address <= end_address;
+
+        try (var c1 = FileChannel.open(Path.of(file_1), StandardOpenOption.READ);
+             var c2 = FileChannel.open(Path.of(file_2), StandardOpenOption.READ)) {
+            long size_1 = c1.size();
+            long size_2 = c2.size();
+            showHeader(file_1, file_2, size_1, size_2);
+            if (size_1 != size_2) sizeWarning(size_1, size_2);
+            long end = Math.min(end_address, Math.min(size_1, size_2) - 1);
+
+            var block_1 = ByteBuffer.allocate(BLOCK_SIZE);
+            var block_2 = ByteBuffer.allocate(BLOCK_SIZE);
+            var out = new StringBuilder(FLUSH_SIZE + LINE_SIZE);
+            boolean same = true;
+            for (long addr = start_address; addr <= end; ) {
+                int length = (int) Math.min(BLOCK_SIZE, end - addr + 1);
+                block_1.clear().limit(length);
+                block_2.clear().limit(length);
+                int read = Math.min(Helper.read(c1, block_1, addr), Helper.read(c2, block_2, addr));
+                if (read == 0) break;
+                same &= compareAndShow(block_1.array(), block_2.array(), 0, read, addr, out);
+                addr += read;
+            }
+            flush(out);
+            if (same && size_1 == size_2) showSameFileMessage();
+        } catch (IOException e) {
+            Helper.fail("An error occurred while trying to compare : \"%s\" and \"%s\"%n", file_1, file_2);
+        }
+        showEnd();
     }
 
     // ============================================================================================
@@ -58,15 +103,37 @@ public final class Diff {
     // Hide default constructor
     private Diff(){}
 
-    private static void showHeader(String file_1, String file_2, byte[] stream_f1, byte[] stream_f2){
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+    private static final String NEW_LINE = System.lineSeparator();
+
+    /**
+     * Number of bytes read at once from each file
+     */
+    private static final int BLOCK_SIZE = 1 << 16;
+
+    /**
+     * Upper bound of the length of one line
+     */
+    private static final int LINE_SIZE = 64;
+
+    /**
+     * Number of characters buffered before writing to the Terminal
+     */
+    private static final int FLUSH_SIZE = 1 << 16;
+
+    private static void showHeader(String file_1, String file_2, long size_1, long size_2){
         System.out.println("========================================== DIFF ==========================================");
-        System.out.printf("== File 1 : '%s', size = %d bytes %n", file_1, stream_f1.length);
-        System.out.printf("== File 2 : '%s', size = %d bytes %n", file_2, stream_f2.length);
+        System.out.printf("== File 1 : '%s', size = %d bytes %n", file_1, size_1);
+        System.out.printf("== File 2 : '%s', size = %d bytes %n", file_2, size_2);
         System.out.println("==========================================================================================");
     }
 
     private static int sizeWarning(int size_1, int size_2){
-        var min = Integer.min(size_1, size_2);
+        return (int) sizeWarning((long) size_1, size_2);
+    }
+
+    private static long sizeWarning(long size_1, long size_2){
+        var min = Long.min(size_1, size_2);
         System.out.printf("== WARNING : The two input have different sizes, we will only check the %d first bytes%n", min);
         return min;
     }
@@ -75,12 +142,48 @@ public final class Diff {
         System.out.println("== WARNING : The two inputs have the same content");
     }
 
-    private static void compareAndShow(byte[] b1, byte[] b2, int size_to_check){
-        for (var i = 0; i < size_to_check; i++){
-            if (b1[i] != b2[i]){
-                System.out.printf("[%06X] ~ %02x ~ %02x%n", i, b1[i], b2[i]);
-            }
+    /**
+     * Append a line "[%06X] ~ %02x ~ %02x" for every differing byte, skipping the equal
+     * runs with {@link Arrays#mismatch(byte[], int, int, byte[], int, int)}
+     * @param b1 (byte[]) - First block
+     * @param b2 (byte[]) - Second block
+     * @param from (int) - First index to compare
+     * @param to (int) - Last index to compare (exclusive)
+     * @param base (long) - Address of index 0 of the blocks
+     * @param out (StringBuilder) - Where to append the lines, flushed when full
+     * @return (boolean) - True if the blocks are the same
+     */
+    private static boolean compareAndShow(byte[] b1, byte[] b2, int from, int to, long base, StringBuilder out){
+        boolean same = true;
+        int i = from;
+        while (i < to) {
+            int mismatch = Arrays.mismatch(b1, i, to, b2, i, to);
+            if (mismatch < 0) break;
+            i += mismatch;
+            same = false;
+            out.append('[');
+            appendAddress(out, base + i);
+            out.append("] ~ ").append(HEX[(b1[i] >>> 4) & 0xF]).append(HEX[b1[i] & 0xF])
+                    .append(" ~ ").append(HEX[(b2[i] >>> 4) & 0xF]).append(HEX[b2[i] & 0xF])
+                    .append(NEW_LINE);
+            if (out.length() >= FLUSH_SIZE) flush(out);
+            i++;
         }
+        return same;
+    }
+
+    /**
+     * Append an address as "%06X"
+     */
+    private static void appendAddress(StringBuilder out, long addr){
+        int digits = Math.max(6, (64 - Long.numberOfLeadingZeros(addr) + 3) / 4);
+        for (int shift = (digits - 1) * 4; shift >= 0; shift -= 4)
+            out.append(Character.toUpperCase(HEX[(int) (addr >>> shift) & 0xF]));
+    }
+
+    private static void flush(StringBuilder out){
+        System.out.print(out);
+        out.setLength(0);
     }
 
     private static void showEnd(){
@@ -1,11 +1,16 @@
 package cs107;
 
 import javax.imageio.ImageIO;
-import java.awt.image.BufferedImage;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
 import java.util.Arrays;
 
 /**
@@ -22,16 +27,31 @@ public final class Helper {
 
     private static final String res_folder = "res";
 
-    static {
-        var file = new File(res_folder);
-        if(file.exists()){
-            if (!file.isDirectory()){
-                fail("File %s is not a directory.", res_folder);
+    /**
+     * Holder of the "res/" folder: it is only created when a file is first written to it,
+     * so that programs which never write there (the pipe mode of {@link Main}) don't touch the disk
+     */
+    private static final class ResFolder {
+        static {
+            var file = new File(res_folder);
+            if(file.exists()){
+                if (!file.isDirectory()){
+                    fail("File %s is not a directory.", res_folder);
+                }
+            }else{
+                var b = file.mkdir();
+                if(!b)
+                    fail("Cannot create directory '%s'", res_folder);
             }
-        }else{
-            var b = file.mkdir();
-            if(!b)
-                fail("Cannot create directory '%s'", res_folder);
+        }
+
+        /**
+         * Give the path of a file of the "res/" folder, creating the folder if needed
+         * @param path (String) - Path relative to the folder
+         * @return (String) - Path of the file
+         */
+        static String resolve(String path){
+            return res_folder + File.separator + path;
         }
     }
 
@@ -92,17 +112,43 @@ public final class Helper {
      * @return (Image) - The corresponding Image
      */
     public static Image readImage(String path) {
-        try{
-            var io = ImageIO.read(new File(path));
-            var width  = io.getWidth();
-            var height = io.getHeight();
-            var array = new int[height][width];
-            for(var x = 0; x < height;++x){
-                for(var y = 0 ;y < width; ++y){
-                    array[x][y] = io.getRGB(y, x);
+        return readImage(path, false);
+    }
+
+    /**
+     * Read and decode an image from the disk. The image can be one of
+     * the standard formats (png, jpeg ...)
+     * @param path (String) - Relative or Absolute Path to the image
+     * @param detectOpaque (boolean) - If true, an image with an alpha channel whose pixels
+     *                     are all fully opaque is returned with 3 channels
+     * @return (Image) - The corresponding Image
+     */
+    public static Image readImage(String path, boolean detectOpaque) {
+        var event = new CodecEvents.ImageIO("read", path);
+        event.begin();
+        try(var png = new PngReader(new BufferedInputStream(new FileInputStream(path), 1 << 16))){
+            int[][] array;
+            byte nbrChannels;
+            if (png.isSupported()) {
+                // Common PNG files: decoded straight into the rows, without BufferedImage
+                array = new int[png.height()][png.width()];
+                for (var row : array) png.nextRow(row);
+                nbrChannels = png.channels();
+            } else {
+                var io = ImageIO.read(png.replay());
+                var width  = io.getWidth();
+                var height = io.getHeight();
+                array = new int[height][width];
+                for(var x = 0; x < height;++x){
+                    for(var y = 0 ;y < width; ++y){
+                        array[x][y] = io.getRGB(y, x);
+                    }
                 }
+                nbrChannels = (byte) (io.getColorModel().hasAlpha() ? 4 : 3);
             }
-            var nbrChannels = (byte) (io.getColorModel().hasAlpha() ? 4 : 3);
+            if (nbrChannels == 4 && detectOpaque && ArrayUtils.isOpaque(array))
+                nbrChannels = 3;
+            commit(event, array[0].length, array.length, nbrChannels);
             return new Image(array, nbrChannels, (byte) 0);
         }catch (IOException e){
             return fail("An error occurred while trying to read from : \"%s\"%n", path);
@@ -116,20 +162,15 @@ public final class Helper {
      * @param image (Image) - Image to store
      */
     public static void writeImage(String path, Image image) {
-        int type = switch (image.channels){
-            case 3 -> BufferedImage.TYPE_3BYTE_BGR;
-            case 4 -> BufferedImage.TYPE_4BYTE_ABGR;
-            default -> fail("Cannot write this image, image.channels() == %d", image.channels);
-        };
-        var buffer = new BufferedImage(image.data[0].length, image.data.length, type);
-        for(var x = 0; x < buffer.getHeight(); ++x){
-            for(var y = 0 ; y < buffer.getWidth(); ++y){
-                buffer.setRGB(y, x, image.data[x][y]);
-            }
-        }
-        var abs_path = res_folder + File.separator + path;
-        try {
-            ImageIO.write(buffer, "png", new File(abs_path));
+        if (image.channels != 3 && image.channels != 4)
+            fail("Cannot write this image, image.channels() == %d", image.channels);
+        var abs_path = ResFolder.resolve(path);
+        var event = new CodecEvents.ImageIO("write", abs_path);
+        event.begin();
+        // Filtered and deflated on several threads by PngWriter, instead of ImageIO
+        try(var output = new BufferedOutputStream(new FileOutputStream(abs_path), 1 << 16)){
+            PngWriter.write(image, output, PngWriter.DEFAULT_LEVEL);
+            commit(event, image.data[0].length, image.data.length, image.channels);
         }catch (IOException e){
             fail("An error occurred while trying to write to : \"%s\"%n", abs_path);
         }
@@ -145,27 +186,84 @@ public final class Helper {
      * @return (byte[]) - File content as stored in memory
      */
     public static byte[] read(String path) {
+        var event = new CodecEvents.FileIO("read", path);
+        event.begin();
         try(var input = new FileInputStream(path)){
-            return input.readAllBytes();
+            var content = input.readAllBytes();
+            commit(event, content.length);
+            return content;
         } catch (IOException e){
             return fail("An error occurred while trying to read from : \"%s\"%n", path);
         }
     }
 
+    /**
+     * Read a block of a file, starting at the given position and until the block is full
+     * or the end of the file is reached
+     * @param channel (FileChannel) - Opened file
+     * @param block (ByteBuffer) - Where to store the bytes, filled from its position to its limit
+     * @param position (long) - Offset in the file of the first byte to read
+     * @return (int) - Number of bytes read, smaller than the remaining space of the block only at the end of the file
+     * @throws IOException if the file cannot be read
+     */
+    public static int read(FileChannel channel, ByteBuffer block, long position) throws IOException {
+        int total = 0;
+        while (block.hasRemaining()) {
+            int read = channel.read(block, position + total);
+            if (read < 0) break;
+            total += read;
+        }
+        return total;
+    }
+
+    /**
+     * Open a file of the disk to write it. This function writes to the folder called "res/"
+     * @param path (String) - Relative or Absolute path to the file
+     * @return (FileChannel) - Channel of the emptied file, to close
+     * @throws IOException if the file cannot be opened
+     */
+    public static FileChannel openWrite(String path) throws IOException {
+        return FileChannel.open(Path.of(ResFolder.resolve(path)), StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+    }
+
     /**
      * Write a file to the disk. This function writes to the folder called "res/"
      * @param path (String) - Relative or Absolute path to the file
      * @param content (byte[]) - Content of the file.
      */
     public static void write(String path, byte[] content){
-        var abs_path = res_folder + File.separator + path;
+        var abs_path = ResFolder.resolve(path);
+        var event = new CodecEvents.FileIO("write", abs_path);
+        event.begin();
         try(var output = new FileOutputStream(abs_path)){
             output.write(content);
+            commit(event, content.length);
         }catch (IOException e){
             fail("An error occurred while trying to write to : \"%s\"%n", abs_path);
         }
     }
 
+    // ==================================================================================
+    // ============================== FLIGHT RECORDER EVENTS ============================
+    // ==================================================================================
+
+    private static void commit(CodecEvents.ImageIO event, int width, int height, byte channels){
+        if (event.shouldCommit()) {
+            event.width = width;
+            event.height = height;
+            event.channels = channels;
+            event.commit();
+        }
+    }
+
+    private static void commit(CodecEvents.FileIO event, long bytes){
+        if (event.shouldCommit()) {
+            event.bytes = bytes;
+            event.commit();
+        }
+    }
+
     // ==================================================================================
     // ============================= ERROR MANAGEMENT METHODS ===========================
     // ==================================================================================
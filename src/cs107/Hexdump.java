@@ -1,9 +1,15 @@
 package cs107;
 
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
 /**
  * Utility class used to simulate the Unix command "hexdump"
  * @author Hamza REMMAL (hamza.remmal@epfl.ch)
- * @version 1.3
+ * @version 1.4
  * @since 1.0
  */
 public final class Hexdump {
@@ -44,24 +50,61 @@ public final class Hexdump {
         assert binary != null : "(hexdump) You've used a null array, cannot dump the null array";
         assert  0 <= start_address && start_address <= end_address;
         assert end_address < binary.length;
-        var mod_length = (end_address - start_address + 1) % 10;
-        var div_length = (end_address - start_address + 1) / 10;
-        System.out.println("==========================================================================================");
-        for(var i = 0; i < div_length; i++)
-            System.out.print(dump_10bytes(start_address + i * 10, binary));
-        System.out.print(switch (mod_length){
-            case 1 -> dump_1byte(start_address + div_length * 10, binary);
-            case 2 -> dump_2bytes(start_address + div_length * 10, binary);
-            case 3 -> dump_3bytes(start_address + div_length * 10, binary);
-            case 4 -> dump_4bytes(start_address + div_length * 10, binary);
-            case 5 -> dump_5bytes(start_address + div_length * 10, binary);
-            case 6 -> dump_6bytes(start_address + div_length * 10, binary);
-            case 7 -> dump_7bytes(start_address + div_length * 10, binary);
-            case 8 -> dump_8bytes(start_address + div_length * 10, binary);
-            case 9 -> dump_9bytes(start_address + div_length * 10, binary);
-            default -> ""; // Dead code
-        });
-        System.out.println("==========================================================================================");
+        var out = new StringBuilder(FLUSH_SIZE + LINE_SIZE);
+        out.append(SEPARATOR).append(NEW_LINE);
+        for (int addr = start_address; addr <= end_address; addr += 10) {
+            dump_line(out, addr, binary, addr, Math.min(10, end_address - addr + 1));
+            flushIfFull(out);
+        }
+        out.append(SEPARATOR).append(NEW_LINE);
+        flush(out);
+    }
+
+    /**
+     * Print the content of a file in a hexadecimal form in the Terminal.
+     * The file is streamed by blocks, so it can be arbitrarily large.
+     * @param path (String) - Path of the file to print
+     */
+    public static void hexdump(String path){
+        hexdump(path, 0, Long.MAX_VALUE);
+    }
+
+    /**
+     * Print a window of a file in a hexadecimal form in the Terminal.
+     * Only one block of the file is in memory at a time, whatever the size of the window.
+     * @param path (String) - Path of the file to print
+     * @param start_address (long) - Offset from which we start printing
+     * @param end_address (long) - Offset from which we stop printing (inclusive),
+     *                    clamped to the last byte of the file
+     * @throws AssertionError if the path is null or the addresses are invalid
+     */
+    public static void hexdump(String path, long start_address, long end_address){
+        assert path != null : "(hexdump) You've used a null path";
+        assert 0 <= start_address && start_address <= end_address;
+        try (var channel = FileChannel.open(Path.of(path), StandardOpenOption.READ)) {
+            long end = Math.min(end_address, channel.size() - 1);
+            assert start_address <= end : "The start address is after the end of the file";
+            var out = new StringBuilder(FLUSH_SIZE + LINE_SIZE);
+            // A multiple of 10 so that every block starts a new line
+            var block = ByteBuffer.allocate(BLOCK_LINES * 10);
+            out.append(SEPARATOR).append(NEW_LINE);
+            long addr = start_address;
+            while (addr <= end) {
+                block.clear().limit((int) Math.min(block.capacity(), end - addr + 1));
+                int read = Helper.read(channel, block, addr);
+                if (read == 0) break;
+                var bytes = block.array();
+                for (int off = 0; off < read; off += 10) {
+                    dump_line(out, addr + off, bytes, off, Math.min(10, read - off));
+                    flushIfFull(out);
+                }
+                addr += read;
+            }
+            out.append(SEPARATOR).append(NEW_LINE);
+            flush(out);
+        } catch (IOException e) {
+            Helper.fail("An error occurred while trying to read from : \"%s\"%n", path);
+        }
     }
 
     // ============================================================================================
@@ -69,111 +112,65 @@ public final class Hexdump {
     // Hide default constructor
     private Hexdump(){}
 
-    private static String dump_1byte(int addr, byte[] b){
-        var fmt = "%06X : %02X | %c |%n";
-        return String.format(fmt, addr, b[addr], display_char(b[addr]));
-    }
-    private static String dump_2bytes(int addr, byte[] b){
-        var fmt = "%06X : %02X %02X | %c%c |%n";
-        return String.format(fmt, addr, b[addr], b[addr + 1],
-                display_char(b[addr]),
-                display_char(b[addr + 1]));
-    }
-    private static String dump_3bytes(int addr, byte[] b){
-        var fmt = "%06X : %02X %02X %02X | %c%c%c |%n";
-        return String.format(fmt, addr, b[addr], b[addr+1], b[addr+2],
-                display_char(b[addr]),
-                display_char(b[addr+1]),
-                display_char(b[addr+2]));
-    }
+    private static final String SEPARATOR =
+            "==========================================================================================";
+    private static final String NEW_LINE = System.lineSeparator();
+    private static final char[] HEX = "0123456789ABCDEF".toCharArray();
 
-    private static String dump_4bytes(int addr, byte[] b){
-        var fmt = "%06X : %02X %02X %02X %02X | %c%c%c%c |%n";
-        return String.format(fmt, addr, b[addr], b[addr+1],b[addr+2], b[addr+3],
-                display_char(b[addr]),
-                display_char(b[addr+1]),
-                display_char(b[addr+2]),
-                display_char(b[addr+3]));
-    }
+    /**
+     * Upper bound of the length of one line
+     */
+    private static final int LINE_SIZE = 128;
 
-    private static String dump_5bytes(int addr, byte[] b){
-        var fmt = "%06X : %02X %02X %02X %02X %02X | %c%c%c%c%c |%n";
-        return String.format(fmt, addr, b[addr], b[addr+1],b[addr+2], b[addr+3],b[addr+4],
-                display_char(b[addr]),
-                display_char(b[addr+1]),
-                display_char(b[addr+2]),
-                display_char(b[addr+3]),
-                display_char(b[addr+4]));
-    }
+    /**
+     * Number of characters buffered before writing to the Terminal
+     */
+    private static final int FLUSH_SIZE = 1 << 16;
 
-    private static String dump_6bytes(int addr, byte[] b){
-        var fmt = "%06X : %02X %02X %02X %02X %02X %02X  | %c%c%c%c%c%c |%n";
-        return String.format(fmt, addr, b[addr], b[addr+1],b[addr+2], b[addr+3],b[addr+4], b[addr+5],
-                display_char(b[addr]),
-                display_char(b[addr+1]),
-                display_char(b[addr+2]),
-                display_char(b[addr+3]),
-                display_char(b[addr+4]),
-                display_char(b[addr+5]));
-    }
+    /**
+     * Number of lines read at once from a file
+     */
+    private static final int BLOCK_LINES = 6554;
 
-    private static String dump_7bytes(int addr, byte[] b){
-        var fmt = "%06X : %02X %02X %02X %02X %02X %02X %02X  | %c%c%c%c%c%c%c |%n";
-        return String.format(fmt, addr, b[addr], b[addr+1],b[addr+2], b[addr+3],b[addr+4], b[addr+5],b[addr+6],
-                display_char(b[addr]),
-                display_char(b[addr+1]),
-                display_char(b[addr+2]),
-                display_char(b[addr+3]),
-                display_char(b[addr+4]),
-                display_char(b[addr+5]),
-                display_char(b[addr+6]));
+    /**
+     * Format one line of at most 10 bytes. The layout is the one of the previous
+     * {@code String.format} based implementation (including the extra space for 6 to 8 bytes).
+     * @param out (StringBuilder) - Where to append the line
+     * @param addr (long) - Address of the first byte of the line
+     * @param b (byte[]) - Bytes to print
+     * @param off (int) - Index in b of the first byte of the line
+     * @param n (int) - Number of bytes of the line
+     */
+    private static void dump_line(StringBuilder out, long addr, byte[] b, int off, int n){
+        appendAddress(out, addr);
+        out.append(" : ");
+        for (int i = 0; i < n; i++) {
+            if (i > 0) out.append(' ');
+            out.append(HEX[(b[off + i] >>> 4) & 0xF]).append(HEX[b[off + i] & 0xF]);
+        }
+        out.append(n >= 6 && n <= 8 ? "  | " : " | ");
+        for (int i = 0; i < n; i++) out.append(display_char(b[off + i]));
+        out.append(" |").append(NEW_LINE);
     }
 
-    private static String dump_8bytes(int addr, byte[] b){
-        var fmt = "%06X : %02X %02X %02X %02X %02X %02X %02X %02X  | %c%c%c%c%c%c%c%c |%n";
-        return String.format(fmt, addr, b[addr], b[addr+1],b[addr+2], b[addr+3],b[addr+4], b[addr+5],b[addr+6], b[addr+7],
-                display_char(b[addr]),
-                display_char(b[addr+1]),
-                display_char(b[addr+2]),
-                display_char(b[addr+3]),
-                display_char(b[addr+4]),
-                display_char(b[addr+5]),
-                display_char(b[addr+6]),
-                display_char(b[addr+7]));
+    /**
+     * Append an address as "%06X"
+     */
+    private static void appendAddress(StringBuilder out, long addr){
+        int digits = Math.max(6, (64 - Long.numberOfLeadingZeros(addr) + 3) / 4);
+        for (int shift = (digits - 1) * 4; shift >= 0; shift -= 4)
+            out.append(HEX[(int) (addr >>> shift) & 0xF]);
     }
 
-    private static String dump_9bytes(int addr, byte[] b){
-        var fmt = "%06X : %02X %02X %02X %02X %02X %02X %02X %02X %02X | %c%c%c%c%c%c%c%c%c |%n";
-        return String.format(fmt, addr, b[addr], b[addr+1],b[addr+2], b[addr+3],b[addr+4], b[addr+5],b[addr+6],
-                b[addr+7], b[addr+8],
-                display_char(b[addr]),
-                display_char(b[addr+1]),
-                display_char(b[addr+2]),
-                display_char(b[addr+3]),
-                display_char(b[addr+4]),
-                display_char(b[addr+5]),
-                display_char(b[addr+6]),
-                display_char(b[addr+7]),
-                display_char(b[addr+8]));
+    private static void flushIfFull(StringBuilder out){
+        if (out.length() >= FLUSH_SIZE) flush(out);
     }
 
-    private static String dump_10bytes(int addr, byte[] b){
-        var fmt = "%06X : %02X %02X %02X %02X %02X %02X %02X %02X %02X %02X | %c%c%c%c%c%c%c%c%c%c |%n";
-        return String.format(fmt, addr, b[addr], b[addr+1],b[addr+2], b[addr+3],b[addr+4], b[addr+5],b[addr+6],
-                b[addr+7], b[addr+8],b[addr+9],
-                display_char(b[addr]),
-                display_char(b[addr+1]),
-                display_char(b[addr+2]),
-                display_char(b[addr+3]),
-                display_char(b[addr+4]),
-                display_char(b[addr+5]),
-                display_char(b[addr+6]),
-                display_char(b[addr+7]),
-                display_char(b[addr+8]),
-                display_char(b[addr+9]));
+    private static void flush(StringBuilder out){
+        System.out.print(out);
+        out.setLength(0);
     }
 
-
     private static char display_char(byte c){
         return Character.isISOControl(c) ? '.' : (char) c;
     }
@@ -0,0 +1,147 @@
+package cs107;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.stream.Stream;
+
+/**
+ * Catalog of the metadata of the images of a folder, gathered with {@link ImageProbe}
+ * (no image is decoded) and stored in a compact binary index.
+ * <p>
+ * Layout of an index (integers in "Big Endian"):
+ * <pre>
+ *     header  : "qoic", number of images (4)
+ *     entries : for each image, sorted by path:
+ *               length of the path (2), path (modified UTF-8, relative to the folder, with '/'),
+ *               format (1), width (4), height (4), channels (1), color space (1), file size (8)
+ * </pre>
+ * @version 1.0
+ * @since 1.0
+ */
+public final class ImageCatalog {
+
+    /**
+     * Magic number at the start of an index
+     */
+    public static final byte[] MAGIC = {'q', 'o', 'i', 'c'};
+
+    // ============================================================================================
+    // ======================================= CATALOG ============================================
+    // ============================================================================================
+
+    /**
+     * Probe, in parallel, the "QOI" and "PNG" files of a folder and its sub-folders
+     * @param folder (String) - The folder
+     * @return (List<ImageProbe.Info>) - Metadata of the images, sorted by path
+     *                                   (relative to the folder, with '/' as separator)
+     * @throws AssertionError if the folder is null
+     * @throws RuntimeException if the folder cannot be listed or an image cannot be probed
+     */
+    public static List<ImageProbe.Info> scan(String folder){
+        assert folder != null : "The folder is null";
+        Path root = Path.of(folder);
+        try (Stream<Path> walk = Files.walk(root)) {
+            return walk.filter(Files::isRegularFile)
+                    .filter(p -> p.toString().endsWith(".qoi") || p.toString().endsWith(".png"))
+                    .toList()
+                    .parallelStream()
+                    .map(p -> {
+                        var info = ImageProbe.probe(p.toString());
+                        String name = root.relativize(p).toString().replace(p.getFileSystem().getSeparator(), "/");
+                        return new ImageProbe.Info(name, info.format(), info.width(), info.height(),
+                                info.channels(), info.colorSpace(), info.fileSize());
+                    })
+                    .sorted(Comparator.comparing(ImageProbe.Info::path))
+                    .toList();
+        } catch (IOException e) {
+            return Helper.fail("An error occurred while trying to list : \"%s\"%n", folder);
+        }
+    }
+
+    /**
+     * Probe the images of a folder and write their index
+     * @param folder (String) - The folder
+     * @param index (String) - Path of the index to write (not in "res/")
+     * @return (int) - Number of images in the index
+     * @throws AssertionError if a path is null
+     * @throws RuntimeException if the folder cannot be probed or the index cannot be written
+     */
+    public static int build(String folder, String index){
+        assert index != null : "The index is null";
+        var images = scan(folder);
+        try {
+            Files.write(Path.of(index), serialize(images));
+        } catch (IOException e) {
+            Helper.fail("An error occurred while trying to write to : \"%s\"%n", index);
+        }
+        return images.size();
+    }
+
+    /**
+     * Read an index
+     * @param index (String) - Path of the index
+     * @return (List<ImageProbe.Info>) - Metadata of the images, sorted by path
+     * @throws AssertionError if the path is null
+     * @throws RuntimeException if the index cannot be read or is corrupted
+     */
+    public static List<ImageProbe.Info> read(String index){
+        assert index != null : "The index is null";
+        byte[] content = Helper.read(index);
+        try (var input = new DataInputStream(new ByteArrayInputStream(content))) {
+            byte[] magic = input.readNBytes(MAGIC.length);
+            if (!ArrayUtils.equals(magic, MAGIC)) Helper.fail("The file %s is not an image catalog", index);
+            int count = input.readInt();
+            var images = new ArrayList<ImageProbe.Info>(count);
+            ImageProbe.Format[] formats = ImageProbe.Format.values();
+            for (int i = 0; i < count; i++) {
+                String path = input.readUTF();
+                images.add(new ImageProbe.Info(path, formats[input.readByte()], input.readInt(), input.readInt(),
+                        input.readByte(), input.readByte(), input.readLong()));
+            }
+            return images;
+        } catch (IOException | IndexOutOfBoundsException e) {
+            return Helper.fail("The image catalog %s is corrupted", index);
+        }
+    }
+
+    /**
+     * Binary representation of a list of metadata
+     * @param images (List<ImageProbe.Info>) - The metadata
+     * @return (byte[]) - The index
+     */
+    public static byte[] serialize(List<ImageProbe.Info> images){
+        assert images != null : "The images are null";
+        var bytes = new ByteArrayOutputStream(images.size() * 48 + 8);
+        try (var output = new DataOutputStream(bytes)) {
+            output.write(MAGIC);
+            output.writeInt(images.size());
+            for (var image : images) {
+                output.writeUTF(image.path());
+                output.writeByte(image.format().ordinal());
+                output.writeInt(image.width());
+                output.writeInt(image.height());
+                output.writeByte(image.channels());
+                output.writeByte(image.colorSpace());
+                output.writeLong(image.fileSize());
+            }
+        } catch (IOException e) {
+            // A ByteArrayOutputStream cannot fail
+            throw new AssertionError(e);
+        }
+        return bytes.toByteArray();
+    }
+
+    // ============================================================================================
+
+    // Hide default constructor
+    private ImageCatalog(){}
+
+}
@@ -0,0 +1,246 @@
+package cs107;
+
+import java.util.Arrays;
+import java.util.stream.IntStream;
+
+/**
+ * Utility class used to compare two images pixel by pixel.
+ * Unlike {@link Diff}, which compares raw bytes, the images are decoded first ("QOI" or any format
+ * supported by {@link Helper#readImage(String)}) and compared in parallel strips of rows.
+ * The report gives the first differing pixel, the number of differing pixels,
+ * the maximal error of each channel and the PSNR.
+ * @version 1.0
+ * @since 1.0
+ */
+public final class ImageDiff {
+
+    /**
+     * Number of rows compared by one task
+     */
+    private static final int STRIP_HEIGHT = 64;
+
+    /**
+     * Result of a comparison
+     * @param width (int) - Width of the compared area
+     * @param height (int) - Height of the compared area
+     * @param firstX (int) - Column of the first differing pixel (row-major order), -1 if none
+     * @param firstY (int) - Row of the first differing pixel (row-major order), -1 if none
+     * @param differingPixels (long) - Number of differing pixels
+     * @param maxError (int[]) - Maximal absolute error of the R, G, B and A channels
+     * @param psnr (double) - Peak signal-to-noise ratio over the R, G, B (and A) channels in dB,
+     *             positive infinity if no pixel of the compared area differs
+     * @param sameSize (boolean) - True if both images have the same width and height
+     */
+    public record Result(int width, int height, int firstX, int firstY, long differingPixels,
+                         int[] maxError, double psnr, boolean sameSize){
+
+        /**
+         * @return (boolean) - True if the images have the same size and no pixel differs
+         */
+        public boolean identical(){
+            return sameSize && differingPixels == 0;
+        }
+    }
+
+    // ============================================================================================
+    // ===================================== IMAGE DIFF API =======================================
+    // ============================================================================================
+
+    /**
+     * Decode two images and print in the Terminal the difference between them
+     * @param file_1 (String) - Path of the first image ("QOI" or "PNG")
+     * @param file_2 (String) - Path of the second image ("QOI" or "PNG")
+     * @return (Result) - Result of the comparison
+     * @throws AssertionError if one of the paths is null
+     */
+    public static Result diff(String file_1, String file_2){
+        return diff(file_1, file_2, null);
+    }
+
+    /**
+     * Decode two images, print in the Terminal the difference between them and write a heatmap
+     * of the differing pixels (brighter is a bigger error). This function writes to the folder called "res/"
+     * @param file_1 (String) - Path of the first image ("QOI" or "PNG")
+     * @param file_2 (String) - Path of the second image ("QOI" or "PNG")
+     * @param mask_file (String) - Path of the "PNG" heatmap, null to skip it (skipped too when the common area is empty)
+     * @return (Result) - Result of the comparison
+     * @throws AssertionError if one of the input paths is null
+     */
+    public static Result diff(String file_1, String file_2, String mask_file){
+        assert file_1 != null;
+        assert file_2 != null;
+
+        var image_1 = load(file_1);
+        var image_2 = load(file_2);
+        showHeader(file_1, file_2, image_1, image_2);
+        var result = compare(image_1, image_2);
+        showResult(result);
+        if (mask_file != null && result.width() > 0 && result.height() > 0)
+            Helper.writeImage(mask_file, mask(image_1, image_2, result));
+        showEnd();
+        return result;
+    }
+
+    /**
+     * Compare two images. If their sizes differ, only the common top-left area is compared.
+     * @param image_1 (Helper.Image) - First image
+     * @param image_2 (Helper.Image) - Second image
+     * @return (Result) - Result of the comparison
+     * @throws AssertionError if one of the images is null
+     */
+    public static Result compare(Helper.Image image_1, Helper.Image image_2){
+        assert image_1 != null;
+        assert image_2 != null;
+
+        int[][] d1 = image_1.data();
+        int[][] d2 = image_2.data();
+        int height = Math.min(d1.length, d2.length);
+        int width  = Math.min(width(d1), width(d2));
+        int strips = (height + STRIP_HEIGHT - 1) / STRIP_HEIGHT;
+
+        var total = IntStream.range(0, strips).parallel()
+                .mapToObj(s -> compareStrip(d1, d2, width, s * STRIP_HEIGHT,
+                        Math.min(height, (s + 1) * STRIP_HEIGHT)))
+                .reduce(Strip::merge)
+                .orElseGet(Strip::new);
+
+        int channels = Math.max(image_1.channels(), image_2.channels());
+        double psnr = psnr(total.squaredErrors, (long) width * height * channels);
+        return new Result(width, height,
+                total.first < 0 ? -1 : (int) (total.first % width),
+                total.first < 0 ? -1 : (int) (total.first / width),
+                total.count, total.maxError, psnr, d1.length == d2.length && width(d1) == width(d2));
+    }
+
+    /**
+     * Decode an image, using the "Quite Ok Image" decoder if the file starts with its magic number
+     * @param path (String) - Path of the image
+     * @return (Helper.Image) - The decoded image
+     */
+    public static Helper.Image load(String path){
+        var content = Helper.read(path);
+        if (content.length >= QOISpecification.HEADER_SIZE && ArrayUtils.equals(
+                ArrayUtils.extract(content, 0, QOISpecification.QOI_MAGIC.length), QOISpecification.QOI_MAGIC))
+            return QOIDecoder.decodeQoiFile(content);
+        return Helper.readImage(path);
+    }
+
+    // ============================================================================================
+
+    // Hide default constructor
+    private ImageDiff(){}
+
+    /**
+     * Partial result of the comparison of a strip
+     */
+    private static final class Strip {
+        long first = -1;
+        long count;
+        long squaredErrors;
+        int[] maxError = new int[4];
+
+        Strip merge(Strip other){
+            if (first < 0 || (other.first >= 0 && other.first < first)) first = other.first;
+            count += other.count;
+            squaredErrors += other.squaredErrors;
+            for (int c = 0; c < 4; c++) maxError[c] = Math.max(maxError[c], other.maxError[c]);
+            return this;
+        }
+    }
+
+    private static Strip compareStrip(int[][] d1, int[][] d2, int width, int fromRow, int toRow){
+        var strip = new Strip();
+        for (int y = fromRow; y < toRow; y++) {
+            int[] row_1 = d1[y];
+            int[] row_2 = d2[y];
+            int x = Arrays.mismatch(row_1, 0, width, row_2, 0, width);
+            while (x >= 0) {
+                if (strip.first < 0) strip.first = (long) y * width + x;
+                strip.count++;
+                int argb_1 = row_1[x];
+                int argb_2 = row_2[x];
+                for (int c = 0; c < 4; c++) {
+                    // RGBA channel c is stored at bits 16, 8, 0 and 24 of an ARGB integer
+                    int shift = c == QOISpecification.a ? 24 : 16 - 8 * c;
+                    int error = Math.abs(((argb_1 >>> shift) & 0xFF) - ((argb_2 >>> shift) & 0xFF));
+                    strip.maxError[c] = Math.max(strip.maxError[c], error);
+                    strip.squaredErrors += (long) error * error;
+                }
+                if (++x >= width) break;
+                int next = Arrays.mismatch(row_1, x, width, row_2, x, width);
+                x = next < 0 ? -1 : x + next;
+            }
+        }
+        return strip;
+    }
+
+    /**
+     * @return (int) - Width of the image data, 0 if it has no row
+     */
+    private static int width(int[][] data){
+        return data.length == 0 ? 0 : data[0].length;
+    }
+
+    private static double psnr(long squaredErrors, long samples){
+        if (squaredErrors == 0) return Double.POSITIVE_INFINITY;
+        double mse = (double) squaredErrors / samples;
+        return 10 * Math.log10(255d * 255d / mse);
+    }
+
+    private static Helper.Image mask(Helper.Image image_1, Helper.Image image_2, Result result){
+        int[][] d1 = image_1.data();
+        int[][] d2 = image_2.data();
+        int[][] mask = new int[result.height()][result.width()];
+        int max = Math.max(1, Arrays.stream(result.maxError()).max().orElse(1));
+        IntStream.range(0, result.height()).parallel().forEach(y -> {
+            for (int x = 0; x < result.width(); x++) {
+                int xor = d1[y][x] ^ d2[y][x];
+                if (xor == 0) continue;
+                int error = 0;
+                for (int shift = 0; shift < 32; shift += 8) {
+                    int e = Math.abs(((d1[y][x] >>> shift) & 0xFF) - ((d2[y][x] >>> shift) & 0xFF));
+                    error = Math.max(error, e);
+                }
+                // Any difference is visible, the brightest pixel is the biggest error
+                int level = 64 + 191 * error / max;
+                mask[y][x] = 0xFF000000 | level << 16 | level << 8 | level;
+            }
+        });
+        return Helper.generateImage(mask, QOISpecification.RGB, QOISpecification.sRGB);
+    }
+
+    private static void showHeader(String file_1, String file_2, Helper.Image image_1, Helper.Image image_2){
+        System.out.println("======================================= IMAGE DIFF =======================================");
+        System.out.printf("== Image 1 : '%s', %dx%d, %d channels %n", file_1,
+                width(image_1.data()), image_1.data().length, image_1.channels());
+        System.out.printf("== Image 2 : '%s', %dx%d, %d channels %n", file_2,
+                width(image_2.data()), image_2.data().length, image_2.channels());
+        System.out.println("==========================================================================================");
+        if (image_1.data().length != image_2.data().length || width(image_1.data()) != width(image_2.data()))
+            System.out.println("== WARNING : The two images have different sizes, we will only check the common area");
+    }
+
+    private static void showResult(Result result){
+        if (result.identical()) {
+            System.out.println("== The two images have the same pixels");
+            return;
+        }
+        if (result.differingPixels() == 0) {
+            System.out.println("== The common area of the two images has the same pixels");
+            return;
+        }
+        long pixels = (long) result.width() * result.height();
+        System.out.printf("== First differing pixel : (x = %d, y = %d)%n", result.firstX(), result.firstY());
+        System.out.printf("== Differing pixels      : %d / %d (%.4f %%)%n",
+                result.differingPixels(), pixels, 100d * result.differingPixels() / pixels);
+        System.out.printf("== Max error (R G B A)   : %d %d %d %d%n", result.maxError()[QOISpecification.r],
+                result.maxError()[QOISpecification.g], result.maxError()[QOISpecification.b],
+                result.maxError()[QOISpecification.a]);
+        System.out.printf("== PSNR                  : %.2f dB%n", result.psnr());
+    }
+
+    private static void showEnd(){
+        System.out.println("===================================== END IMAGE DIFF =====================================");
+    }
+
+}
@@ -0,0 +1,132 @@
+package cs107;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+/**
+ * Metadata of an image file without decoding it.
+ * <p>
+ * For a "Quite Ok Image" file, only its header ({@link QOISpecification#HEADER_SIZE} bytes) is read
+ * and given to {@link QOIDecoder#decodeHeader(byte[])}. For a "PNG" file, only its IHDR chunk is
+ * read, plus the headers (8 bytes) of the chunks between IHDR and the first IDAT, to find a tRNS
+ * chunk: a transparency chunk gives an alpha channel to the image, as {@link Helper#readImage(String)}
+ * sees it.
+ * @version 1.0
+ * @since 1.0
+ */
+public final class ImageProbe {
+
+    /**
+     * Format of a probed file
+     */
+    public enum Format { QOI, PNG }
+
+    /**
+     * Metadata of an image file
+     * @param path (String) - Path of the file
+     * @param format (Format) - Format of the file
+     * @param width (int) - Width of the image
+     * @param height (int) - Height of the image
+     * @param channels (byte) - Number of channels of the image (3 or 4)
+     * @param colorSpace (byte) - Color space of the image
+     * @param fileSize (long) - Size of the file
+     */
+    public record Info(String path, Format format, int width, int height, byte channels, byte colorSpace, long fileSize){
+
+        /**
+         * @return (long) - Number of pixels of the image
+         */
+        public long pixels(){
+            return (long) width * height;
+        }
+
+        /**
+         * @return (long) - Memory taken by the decoded image (4 bytes per pixel)
+         */
+        public long decodedBytes(){
+            return pixels() * 4;
+        }
+    }
+
+    // Offsets in a "PNG" file
+    private static final int PNG_IHDR_TYPE  = 12;
+    private static final int PNG_IHDR_DATA  = 16;
+    private static final int PNG_IHDR_END   = 33;
+
+    // Colour types of a "PNG" image
+    private static final int PNG_GRAY_ALPHA = 4;
+    private static final int PNG_RGB_ALPHA  = 6;
+
+    // ============================================================================================
+    // ======================================== PROBE =============================================
+    // ============================================================================================
+
+    /**
+     * Read the metadata of a "QOI" or "PNG" file
+     * @param path (String) - Path of the file
+     * @return (Info) - The metadata
+     * @throws AssertionError if the path is null
+     * @throws RuntimeException if the file cannot be read or is neither a "QOI" nor a "PNG" file
+     */
+    public static Info probe(String path){
+        assert path != null : "The path is null";
+        try (var channel = FileChannel.open(Path.of(path), StandardOpenOption.READ)) {
+            var head = ByteBuffer.allocate(PNG_IHDR_END);
+            int read = Helper.read(channel, head, 0);
+            byte[] bytes = head.array();
+
+            if (read >= QOISpecification.HEADER_SIZE && startsWith(bytes, QOISpecification.QOI_MAGIC)) {
+                int[] header = QOIDecoder.decodeHeader(Arrays.copyOf(bytes, QOISpecification.HEADER_SIZE));
+                return new Info(path, Format.QOI, header[0], header[1], (byte) header[2], (byte) header[3], channel.size());
+            }
+            if (read == PNG_IHDR_END && startsWith(bytes, Pipe.PNG_SIGNATURE)
+                    && Arrays.equals(bytes, PNG_IHDR_TYPE, PNG_IHDR_DATA, new byte[]{'I', 'H', 'D', 'R'}, 0, 4)) {
+                int width = ArrayUtils.readInt(bytes, PNG_IHDR_DATA);
+                int height = ArrayUtils.readInt(bytes, PNG_IHDR_DATA + 4);
+                int colorType = bytes[PNG_IHDR_DATA + 9];
+                boolean alpha = colorType == PNG_GRAY_ALPHA || colorType == PNG_RGB_ALPHA
+                        || hasTransparencyChunk(channel, PNG_IHDR_END);
+                return new Info(path, Format.PNG, width, height,
+                        alpha ? QOISpecification.RGBA : QOISpecification.RGB, QOISpecification.sRGB, channel.size());
+            }
+            return Helper.fail("The file %s is neither a QOI nor a PNG file", path);
+        } catch (IOException e) {
+            return Helper.fail("An error occurred while trying to read from : \"%s\"%n", path);
+        }
+    }
+
+    /**
+     * Look for a tRNS chunk before the image data, reading only the headers of the chunks
+     * @param channel (FileChannel) - The "PNG" file
+     * @param position (long) - Offset of the chunk following IHDR
+     * @return (boolean) - true if the file has a tRNS chunk
+     */
+    private static boolean hasTransparencyChunk(FileChannel channel, long position) throws IOException {
+        var chunk = ByteBuffer.allocate(8);
+        while (true) {
+            chunk.clear();
+            if (Helper.read(channel, chunk, position) < 8) return false;
+            int length = chunk.getInt(0);
+            int type = chunk.getInt(4);
+            if (type == ArrayUtils.toInt(new byte[]{'t', 'R', 'N', 'S'})) return true;
+            if (type == ArrayUtils.toInt(new byte[]{'I', 'D', 'A', 'T'})
+                    || type == ArrayUtils.toInt(new byte[]{'I', 'E', 'N', 'D'}) || length < 0) return false;
+            // Header, data and CRC
+            position += 12L + length;
+        }
+    }
+
+    private static boolean startsWith(byte[] array, byte[] prefix){
+        return Arrays.equals(array, 0, prefix.length, prefix, 0, prefix.length);
+    }
+
+    // ============================================================================================
+
+    // Hide default constructor
+    private ImageProbe(){}
+
+}
@@ -0,0 +1,170 @@
+package cs107;
+
+import java.util.Arrays;
+
+/**
+ * "Quite Ok Image" file that can be updated when some rows of its image change,
+ * without encoding the whole image again.
+ * <p>
+ * While the image is encoded, the state of the encoder is recorded every {@code interval} rows
+ * (see {@link ReusableQOIEncoder.Checkpoint}). When rows change, the encoding resumes from
+ * the last checkpoint before them. After the changed rows, the new state is compared with the
+ * old checkpoints: as soon as both are the same, the rest of the file cannot change, so the
+ * old bytes are spliced after the new ones. The cost of an update is therefore proportional
+ * to the changed rows (plus at most {@code interval} rows before and after them, and
+ * a few more if a run or the hash table carries the change further).
+ * @version 1.0
+ * @since 1.0
+ */
+public final class IncrementalQOIEncoder {
+
+    /**
+     * Default number of rows between two checkpoints
+     */
+    public static final int DEFAULT_INTERVAL = 16;
+
+    private final int                               width;
+    private final int                               height;
+    private final byte                              channels;
+    private final byte                              colorSpace;
+    private final int                               interval;
+    private final ReusableQOIEncoder.Checkpoint[]   checkpoints;
+    private byte[]                                  file;
+
+    /**
+     * Encode an image, with a checkpoint every {@link #DEFAULT_INTERVAL} rows
+     * @param image (Helper.Image) - Image to encode
+     * @throws AssertionError if the image is null
+     */
+    public IncrementalQOIEncoder(Helper.Image image){
+        this(image, DEFAULT_INTERVAL);
+    }
+
+    /**
+     * Encode an image, recording the state of the encoder every given number of rows
+     * @param image (Helper.Image) - Image to encode
+     * @param interval (int) - Number of rows between two checkpoints
+     * @throws AssertionError if the image is null or the interval isn't positive
+     */
+    public IncrementalQOIEncoder(Helper.Image image, int interval){
+        assert image != null : "The image is null";
+        assert interval > 0 : "The interval is not positive";
+        int[][] data = image.data();
+        this.width = data[0].length;
+        this.height = data.length;
+        this.channels = image.channels();
+        this.colorSpace = image.color_space();
+        this.interval = interval;
+        this.checkpoints = new ReusableQOIEncoder.Checkpoint[(height + interval - 1) / interval];
+
+        var encoder = new ReusableQOIEncoder();
+        encoder.begin(width, height, channels, colorSpace);
+        for (int y = 0; y < height; y++) {
+            if (y % interval == 0) checkpoints[y / interval] = encoder.checkpoint();
+            encoder.encodeRow(data[y]);
+        }
+        encoder.end();
+        file = encoder.toByteArray();
+    }
+
+    // ============================================================================================
+    // ====================================== UPDATE ==============================================
+    // ============================================================================================
+
+    /**
+     * Update the file after a change of some rows of the image
+     * @param image (Helper.Image) - The changed image (same size, channels and color space)
+     * @param fromRow (int) - First changed row
+     * @param toRow (int) - Last changed row (exclusive)
+     * @return (int) - Number of rows encoded again
+     * @throws AssertionError if the image doesn't match the file or the rows are outside the image
+     */
+    public int update(Helper.Image image, int fromRow, int toRow){
+        assert image != null : "The image is null";
+        assert image.data().length == height && image.data()[0].length == width
+                && image.channels() == channels && image.color_space() == colorSpace
+                : "The image doesn't match the encoded one";
+        assert 0 <= fromRow && fromRow <= toRow && toRow <= height : "The rows are outside the image";
+        if (fromRow == toRow) return 0;
+
+        int[][] data = image.data();
+        int first = fromRow / interval;
+        var start = checkpoints[first];
+        var encoder = ReusableQOIEncoder.forThread();
+        encoder.resume(start, width, height - first * interval);
+
+        for (int y = first * interval; y < height; y++) {
+            if (y % interval == 0 && y > first * interval) {
+                var current = encoder.checkpoint();
+                var previous = checkpoints[y / interval];
+                if (y >= toRow && current.sameState(previous)) {
+                    splice(start, encoder, previous.offset(), y / interval, current.offset() - previous.offset());
+                    return y - first * interval;
+                }
+                checkpoints[y / interval] = current;
+            }
+            encoder.encodeRow(data[y]);
+        }
+        encoder.end();
+        splice(start, encoder, file.length, checkpoints.length, 0);
+        return height - first * interval;
+    }
+
+    /**
+     * Replace the bytes of the file between a checkpoint and an offset with the bytes of the encoder
+     * @param start (ReusableQOIEncoder.Checkpoint) - Checkpoint the encoder resumed from
+     * @param encoder (ReusableQOIEncoder) - Encoder holding the new bytes
+     * @param oldEnd (long) - End (exclusive) of the replaced bytes in the old file
+     * @param fromCheckpoint (int) - Index of the first checkpoint after the new bytes
+     * @param shift (long) - Difference between the new and old offsets of the bytes after oldEnd
+     */
+    private void splice(ReusableQOIEncoder.Checkpoint start, ReusableQOIEncoder encoder, long oldEnd,
+                        int fromCheckpoint, long shift){
+        int from = (int) start.offset();
+        int to = (int) oldEnd;
+        int size = encoder.size();
+        if (size == to - from) {
+            // Same length: overwrite in place
+            System.arraycopy(encoder.buffer(), 0, file, from, size);
+        } else {
+            byte[] updated = new byte[file.length - (to - from) + size];
+            System.arraycopy(file, 0, updated, 0, from);
+            System.arraycopy(encoder.buffer(), 0, updated, from, size);
+            System.arraycopy(file, to, updated, from + size, file.length - to);
+            file = updated;
+        }
+        for (int i = fromCheckpoint; i < checkpoints.length && shift != 0; i++) {
+            var c = checkpoints[i];
+            checkpoints[i] = new ReusableQOIEncoder.Checkpoint(c.offset() + shift, c.prevPixel(),
+                    c.runCounter(), c.hashTable());
+        }
+    }
+
+    // ============================================================================================
+    // ======================================= OUTPUT =============================================
+    // ============================================================================================
+
+    /**
+     * Give the "Quite Ok Image" file. The array is updated in place by {@link #update} when the
+     * length of the file doesn't change, copy it to keep a version.
+     * @return (byte[]) - The file
+     */
+    public byte[] file(){
+        return file;
+    }
+
+    /**
+     * @return (byte[]) - Copy of the "Quite Ok Image" file
+     */
+    public byte[] toByteArray(){
+        return Arrays.copyOf(file, file.length);
+    }
+
+    /**
+     * @return (int) - Number of rows between two checkpoints
+     */
+    public int interval(){
+        return interval;
+    }
+
+}
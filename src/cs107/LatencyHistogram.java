@@ -0,0 +1,109 @@
+package cs107;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Lock-free latency histogram with logarithmic buckets.
+ * Each power of two (in nanoseconds) is split in {@value #SUB_BUCKETS} linear sub-buckets,
+ * which bounds the relative error of a percentile to roughly 12%.
+ * Recording a value is a single atomic increment, so it can be called from any thread
+ * on the hot path of the codec.
+ * @version 1.0
+ * @since 1.0
+ */
+public final class LatencyHistogram {
+
+    /**
+     * Number of linear sub-buckets inside each power of two
+     */
+    private static final int SUB_BUCKETS = 8;
+
+    /**
+     * log2(SUB_BUCKETS)
+     */
+    private static final int SUB_BITS = 3;
+
+    private final AtomicLongArray buckets = new AtomicLongArray(64 * SUB_BUCKETS);
+    private final LongAdder count = new LongAdder();
+    private final LongAdder sum = new LongAdder();
+
+    // ==================================================================================
+    // ================================= RECORDING ======================================
+    // ==================================================================================
+
+    /**
+     * Record one observation
+     * @param nanos (long) - Observed latency in nanoseconds, negative values are clamped to 0
+     */
+    public void record(long nanos){
+        if (nanos < 0) nanos = 0;
+        buckets.incrementAndGet(bucketOf(nanos));
+        count.increment();
+        sum.add(nanos);
+    }
+
+    // ==================================================================================
+    // ================================== QUERIES =======================================
+    // ==================================================================================
+
+    /**
+     * @return (long) - Number of recorded observations
+     */
+    public long count(){
+        return count.sum();
+    }
+
+    /**
+     * @return (double) - Mean of the recorded observations in nanoseconds, 0 if empty
+     */
+    public double mean(){
+        long n = count.sum();
+        return n == 0 ? 0 : (double) sum.sum() / n;
+    }
+
+    /**
+     * Approximate the given percentile of the recorded observations
+     * @param p (double) - Percentile in [0, 100]
+     * @return (long) - Upper bound of the bucket holding the percentile, in nanoseconds (0 if empty)
+     * @throws AssertionError if p is outside [0, 100]
+     */
+    public long percentile(double p){
+        assert p >= 0 && p <= 100 : "The percentile is outside of [0, 100]";
+        long[] snapshot = new long[buckets.length()];
+        long total = 0;
+        for (int i = 0; i < snapshot.length; i++) {
+            snapshot[i] = buckets.get(i);
+            total += snapshot[i];
+        }
+        if (total == 0) return 0;
+
+        long rank = Math.max(1, (long) Math.ceil(p / 100 * total));
+        long seen = 0;
+        for (int i = 0; i < snapshot.length; i++) {
+            seen += snapshot[i];
+            if (seen >= rank) return upperBoundOf(i);
+        }
+        return upperBoundOf(snapshot.length - 1);
+    }
+
+    // ==================================================================================
+    // ============================== BUCKET ARITHMETIC =================================
+    // ==================================================================================
+
+    private static int bucketOf(long nanos){
+        if (nanos < SUB_BUCKETS) return (int) nanos;
+        int exponent = 63 - Long.numberOfLeadingZeros(nanos);
+        int sub = (int) (nanos >>> (exponent - SUB_BITS)) & (SUB_BUCKETS - 1);
+        return (exponent - SUB_BITS + 1) * SUB_BUCKETS + sub;
+    }
+
+    private static long upperBoundOf(int bucket){
+        if (bucket < SUB_BUCKETS) return bucket;
+        int exponent = bucket / SUB_BUCKETS + SUB_BITS - 1;
+        long sub = bucket % SUB_BUCKETS;
+        long base = 1L << exponent;
+        return base + ((sub + 1) << (exponent - SUB_BITS)) - 1;
+    }
+
+}
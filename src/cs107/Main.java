@@ -1,6 +1,38 @@
 package cs107;
 
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Flow;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BooleanSupplier;
+import java.util.stream.Stream;
+import java.util.zip.CRC32;
+import java.util.zip.DeflaterOutputStream;
 
 /**
  * Main entry point of the program.
@@ -23,6 +55,36 @@ public final class Main {
      * @param args (String[]) - Arguments passed to the program via the command line
      */
     public static void main(String[] args){
+        // Command line mode: convert the standard input to the standard output
+        if (args.length > 0) {
+            if (args.length == 1 && (args[0].equals("pipe") || args[0].equals("-"))) {
+                Pipe.run();
+                return;
+            }
+            if (args.length == 3 && args[0].equals("batch")) {
+                batch(args[1], args[2]);
+                return;
+            }
+            if (args.length == 3 && args[0].equals("watch")) {
+                var daemon = new WatchDaemon(args[1], args[2], Runtime.getRuntime().availableProcessors());
+                Runtime.getRuntime().addShutdownHook(new Thread(daemon::close));
+                daemon.run();
+                return;
+            }
+            if ((args.length == 3 || args.length == 4) && args[0].equals("tiles")) {
+                tiles(args[1], args[2], args.length == 4 ? Integer.parseInt(args[3]) : TileStore.DEFAULT_TILE_SIZE);
+                return;
+            }
+            System.err.println("Usage: java cs107.Main [pipe | - | batch <input folder> <output folder>");
+            System.err.println("                        | watch <spool folder> <output folder>");
+            System.err.println("                        | tiles <input folder> <store> [tile size]]");
+            System.err.println("  Without argument, run the tests. With 'pipe' (or '-'), read a PNG or QOI");
+            System.err.println("  image from the standard input and write it converted to the standard output.");
+            System.err.println("  With 'batch', convert every PNG and QOI image of a folder, smallest first.");
+            System.err.println("  With 'watch', convert the images dropped in a folder until interrupted.");
+            System.err.println("  With 'tiles', pack the images of a folder in a store encoding each distinct tile once.");
+            System.exit(2);
+        }
         /*
         We've listed all the test methods here.
         Once you've implemented a new functionality, you can uncomment
@@ -60,6 +122,8 @@ public final class Main {
         assert testQoiOpDiff();
         assert testQoiOpLuma();
         assert testQoiOpRun();
+        assert testEncodeDataLossy();
+        assert testEncodeRunAcrossRows();
         // assert testEncodeData();
 
         // ========== Test QOIDecoder ==========
@@ -69,8 +133,46 @@ public final class Main {
         assert testDecodeQoiOpDiff();
         assert testDecodeQoiOpLuma();
         assert testDecodeQoiOpRun();
+        assert testDecodeIndexAfterRun();
+        assert testDecodeStats();
         // assert testDecodeData();
 
+        // ========== Test QOISequence ==========
+        assert testSequence();
+
+        // ========== Test IncrementalQOIEncoder ==========
+        assert testIncrementalUpdate();
+
+        // ========== Test QOIFlow ==========
+        assert testFlow();
+
+        // ========== Test Stego ==========
+        assert testEstimateCapacity();
+        assert testEmbedPayload();
+
+        // ========== Test QOIArchive ==========
+        assert testArchive();
+
+        // ========== Test ImageProbe / ImageCatalog ==========
+        assert testProbe();
+        assert testCatalog();
+
+        // ========== Test ConversionScheduler ==========
+        assert testSchedulerConvert();
+        assert testSchedulerBudget();
+
+        // ========== Test ShortestJobFirstExecutor ==========
+        assert testShortestJobFirst();
+
+        // ========== Test WatchDaemon ==========
+        assert testWatchDaemon();
+
+        // ========== Test TileStore ==========
+        assert testTileStore();
+
+        // ========== Test PngReader / PngWriter ==========
+        assert testPngReader();
+        assert testPngWriter();
 
         // ========== Reference files conversions ==========
 //        pngToQoi("references/beach.png", "beach.qoi");
@@ -113,27 +215,170 @@ public final class Main {
 
     @SuppressWarnings("unused")
     public static void pngToQoi(String inputFile, String outputFile){
+        pngToQoi(inputFile, outputFile, false);
+    }
+
+    /**
+     * Encodes a given file from "PNG" to "QOI", one row at a time (see {@link Pipe#pngToQoi}):
+     * the image is never held in memory
+     * @param inputFile (String) - The path of the file to encode
+     * @param outputFile (String) - The path where to store the generated "Quite Ok Image"
+     * @param detectOpaque (boolean) - If true, an image with an alpha channel that is fully
+     *                     opaque is stored with 3 channels
+     */
+    @SuppressWarnings("unused")
+    public static void pngToQoi(String inputFile, String outputFile, boolean detectOpaque){
+        var event = new CodecEvents.Conversion();
+        event.begin();
+        try (var input = new BufferedInputStream(new FileInputStream(inputFile), 1 << 16);
+             var channel = Helper.openWrite(outputFile)) {
+            // Decode the PNG rows and encode them to QOI as they come
+            var output = new BufferedOutputStream(Channels.newOutputStream(channel), 1 << 16);
+            var converted = Pipe.pngToQoi(input, output);
+            output.flush();
+            byte channels = converted.channels();
+            // The chunks don't depend on the channels of the header: only the header is fixed
+            if (detectOpaque && channels == QOISpecification.RGBA && converted.opaque()) {
+                channels = QOISpecification.RGB;
+                channel.write(ByteBuffer.wrap(new byte[]{channels}), QOISpecification.HEADER_SIZE - 2);
+            }
+            commit(event, "pngToQoi", inputFile, outputFile, converted.width(), converted.height(),
+                    channels, converted.qoiBytes());
+        } catch (IOException e) {
+            Helper.fail("An error occurred while trying to convert \"%s\" : %s", inputFile, e.getMessage());
+        }
+    }
+
+    /**
+     * Encodes a given file from "PNG" to a near-lossless "QOI" and prints the compression
+     * ratio and the PSNR of the result
+     * @param inputFile (String) - The path of the file to encode
+     * @param outputFile (String) - The path where to store the generated "Quite Ok Image"
+     * @param maxError (int) - Maximal absolute error of the R, G and B channels, in [0, 255]
+     */
+    @SuppressWarnings("unused")
+    public static void pngToQoiLossy(String inputFile, String outputFile, int maxError){
         // Read a PNG file
         var inputImage = Helper.readImage(inputFile);
-        // Encode the Image to QOI
-        var outputFileContent = QOIEncoder.qoiFile(inputImage);
+        // Encode the Image to QOI, within the allowed error
+        var outputFileContent = QOIEncoder.qoiFileLossy(inputImage, maxError);
         // Write in binary mode the file content to 'output_file'
         Helper.write(outputFile, outputFileContent);
+        // Check the result with the standard decoder
+        var decoded = QOIDecoder.decodeQoiFile(outputFileContent);
+        var psnr = ImageDiff.compare(inputImage, decoded).psnr();
+        System.out.printf("Ratio : %.2f %%, PSNR : %.2f dB (max error %d)%n",
+                ratio(Helper.read(inputFile).length, outputFileContent.length), psnr, maxError);
     }
 
     /**
-     * Encodes a given file from "QOI" to "PNG"
+     * Encodes a given file from "QOI" to "PNG", one row at a time (see {@link Pipe#qoiToPng}):
+     * the image is never held in memory
      * @param inputFile (String) - The path of the file to decode
      * @param outputFile (String) - The path where to store the generated "PNG" Image
      */
     @SuppressWarnings("unused")
     public static void qoiToPng(String inputFile, String outputFile){
-        // Read in binary mode the file 'input_file'
-        var inputFileContent = Helper.read(inputFile);
-        // Decode the file using the 'QOI' decoder
-        var computedImage = QOIDecoder.decodeQoiFile(inputFileContent);
-        // Write an image to 'output_file'
-        Helper.writeImage(outputFile, computedImage);
+        var event = new CodecEvents.Conversion();
+        event.begin();
+        try (var input = FileChannel.open(Path.of(inputFile), StandardOpenOption.READ);
+             var channel = Helper.openWrite(outputFile)) {
+            // Decode the mapped QOI file and give its rows to the PNG writer as they come
+            var output = new BufferedOutputStream(Channels.newOutputStream(channel), 1 << 16);
+            var converted = Pipe.qoiToPng(input.map(FileChannel.MapMode.READ_ONLY, 0, input.size()), output);
+            output.flush();
+            commit(event, "qoiToPng", inputFile, outputFile, converted.width(), converted.height(),
+                    converted.channels(), 0);
+        } catch (IOException e) {
+            Helper.fail("An error occurred while trying to convert \"%s\" : %s", inputFile, e.getMessage());
+        }
+    }
+
+    /**
+     * Converts every "PNG" and "QOI" file of a folder (not its sub-folders) to the other format,
+     * the smallest images first and within the memory budget of a {@link ConversionScheduler},
+     * and prints the latencies per size of image. A file that cannot be converted is reported
+     * and the others are still converted.
+     * @param inputFolder (String) - The folder containing the files to convert
+     * @param outputFolder (String) - The folder where to store the converted files
+     */
+    public static void batch(String inputFolder, String outputFolder){
+        File[] files = new File(inputFolder).listFiles((folder, name) -> name.endsWith(".png") || name.endsWith(".qoi"));
+        if (files == null) Helper.fail("Cannot list the folder : \"%s\"%n", inputFolder);
+        new File(outputFolder).mkdirs();
+        int threads = Runtime.getRuntime().availableProcessors();
+        try (var scheduler = new ConversionScheduler(ConversionScheduler.defaultBudget(), threads);
+             var executor = new ShortestJobFirstExecutor(threads)) {
+            var conversions = new ArrayList<CompletableFuture<Boolean>>();
+            for (File file : files) {
+                String path = file.getPath();
+                String name = file.getName();
+                String converted = name.substring(0, name.length() - 4) + (name.endsWith(".png") ? ".qoi" : ".png");
+                CompletableFuture<byte[]> conversion;
+                try {
+                    // The executor picks the next file, its worker waits for the memory of the file
+                    // in the scheduler and converts it
+                    var info = ImageProbe.probe(path);
+                    conversion = executor.submit(info.pixels(), () -> scheduler.convertNow(info));
+                } catch (RuntimeException e) {
+                    conversion = CompletableFuture.failedFuture(e);
+                }
+                conversions.add(conversion.thenApply(content -> {
+                    try {
+                        // Written as is: Helper.write resolves its paths in "res/"
+                        Files.write(Path.of(outputFolder, converted), content);
+                    } catch (IOException e) {
+                        Helper.fail("An error occurred while trying to write to : \"%s\"%n", converted);
+                    }
+                    return true;
+                }).exceptionally(e -> {
+                    while (e instanceof CompletionException && e.getCause() != null) e = e.getCause();
+                    System.err.printf("Cannot convert %s : %s%n", name, e);
+                    return false;
+                }));
+            }
+            long failed = conversions.stream().filter(conversion -> !conversion.join()).count();
+            System.out.printf("Converted %d files, %d failed%n", files.length - failed, failed);
+            executor.printLatencies();
+        }
+    }
+
+    /**
+     * Packs the "PNG" and "QOI" files of a folder in a tile store and prints the deduplication
+     * @param inputFolder (String) - The folder containing the images
+     * @param store (String) - The path where to store the tile store
+     * @param tileSize (int) - Size of the tiles, in pixels
+     */
+    public static void tiles(String inputFolder, String store, int tileSize){
+        var report = TileStore.pack(inputFolder, store, tileSize);
+        System.out.printf("%d images, %d tiles, %d distinct : dedup ratio %.2f, %d bytes%n",
+                report.images(), report.tiles(), report.distinct(), report.dedupRatio(), report.bytes());
+        System.out.printf("Encoding : %.1f ms, saved about %.1f ms%n", report.encodeNanos() / 1e6, report.savedNanos() / 1e6);
+    }
+
+    /**
+     * Commit a conversion event with the details of the converted image
+     * @param event (CodecEvents.Conversion) - Started conversion event
+     * @param direction (String) - Name of the conversion
+     * @param inputFile (String) - The path of the converted file
+     * @param outputFile (String) - The path of the generated file
+     * @param width (int) - Width of the converted image
+     * @param height (int) - Height of the converted image
+     * @param channels (byte) - Number of channels of the generated image
+     * @param bytes (long) - Number of bytes written, 0 if unknown
+     */
+    private static void commit(CodecEvents.Conversion event, String direction, String inputFile,
+                               String outputFile, int width, int height, byte channels, long bytes){
+        if (event.shouldCommit()) {
+            event.direction = direction;
+            event.input = inputFile;
+            event.output = outputFile;
+            event.width = width;
+            event.height = height;
+            event.channels = channels;
+            event.bytes = bytes;
+            event.commit();
+        }
     }
 
     /**
@@ -374,6 +619,49 @@ public final class Main {
         return Arrays.equals(expected, encoding);
     }
 
+    @SuppressWarnings("unused")
+    private static boolean testEncodeRunAcrossRows(){
+        // The run of the first row is flushed by the second row, when the buffer was sized for the first
+        int[][] data = {{0xFF000000, 0xFF000000}, {0x12345678, 0x87654321}};
+        var image = Helper.generateImage(data, QOISpecification.RGBA, QOISpecification.sRGB);
+        byte[] expected = ArrayUtils.concat(QOIEncoder.qoiHeader(image),
+                new byte[]{-63, -1, 0x34, 0x56, 0x78, 0x12, -1, 0x65, 0x43, 0x21, -121}, QOISpecification.QOI_EOF);
+        var encoder = new ReusableQOIEncoder();
+        int size = encoder.encode(image);
+        return Arrays.equals(expected, Arrays.copyOf(encoder.buffer(), size));
+    }
+
+    private static boolean testEncodeDataLossy(){
+        // The run of start pixels fills the index 53 of the decoder, where the transparent pixel also falls
+        int[][] data = {{0xFF000000, 0xFF000000, 0x00100100, 0x00100100}};
+        if (!isWithinError(data, 16)) return false;
+        var random = new Random(42);
+        int[][] noisy = new int[16][16];
+        for (int[] line : noisy)
+            for (int x = 0; x < line.length; x++)
+                line[x] = random.nextInt(4) == 0 ? 0xFF000000 : (random.nextInt(3) - 1 & 0xFF) << 24 | random.nextInt(48) * 0x010101;
+        for (int maxError : new int[]{0, 1, 4, 16, 64})
+            if (!isWithinError(noisy, maxError)) return false;
+        return true;
+    }
+
+    /**
+     * Check that every channel decoded from a lossy encoding is at most maxError from the original, alpha exact
+     */
+    private static boolean isWithinError(int[][] data, int maxError){
+        byte[][] decoded = QOIDecoder.decodeData(QOIEncoder.encodeDataLossy(data, maxError), data[0].length, data.length);
+        for (int y = 0; y < data.length; y++) {
+            for (int x = 0; x < data[y].length; x++) {
+                int pixel = data[y][x];
+                byte[] rgba = decoded[y * data[y].length + x];
+                if ((rgba[3] & 0xFF) != pixel >>> 24) return false;
+                for (int c = 0; c < 3; c++)
+                    if (Math.abs((rgba[c] & 0xFF) - (pixel >>> (16 - 8 * c) & 0xFF)) > maxError) return false;
+            }
+        }
+        return true;
+    }
+
     // ============================================================================================
     // ============================== QOIDecoder examples =========================================
     // ============================================================================================
@@ -438,6 +726,718 @@ public final class Main {
         return Arrays.deepEquals(expectedBuffer, buffer) && (returnedValue == 3);
     }
 
+    @SuppressWarnings("unused")
+    private static boolean testDecodeIndexAfterRun(){
+        // A run of the start pixel, a pixel in full, then the start pixel again from its index (53)
+        byte[] encoding = {-64, -2, 10, 20, 30, 53};
+        byte[][] expected = {{0, 0, 0, -1}, {10, 20, 30, -1}, {0, 0, 0, -1}};
+        int[][] expectedImage = {{0xFF000000, 0xFF0A141E, 0xFF000000}};
+        if (!Arrays.deepEquals(expected, QOIDecoder.decodeData(encoding, 3, 1))) return false;
+        // Both the RGBA and the RGB paths of decodeQoiFile
+        for (byte channels : new byte[]{QOISpecification.RGBA, QOISpecification.RGB}) {
+            Helper.Image image = Helper.generateImage(expectedImage, channels, QOISpecification.sRGB);
+            byte[] file = ArrayUtils.concat(QOIEncoder.qoiHeader(image), encoding, QOISpecification.QOI_EOF);
+            if (!Arrays.deepEquals(expectedImage, QOIDecoder.decodeQoiFile(file).data())) return false;
+        }
+        return true;
+    }
+
+    private static boolean testDecodeStats(){
+        // The decoder counts the ops as the encoder does: pixels for the runs, chunks for the others
+        var image = Helper.readImage("references/cube.png");
+        var encoder = new ReusableQOIEncoder();
+        int size = encoder.encode(image);
+        var decoder = new ReusableQOIDecoder();
+        decoder.decode(Arrays.copyOf(encoder.buffer(), size));
+        return Arrays.equals(encoder.stats(), decoder.stats());
+    }
+
+    private static boolean testSequence(){
+        int width = 24;
+        int height = 16;
+        var random = new Random(7);
+        int[][] frames = new int[10][width * height];
+        for (int i = 0; i < frames[0].length; i++) frames[0][i] = 0xFF000000 | (i % width) * 8 << 8 | (i / width) * 12;
+        for (int f = 1; f < frames.length; f++) {
+            frames[f] = frames[f - 1].clone();
+            // A small moving rectangle, and a frame that changes everywhere
+            int left = random.nextInt(width - 4);
+            int top = random.nextInt(height - 4);
+            for (int y = top; y < top + 4; y++)
+                for (int x = left; x < left + 4; x++) frames[f][y * width + x] = random.nextInt();
+            if (f == 6) for (int i = 0; i < frames[f].length; i++) frames[f][i] = random.nextInt();
+        }
+
+        var stream = new ByteArrayOutputStream();
+        try (var writer = new QOISequence.Writer(stream, width, height, QOISpecification.RGBA,
+                QOISpecification.sRGB, 4)) {
+            for (int[] frame : frames) {
+                int[][] data = new int[height][];
+                for (int y = 0; y < height; y++) data[y] = Arrays.copyOfRange(frame, y * width, (y + 1) * width);
+                writer.write(Helper.generateImage(data, QOISpecification.RGBA, QOISpecification.sRGB));
+            }
+        } catch (IOException e) {
+            return false;
+        }
+
+        var reader = new QOISequence.Reader(stream.toByteArray());
+        if (reader.frameCount() != frames.length || !reader.isKeyframe(0) || !reader.isKeyframe(4)) return false;
+        // In order, then seeking backward and forward (from a keyframe or from the current frame)
+        for (int i = 0; i < frames.length; i++)
+            if (!Arrays.equals(frames[i], reader.frame(i))) return false;
+        for (int i : new int[]{2, 9, 3, 0, 7, 7, 8, 5, 1})
+            if (!Arrays.equals(frames[i], reader.frame(i))) return false;
+        return true;
+    }
+
+    private static boolean testIncrementalUpdate(){
+        int width = 32;
+        int height = 40;
+        var random = new Random(41);
+        // Flat areas (runs), gradients (diffs) and a few transparent pixels
+        int[][] data = new int[height][width];
+        for (int y = 0; y < height; y++)
+            for (int x = 0; x < width; x++)
+                data[y][x] = y < height / 2 ? 0xFF000000 | (x / 8) * 40 << 16 : 0xFF000000 | x * 4 << 8 | y * 3;
+        data[5][7] = 0x80102030;
+        var image = Helper.generateImage(data, QOISpecification.RGBA, QOISpecification.sRGB);
+        var incremental = new IncrementalQOIEncoder(image, 4);
+
+        if (!Arrays.equals(incremental.file(), QOIEncoder.qoiFile(image, null, false))) return false;
+        for (int edit = 0; edit < 40; edit++) {
+            int fromRow = random.nextInt(height);
+            int toRow = Math.min(height, fromRow + 1 + random.nextInt(3));
+            for (int y = fromRow; y < toRow; y++) {
+                int x = random.nextInt(width);
+                // A new color, a copy of a neighbour (longer or shorter runs) or a transparent pixel
+                data[y][x] = switch (random.nextInt(3)) {
+                    case 0 -> 0xFF000000 | random.nextInt(1 << 24);
+                    case 1 -> data[y][(x + 1) % width];
+                    default -> random.nextInt(256) << 24 | random.nextInt(1 << 24);
+                };
+            }
+            incremental.update(image, fromRow, toRow);
+            if (!Arrays.equals(incremental.file(), QOIEncoder.qoiFile(image, null, false))) return false;
+        }
+        return true;
+    }
+
+    private static boolean testFlow(){
+        var random = new Random(39);
+        // Runs pending at the end of a row, flushed by rows of RGBA chunks
+        int[][] data = new int[6][8];
+        for (int y = 1; y < data.length; y += 2)
+            for (int x = 0; x < data[y].length; x++) data[y][x] = random.nextInt();
+        for (int y = 0; y < data.length; y += 2) Arrays.fill(data[y], 0xFF000000);
+        return testFlow(Helper.readImage("references/cube.png"), random)
+                && testFlow(Helper.generateImage(data, QOISpecification.RGBA, QOISpecification.sRGB), random);
+    }
+
+    private static boolean testFlow(Helper.Image image, Random random){
+        int[][] data = image.data();
+        int width = data[0].length;
+        byte[] file = QOIEncoder.qoiFile(image, null, false);
+
+        // Pixels in buffers of random sizes, a pixel being split between two buffers at times
+        var pixels = ByteBuffer.allocate(width * data.length * 4);
+        for (int[] row : data) for (int pixel : row) pixels.putInt(pixel);
+        var encoded = flow(new QOIFlow.Encoder(width, data.length, image.channels(), image.color_space()),
+                split(pixels.array(), random));
+        if (encoded == null || !Arrays.equals(file, concat(encoded))) return false;
+
+        // The file in pieces of random sizes, one row per output
+        var rows = flow(new QOIFlow.Decoder(), split(file, random));
+        if (rows == null || rows.size() != data.length) return false;
+        for (int y = 0; y < data.length; y++) {
+            int[] row = new int[width];
+            rows.get(y).asIntBuffer().get(row);
+            if (!Arrays.equals(data[y], row)) return false;
+        }
+        return true;
+    }
+
+    /**
+     * Give buffers to a processor, one at a time when it asks for one, and gather its outputs
+     * (requested one at a time too)
+     * @return (List<ByteBuffer>) - The outputs, null if the processor failed
+     */
+    private static List<ByteBuffer> flow(Flow.Processor<ByteBuffer, ByteBuffer> processor, List<ByteBuffer> inputs){
+        var outputs = new ArrayList<ByteBuffer>();
+        var failed = new boolean[1];
+        processor.subscribe(new Flow.Subscriber<>() {
+            private Flow.Subscription subscription;
+            @Override public void onSubscribe(Flow.Subscription subscription){
+                this.subscription = subscription;
+                subscription.request(1);
+            }
+            @Override public void onNext(ByteBuffer item){
+                outputs.add(item);
+                subscription.request(1);
+            }
+            @Override public void onError(Throwable throwable){
+                failed[0] = true;
+            }
+            @Override public void onComplete(){}
+        });
+        processor.onSubscribe(new Flow.Subscription() {
+            private int next;
+            @Override public void request(long n){
+                for (long i = 0; i < n && next < inputs.size(); i++) processor.onNext(inputs.get(next++));
+                if (next == inputs.size()) {
+                    next++;
+                    processor.onComplete();
+                }
+            }
+            @Override public void cancel(){
+                next = inputs.size() + 1;
+            }
+        });
+        return failed[0] ? null : outputs;
+    }
+
+    /**
+     * @return (List<ByteBuffer>) - The bytes, in buffers of 1 to 64 bytes
+     */
+    private static List<ByteBuffer> split(byte[] bytes, Random random){
+        var buffers = new ArrayList<ByteBuffer>();
+        for (int i = 0; i < bytes.length; ) {
+            int length = Math.min(bytes.length - i, 1 + random.nextInt(64));
+            buffers.add(ByteBuffer.wrap(Arrays.copyOfRange(bytes, i, i + length)));
+            i += length;
+        }
+        return buffers;
+    }
+
+    /**
+     * @return (byte[]) - The remaining bytes of the buffers, one after the other
+     */
+    private static byte[] concat(List<ByteBuffer> buffers){
+        var output = new ByteArrayOutputStream();
+        for (var buffer : buffers) {
+            byte[] bytes = new byte[buffer.remaining()];
+            buffer.get(bytes);
+            output.writeBytes(bytes);
+        }
+        return output.toByteArray();
+    }
+
+    private static boolean testEstimateCapacity(){
+        // A few QOI_OP_RGB chunks spread over a large image: the samples must not overestimate them
+        var image = Helper.readImage("references/EPFL.png");
+        long capacity = Stego.capacity(image);
+        for (double fraction : new double[]{0.1, 0.25, 0.5})
+            if (Stego.estimateCapacity(image, fraction) > capacity) return false;
+        return Stego.estimateCapacity(image, 1) == capacity;
+    }
+
+    private static boolean testEmbedPayload(){
+        var random = new Random(32);
+        // Noise: a QOI_OP_RGB chunk, hence 3 bits, per pixel
+        int[][] data = new int[32][32];
+        for (int[] row : data) for (int x = 0; x < row.length; x++) row[x] = 0xFF000000 | random.nextInt(1 << 24);
+        var image = Helper.generateImage(data, QOISpecification.RGB, QOISpecification.sRGB);
+        byte[] payload = new byte[300];
+        random.nextBytes(payload);
+        if (!Stego.fits(image, payload.length) || Stego.fits(image, 400)) return false;
+
+        // Only the announced length of the stream is read and hidden
+        var extracted = new ByteArrayOutputStream();
+        var stream = new ByteArrayInputStream(payload);
+        byte[] file = Stego.embed(image, stream, 200);
+        if (stream.available() != 100 || Stego.extract(file, extracted) != 200
+                || !Arrays.equals(Arrays.copyOf(payload, 200), extracted.toByteArray())) return false;
+
+        var buffer = ByteBuffer.wrap(payload);
+        extracted.reset();
+        file = Stego.embed(image, buffer);
+        if (buffer.position() != 0 || Stego.extract(file, extracted) != payload.length
+                || !Arrays.equals(payload, extracted.toByteArray())) return false;
+        // An image without payload
+        return Stego.extract(QOIEncoder.qoiFile(image, null, false), new ByteArrayOutputStream()) == -1;
+    }
+
+    private static boolean testArchive(){
+        Path folder = null;
+        try {
+            folder = Files.createTempDirectory("qoi-archive");
+            Path images = folder.resolve("images");
+            copyReference(images, "cube.png", "cube.png");
+            copyReference(images, "qoi_op_rgb.qoi", "icons/rgb.qoi");
+            copyReference(images, "qoi_encode_test.qoi", "test.qoi");
+            String path = folder.resolve("images.qoia").toString();
+            if (QOIArchive.pack(images.toString(), path) != 3) return false;
+
+            var archive = new QOIArchive(path);
+            var names = archive.entries().stream().map(QOIArchive.Entry::name).toList();
+            if (!names.equals(List.of("cube.png", "icons/rgb.qoi", "test.qoi")) || archive.entry("rgb.qoi") != null)
+                return false;
+            var cube = Helper.readImage("references/cube.png");
+            var entry = archive.entry("cube.png");
+            if (entry.width() != cube.data()[0].length || entry.height() != cube.data().length
+                    || !Arrays.deepEquals(cube.data(), archive.decode("cube.png").data())) return false;
+            // The "QOI" files are stored as they are
+            for (String name : new String[]{"icons/rgb.qoi", "test.qoi"}) {
+                byte[] file = Files.readAllBytes(images.resolve(name));
+                var content = archive.content(name);
+                byte[] stored = new byte[content.remaining()];
+                content.get(stored);
+                if (!Arrays.equals(file, stored)
+                        || !Arrays.deepEquals(QOIDecoder.decodeQoiFile(file).data(), archive.decode(name).data()))
+                    return false;
+            }
+            return true;
+        } catch (IOException e) {
+            return false;
+        } finally {
+            deleteFolder(folder);
+        }
+    }
+
+    private static boolean testProbe(){
+        // The headers of every reference image, compared with the decoded images
+        for (String name : new String[]{"cube", "dice", "EPFL", "random", "qoi_op_rgba", "qoi_encode_test"}) {
+            var png = ImageProbe.probe("references/" + name + ".png");
+            var image = Helper.readImage("references/" + name + ".png");
+            if (png.format() != ImageProbe.Format.PNG || png.width() != image.data()[0].length
+                    || png.height() != image.data().length || png.channels() != image.channels()) return false;
+            byte[] file = Helper.read("references/" + name + ".qoi");
+            var qoi = ImageProbe.probe("references/" + name + ".qoi");
+            image = QOIDecoder.decodeQoiFile(file);
+            if (qoi.format() != ImageProbe.Format.QOI || qoi.width() != image.data()[0].length
+                    || qoi.height() != image.data().length || qoi.channels() != image.channels()
+                    || qoi.colorSpace() != image.color_space() || qoi.fileSize() != file.length) return false;
+        }
+        return true;
+    }
+
+    private static boolean testCatalog(){
+        Path folder = null;
+        try {
+            folder = Files.createTempDirectory("qoi-catalog");
+            Path images = folder.resolve("images");
+            copyReference(images, "dice.png", "dice.png");
+            copyReference(images, "random.qoi", "b/random.qoi");
+            copyReference(images, "qoi_op_luma.png", "a/luma.png");
+            String index = folder.resolve("images.qoic").toString();
+            if (ImageCatalog.build(images.toString(), index) != 3) return false;
+
+            var catalog = ImageCatalog.read(index);
+            if (!catalog.equals(ImageCatalog.scan(images.toString()))) return false;
+            // Sorted by path, relative to the folder, with the metadata of the files
+            var paths = catalog.stream().map(ImageProbe.Info::path).toList();
+            if (!paths.equals(List.of("a/luma.png", "b/random.qoi", "dice.png"))) return false;
+            for (var info : catalog) {
+                var probe = ImageProbe.probe(images.resolve(info.path()).toString());
+                if (!info.equals(new ImageProbe.Info(info.path(), probe.format(), probe.width(), probe.height(),
+                        probe.channels(), probe.colorSpace(), probe.fileSize()))) return false;
+            }
+            return true;
+        } catch (IOException e) {
+            return false;
+        } finally {
+            deleteFolder(folder);
+        }
+    }
+
+    private static boolean testSchedulerConvert(){
+        var scheduler = new ConversionScheduler(1 << 20, 2);
+        try (scheduler) {
+            var png = scheduler.convert("references/cube.png");
+            var qoi = scheduler.convert("references/dice.qoi");
+            byte[] converted = scheduler.convertNow(ImageProbe.probe("references/random.qoi"));
+            // The conversions of Pipe, whatever the thread
+            var expected = new ByteArrayOutputStream();
+            Pipe.convert(new FileInputStream("references/dice.qoi"), expected);
+            if (!Arrays.equals(Helper.read("references/cube.qoi"), png.join())
+                    || !Arrays.equals(expected.toByteArray(), qoi.join())) return false;
+            expected.reset();
+            Pipe.convert(new FileInputStream("references/random.qoi"), expected);
+            if (!Arrays.equals(expected.toByteArray(), converted)) return false;
+        } catch (IOException | CompletionException e) {
+            return false;
+        }
+        // Closed: every conversion gave its memory back
+        return scheduler.availableBytes() == 1 << 20;
+    }
+
+    private static boolean testSchedulerBudget(){
+        long budget = 1 << 20;
+        var running = new AtomicInteger();
+        var overlap = new AtomicBoolean();
+        var order = Collections.synchronizedList(new ArrayList<Integer>());
+        var scheduler = new ConversionScheduler(budget, 4);
+        try (scheduler) {
+            // More than half of the budget each (the fourth more than the whole budget):
+            // one at a time, in submission order
+            var jobs = new ArrayList<CompletableFuture<Integer>>();
+            for (int i = 0; i < 8; i++) {
+                int id = i;
+                jobs.add(scheduler.submit(i == 3 ? 4 * budget : budget * 3 / 5, () -> {
+                    if (running.incrementAndGet() > 1) overlap.set(true);
+                    order.add(id);
+                    Thread.sleep(2);
+                    running.decrementAndGet();
+                    return id;
+                }));
+            }
+            jobs.forEach(CompletableFuture::join);
+            if (overlap.get() || !order.equals(List.of(0, 1, 2, 3, 4, 5, 6, 7))) return false;
+
+            // Small enough to run together: each one waits for the others
+            var together = new CountDownLatch(4);
+            var small = new ArrayList<CompletableFuture<Boolean>>();
+            for (int i = 0; i < 4; i++)
+                small.add(scheduler.submit(budget / 8, () -> {
+                    together.countDown();
+                    return together.await(10, TimeUnit.SECONDS);
+                }));
+            for (var job : small) if (!job.join()) return false;
+        }
+        return scheduler.availableBytes() == budget && scheduler.queued() == 0;
+    }
+
+    private static boolean testShortestJobFirst(){
+        // Submitted together: the smallest first (1 ms of aging per pixel), the same size in submission order
+        if (!runOrder(1_000_000, new long[]{1000, 10, 100, 1, 10}, 0).equals(List.of(3, 1, 4, 2, 0))) return false;
+        // Without aging, in submission order
+        if (!runOrder(0, new long[]{1000, 10, 100, 1}, 0).equals(List.of(0, 1, 2, 3))) return false;
+        // A large job is not overtaken by the small ones arriving after its deadline (1 ms)
+        if (!runOrder(1, new long[]{1_000_000, 1, 1}, 20).equals(List.of(0, 1, 2))) return false;
+
+        var executor = new ShortestJobFirstExecutor(2);
+        try (executor) {
+            var qoi = executor.convert("references/cube.png");
+            var png = executor.convert("references/qoi_op_rgba.qoi");
+            if (!Arrays.equals(Helper.read("references/cube.qoi"), qoi.join())) return false;
+            var expected = new ByteArrayOutputStream();
+            Pipe.convert(new FileInputStream("references/qoi_op_rgba.qoi"), expected);
+            if (!Arrays.equals(expected.toByteArray(), png.join())) return false;
+        } catch (IOException | CompletionException e) {
+            return false;
+        }
+        // Closed: the latency of every job is recorded
+        return executor.latency(ShortestJobFirstExecutor.SizeClass.THUMBNAIL).count() == 2
+                && executor.latency(ShortestJobFirstExecutor.SizeClass.MEDIUM).count() == 0;
+    }
+
+    /**
+     * Run jobs on a single worker, kept busy until they are all submitted
+     * @param agingNanosPerPixel (long) - Aging rate of the executor
+     * @param pixels (long[]) - Size of each job, in submission order
+     * @param pauseMillis (long) - Time between two submissions
+     * @return (List<Integer>) - Indices of the jobs, in execution order
+     */
+    private static List<Integer> runOrder(long agingNanosPerPixel, long[] pixels, long pauseMillis){
+        var order = Collections.synchronizedList(new ArrayList<Integer>());
+        var busy = new CountDownLatch(1);
+        try (var executor = new ShortestJobFirstExecutor(1, agingNanosPerPixel)) {
+            executor.submit(0, () -> busy.await(10, TimeUnit.SECONDS));
+            for (int i = 0; i < pixels.length; i++) {
+                int id = i;
+                executor.submit(pixels[i], () -> order.add(id));
+                if (pauseMillis > 0) Thread.sleep(pauseMillis);
+            }
+            busy.countDown();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        return List.copyOf(order);
+    }
+
+    private static boolean testWatchDaemon(){
+        Path folder = null;
+        try {
+            folder = Files.createTempDirectory("qoi-watch");
+            Path spool = folder.resolve("spool");
+            Path output = folder.resolve("output");
+            copyReference(spool, "cube.png", "cube.png");
+            copyReference(spool, "qoi_op_luma.qoi", "luma.qoi");
+            var expected = new ByteArrayOutputStream();
+            Pipe.convert(new FileInputStream("references/qoi_op_luma.qoi"), expected);
+
+            var daemon = new WatchDaemon(spool.toString(), output.toString(), 2);
+            var thread = new Thread(daemon::run);
+            thread.start();
+            if (!waitFor(() -> daemon.conversions() == 2)) return false;
+            // Deleted from the spool folder: dropped from the state file
+            Files.delete(spool.resolve("cube.png"));
+            Thread.sleep(WatchDaemon.SETTLE_MILLIS);
+            daemon.close();
+            thread.join();
+            if (daemon.failures() != 0
+                    || !Arrays.equals(Helper.read("references/cube.qoi"), Files.readAllBytes(output.resolve("cube.qoi")))
+                    || !Arrays.equals(expected.toByteArray(), Files.readAllBytes(output.resolve("luma.png"))))
+                return false;
+            var state = Files.readAllLines(output.resolve(WatchDaemon.STATE_FILE));
+            if (state.size() != 1 || !state.get(0).endsWith(" luma.qoi")) return false;
+
+            // Restarted: only the new file is converted
+            copyReference(spool, "dice.qoi", "dice.qoi");
+            var restarted = new WatchDaemon(spool.toString(), output.toString(), 2);
+            thread = new Thread(restarted::run);
+            thread.start();
+            if (!waitFor(() -> restarted.conversions() == 1)) return false;
+            Thread.sleep(WatchDaemon.SETTLE_MILLIS);
+            restarted.close();
+            thread.join();
+            try (Stream<Path> files = Files.list(output)) {
+                // No partial file left
+                if (files.count() != 4) return false;
+            }
+            return restarted.conversions() == 1 && restarted.failures() == 0
+                    && Files.readAllLines(output.resolve(WatchDaemon.STATE_FILE)).size() == 2;
+        } catch (IOException e) {
+            return false;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        } finally {
+            deleteFolder(folder);
+        }
+    }
+
+    private static boolean testTileStore(){
+        Path folder = null;
+        try {
+            folder = Files.createTempDirectory("qoi-tiles");
+            Path images = folder.resolve("images");
+            copyReference(images, "cube.png", "cube.png");
+            copyReference(images, "cube.qoi", "copy/cube.qoi");
+            // The same 32x32 tile repeated, then cut to 16 rows
+            var random = new Random(48);
+            int[][] tile = new int[32][32];
+            for (int[] row : tile) for (int x = 0; x < row.length; x++) row[x] = 0xFF000000 | random.nextInt(1 << 24);
+            int[][] data = new int[80][96];
+            for (int y = 0; y < data.length; y++)
+                for (int x = 0; x < data[y].length; x++) data[y][x] = tile[y % 32][x % 32];
+            var pattern = Helper.generateImage(data, QOISpecification.RGB, QOISpecification.sRGB);
+            try (var output = new BufferedOutputStream(Files.newOutputStream(images.resolve("pattern.png")))) {
+                PngWriter.write(pattern, output, PngWriter.DEFAULT_LEVEL);
+            }
+
+            String path = folder.resolve("images.qoit").toString();
+            var report = TileStore.pack(images.toString(), path, 32);
+            var store = new TileStore(path);
+            // 72 tiles per cube, the copy adding none, and 2 distinct tiles for the pattern
+            if (report.images() != 3 || report.tiles() != 2 * 72 + 9 || report.distinct() > 72 + 2
+                    || report.distinct() != store.distinctTiles() || report.bytes() != Files.size(Path.of(path)))
+                return false;
+            if (!store.names().equals(List.of("copy/cube.qoi", "cube.png", "pattern.png"))) return false;
+            var cube = Helper.readImage("references/cube.png");
+            for (String name : new String[]{"copy/cube.qoi", "cube.png"}) {
+                var image = store.image(name);
+                if (image.channels() != cube.channels() || !Arrays.deepEquals(cube.data(), image.data())) return false;
+            }
+            var image = store.image("pattern.png");
+            return image.channels() == QOISpecification.RGB && Arrays.deepEquals(data, image.data());
+        } catch (IOException e) {
+            return false;
+        } finally {
+            deleteFolder(folder);
+        }
+    }
+
+    private static boolean testPngReader(){
+        try {
+            // The reference images (RGBA, of every filter), then an RGB image written by ImageIO
+            for (String name : new String[]{"cube", "dice", "EPFL", "random", "qoi_op_luma"}) {
+                byte[] file = Helper.read("references/" + name + ".png");
+                if (!Arrays.deepEquals(imageIORows(file), pngRows(file, QOISpecification.RGBA))) return false;
+            }
+            var random = new Random(49);
+            var rgb = new BufferedImage(37, 23, BufferedImage.TYPE_INT_RGB);
+            for (int y = 0; y < rgb.getHeight(); y++)
+                for (int x = 0; x < rgb.getWidth(); x++) rgb.setRGB(x, y, x < 20 ? x * y * 97 : random.nextInt());
+            byte[] file = imageIOFile(rgb);
+            if (!Arrays.deepEquals(imageIORows(file), pngRows(file, QOISpecification.RGB))) return false;
+            // Random pixels, with the five filters in turn
+            int[][] data = new int[40][29];
+            for (int[] row : data) for (int x = 0; x < row.length; x++) row[x] = random.nextInt();
+            if (!Arrays.deepEquals(data, pngRows(filteredPng(data), QOISpecification.RGBA))) return false;
+
+            // Grey levels: given back as they are for ImageIO
+            file = imageIOFile(new BufferedImage(8, 8, BufferedImage.TYPE_BYTE_GRAY));
+            try (var reader = new PngReader(new ByteArrayInputStream(file))) {
+                return !reader.isSupported() && Arrays.equals(file, reader.replay().readAllBytes());
+            }
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    private static boolean testPngWriter(){
+        try {
+            // Several blocks, a flat RGB image and a noisy RGBA one, read back by ImageIO
+            var random = new Random(50);
+            int[][] noise = new int[51][67];
+            for (int[] row : noise) for (int x = 0; x < row.length; x++) row[x] = random.nextInt();
+            int[][] flat = new int[300][500];
+            for (int y = 0; y < flat.length; y++)
+                for (int x = 0; x < flat[y].length; x++) flat[y][x] = 0xFF000000 | (x / 50) * 0x102030 | y;
+            var images = new Helper.Image[]{
+                    Helper.readImage("references/dice.png"),
+                    Helper.generateImage(flat, QOISpecification.RGB, QOISpecification.sRGB),
+                    Helper.generateImage(noise, QOISpecification.RGBA, QOISpecification.sRGB)};
+            for (var image : images) {
+                int[][] data = image.data();
+                for (int level : new int[]{0, 1, 4, 9}) {
+                    // The blocks, thus the file, don't depend on the number of threads
+                    byte[] file = pngWriterFile(image, level, 1);
+                    if (!Arrays.equals(file, pngWriterFile(image, level, 4))
+                            || !Arrays.deepEquals(data, imageIORows(file))) return false;
+                }
+            }
+            return true;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    /**
+     * @return (byte[]) - The "PNG" file of an image, written by {@link PngWriter}
+     */
+    private static byte[] pngWriterFile(Helper.Image image, int level, int threads) throws IOException {
+        int[][] data = image.data();
+        var file = new ByteArrayOutputStream();
+        var writer = new PngWriter(file, data[0].length, data.length, image.channels(), level, threads);
+        for (int[] row : data) writer.writeRow(row);
+        writer.finish();
+        return file.toByteArray();
+    }
+
+    /**
+     * Decode a "PNG" file with {@link PngReader}
+     * @param file (byte[]) - The "PNG" file
+     * @param channels (byte) - Expected number of channels
+     * @return (int[][]) - The ARGB pixels, null if the file isn't read as expected
+     */
+    private static int[][] pngRows(byte[] file, byte channels) throws IOException {
+        try (var reader = new PngReader(new ByteArrayInputStream(file))) {
+            if (!reader.isSupported() || reader.channels() != channels) return null;
+            int[][] rows = new int[reader.height()][reader.width()];
+            for (int[] row : rows) if (!reader.nextRow(row)) return null;
+            return reader.nextRow(new int[reader.width()]) ? null : rows;
+        }
+    }
+
+    /**
+     * Write an RGBA "PNG" file whose rows use the five filters in turn
+     * @param data (int[][]) - The ARGB pixels
+     * @return (byte[]) - The "PNG" file
+     */
+    private static byte[] filteredPng(int[][] data) throws IOException {
+        int width = data[0].length;
+        var raw = new ByteArrayOutputStream();
+        byte[] above = new byte[width * 4];
+        for (int y = 0; y < data.length; y++) {
+            byte[] line = new byte[width * 4];
+            for (int x = 0; x < width; x++)
+                ArrayUtils.writeInt(line, x * 4, Integer.rotateLeft(data[y][x], 8));
+            int type = y % 5;
+            raw.write(type);
+            for (int i = 0; i < line.length; i++) {
+                int a = i < 4 ? 0 : line[i - 4] & 0xFF;
+                int b = above[i] & 0xFF;
+                int c = i < 4 ? 0 : above[i - 4] & 0xFF;
+                int p = a + b - c;
+                int predictor = switch (type) {
+                    case 1 -> a;
+                    case 2 -> b;
+                    case 3 -> (a + b) >>> 1;
+                    case 4 -> Math.abs(p - a) <= Math.abs(p - b) && Math.abs(p - a) <= Math.abs(p - c) ? a
+                            : Math.abs(p - b) <= Math.abs(p - c) ? b : c;
+                    default -> 0;
+                };
+                raw.write(line[i] - predictor);
+            }
+            above = line;
+        }
+        var compressed = new ByteArrayOutputStream();
+        try (var deflater = new DeflaterOutputStream(compressed)) {
+            raw.writeTo(deflater);
+        }
+        var file = new ByteArrayOutputStream();
+        file.writeBytes(Pipe.PNG_SIGNATURE);
+        var header = ByteBuffer.allocate(13).putInt(width).putInt(data.length).put((byte) 8).put((byte) 6);
+        pngChunk(file, "IHDR", header.array());
+        pngChunk(file, "IDAT", compressed.toByteArray());
+        pngChunk(file, "IEND", new byte[0]);
+        return file.toByteArray();
+    }
+
+    /**
+     * Append a chunk (length, type, data and CRC) to a "PNG" file
+     */
+    private static void pngChunk(ByteArrayOutputStream file, String type, byte[] data){
+        var crc = new CRC32();
+        crc.update(type.getBytes(StandardCharsets.US_ASCII));
+        crc.update(data);
+        file.writeBytes(ArrayUtils.fromInt(data.length));
+        file.writeBytes(type.getBytes(StandardCharsets.US_ASCII));
+        file.writeBytes(data);
+        file.writeBytes(ArrayUtils.fromInt((int) crc.getValue()));
+    }
+
+    /**
+     * Decode a "PNG" file with ImageIO
+     * @param file (byte[]) - The "PNG" file
+     * @return (int[][]) - The ARGB pixels
+     */
+    private static int[][] imageIORows(byte[] file) throws IOException {
+        BufferedImage image = ImageIO.read(new ByteArrayInputStream(file));
+        int[][] rows = new int[image.getHeight()][];
+        for (int y = 0; y < rows.length; y++) rows[y] = image.getRGB(0, y, image.getWidth(), 1, null, 0, image.getWidth());
+        return rows;
+    }
+
+    /**
+     * @return (byte[]) - The "PNG" file of an image, written by ImageIO
+     */
+    private static byte[] imageIOFile(BufferedImage image) throws IOException {
+        var file = new ByteArrayOutputStream();
+        ImageIO.write(image, "png", file);
+        return file.toByteArray();
+    }
+
+    /**
+     * Wait, for at most 10 seconds, until a condition holds
+     * @param condition (BooleanSupplier) - The condition
+     * @return (boolean) - true if the condition holds
+     */
+    private static boolean waitFor(BooleanSupplier condition) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+        while (!condition.getAsBoolean()) {
+            if (System.nanoTime() - deadline > 0) return false;
+            Thread.sleep(10);
+        }
+        return true;
+    }
+
+    /**
+     * Copy a reference file in a folder
+     * @param folder (Path) - Folder where to copy the file
+     * @param reference (String) - Name of the reference file
+     * @param target (String) - Path of the copy, relative to the folder
+     */
+    private static void copyReference(Path folder, String reference, String target) throws IOException {
+        Path file = folder.resolve(target);
+        Files.createDirectories(file.getParent());
+        Files.copy(Path.of("references", reference), file);
+    }
+
+    /**
+     * Delete a temporary folder and its content, as far as possible
+     * @param folder (Path) - Folder to delete, may be null
+     */
+    private static void deleteFolder(Path folder){
+        if (folder == null) return;
+        try (Stream<Path> walk = Files.walk(folder)) {
+            walk.sorted(Comparator.reverseOrder()).forEach(file -> file.toFile().delete());
+        } catch (IOException ignored) {
+            // Left to the system
+        }
+    }
+
     @SuppressWarnings("unused")
     private static boolean testDecodeData(){
         byte[] encoding = {-62, 102, -115, -103, -76, 102, -2, 100, 100, 100, -1, 90, 90, 90, 90};
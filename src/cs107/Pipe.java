@@ -0,0 +1,321 @@
+package cs107;
+
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PushbackInputStream;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Conversion between "PNG" and "Quite Ok Image" from one stream to another, without any file:
+ * the direction is chosen from the signature of the input. Nothing is printed on the standard
+ * output (which usually receives the converted image) and the folder "res/" is never used.
+ * <ul>
+ *     <li>PNG to QOI: the rows of the "PNG" are decoded and encoded by blocks of about
+ *     {@value #BLOCK_PIXELS} pixels, and the chunks of a block are written to the output as soon as
+ *     it is encoded.</li>
+ *     <li>QOI to PNG: the chunks are read as the rows need them, and the rows are given to the "PNG"
+ *     writer ({@link PngWriter}) by blocks as they are decoded, and compressed on several threads.</li>
+ * </ul>
+ * Each step of a block is recorded with a {@link CodecEvents.Phase} event.
+ * @version 1.0
+ * @since 1.0
+ */
+public final class Pipe {
+
+    /**
+     * Signature of a "PNG" file
+     */
+    public static final byte[] PNG_SIGNATURE = {(byte) 0x89, 'P', 'N', 'G', '\r', '\n', 0x1A, '\n'};
+
+    /**
+     * Number of pixels of a block of rows (at least one row), read, converted and written at once
+     */
+    private static final int BLOCK_PIXELS = 1 << 16;
+
+    /**
+     * Image converted from one stream to another
+     * @param width (int) - Width of the image
+     * @param height (int) - Height of the image
+     * @param channels (byte) - Number of channels of the image
+     * @param qoiBytes (long) - Size of the "Quite Ok Image" file (written or read)
+     * @param opaque (boolean) - True if the alpha of every pixel is 255
+     */
+    public record Converted(int width, int height, byte channels, long qoiBytes, boolean opaque){}
+
+    // ============================================================================================
+    // ===================================== PIPE MODE ============================================
+    // ============================================================================================
+
+    /**
+     * Convert the image of the standard input and write the result to the standard output
+     */
+    public static void run(){
+        convert(System.in, System.out);
+    }
+
+    /**
+     * Convert an image, "PNG" to "QOI" or "QOI" to "PNG" depending on the signature of the input
+     * @param input (InputStream) - Stream of the image to convert
+     * @param output (OutputStream) - Where to write the converted image (flushed, but not closed)
+     * @throws AssertionError if a stream is null
+     * @throws RuntimeException if the input is neither a "PNG" nor a "QOI" file, or cannot be converted
+     */
+    public static void convert(InputStream input, OutputStream output){
+        assert input != null && output != null : "The input or the output is null";
+        try {
+            var stream = new PushbackInputStream(input, PNG_SIGNATURE.length);
+            byte[] signature = stream.readNBytes(PNG_SIGNATURE.length);
+            stream.unread(signature);
+            if (startsWith(signature, QOISpecification.QOI_MAGIC))
+                qoiToPng(stream, output);
+            else if (startsWith(signature, PNG_SIGNATURE))
+                pngToQoi(stream, output);
+            else
+                Helper.fail("The input is neither a PNG nor a QOI file");
+            output.flush();
+        } catch (IOException e) {
+            Helper.fail("An error occurred while trying to convert the input: %s", e.getMessage());
+        }
+    }
+
+    /**
+     * Encode a "PNG" stream to a "QOI" stream, one block of rows at a time. The common "PNG" files are
+     * decoded row by row ({@link PngReader}), the others are read by ImageIO first.
+     * @param input (InputStream) - Stream of the "PNG" file
+     * @param output (OutputStream) - Where to write the "Quite Ok Image" file
+     * @return (Converted) - The converted image
+     * @throws IOException if a stream cannot be used
+     */
+    public static Converted pngToQoi(InputStream input, OutputStream output) throws IOException {
+        long start = System.nanoTime();
+        try (var png = new PngReader(input)) {
+            BufferedImage image = null;
+            int width = png.width();
+            int height = png.height();
+            byte channels = png.channels();
+            if (!png.isSupported()) {
+                image = ImageIO.read(png.replay());
+                if (image == null) Helper.fail("The input cannot be read as a PNG file");
+                width = image.getWidth();
+                height = image.getHeight();
+                channels = image.getColorModel().hasAlpha() ? QOISpecification.RGBA : QOISpecification.RGB;
+            }
+
+            var encoder = ReusableQOIEncoder.forThread();
+            encoder.begin(width, height, channels, QOISpecification.sRGB);
+            int[][] block = new int[blockHeight(width, height)][width];
+            long written = 0;
+            int alpha = 0xFF000000;
+            for (int y = 0; y < height; y += block.length) {
+                int rows = Math.min(block.length, height - y);
+                var phase = new CodecEvents.Phase(CodecEvents.PNG_READ);
+                phase.begin();
+                for (int i = 0; i < rows; i++) {
+                    if (image == null) png.nextRow(block[i]);
+                    else image.getRGB(0, y + i, width, 1, block[i], 0, width);
+                }
+                commit(phase, width, rows, channels, (long) rows * width * 4);
+
+                phase = new CodecEvents.Phase(CodecEvents.ENCODE_ROWS);
+                phase.begin();
+                for (int i = 0; i < rows; i++) {
+                    for (int pixel : block[i]) alpha &= pixel;
+                    encoder.encodeRow(block[i]);
+                }
+                if (y + rows == height) encoder.end();
+                commit(phase, width, rows, channels, encoder.size());
+
+                phase = new CodecEvents.Phase(CodecEvents.QOI_WRITE);
+                phase.begin();
+                written += encoder.size();
+                encoder.drainTo(output);
+                commit(phase, width, rows, channels, written);
+            }
+
+            long pixels = (long) width * height;
+            CodecMetrics.get().recordEncode(pixels, pixels * channels, written, System.nanoTime() - start);
+            CodecMetrics.get().recordOps(encoder.stats());
+            return new Converted(width, height, channels, written, alpha == 0xFF000000);
+        }
+    }
+
+    /**
+     * Decode a "QOI" stream to a "PNG" stream, giving the rows to the "PNG" writer by blocks as they are decoded.
+     * The chunks are read as the rows need them: the stream is never held in memory as a whole.
+     * @param input (InputStream) - Stream of the "Quite Ok Image" file
+     * @param output (OutputStream) - Where to write the "PNG" file
+     * @return (Converted) - The converted image
+     * @throws IOException if a stream cannot be used
+     */
+    public static Converted qoiToPng(InputStream input, OutputStream output) throws IOException {
+        return qoiToPng(new QoiSource(input), output, System.nanoTime());
+    }
+
+    /**
+     * Decode a "QOI" file to a "PNG" stream, giving the rows to the "PNG" writer by blocks as they are decoded
+     * @param content (ByteBuffer) - Content of the "Quite Ok Image" file (for instance a mapped file),
+     *                from its position to its limit
+     * @param output (OutputStream) - Where to write the "PNG" file
+     * @return (Converted) - The converted image
+     * @throws IOException if the output cannot be written
+     */
+    public static Converted qoiToPng(ByteBuffer content, OutputStream output) throws IOException {
+        return qoiToPng(new QoiSource(content), output, System.nanoTime());
+    }
+
+    /**
+     * Decode a "QOI" file to a "PNG" stream, giving the rows to the "PNG" writer by blocks as they are decoded
+     * @param source (QoiSource) - Chunks of the "Quite Ok Image" file, whose header is read
+     * @param output (OutputStream) - Where to write the "PNG" file
+     * @param start (long) - Value of {@link System#nanoTime()} at the start of the conversion
+     * @return (Converted) - The converted image
+     * @throws IOException if a stream cannot be used
+     */
+    private static Converted qoiToPng(QoiSource source, OutputStream output, long start) throws IOException {
+        var decoder = source.decoder;
+        int width = decoder.width();
+        int height = decoder.height();
+        byte channels = decoder.channels();
+        var writer = new PngWriter(output, width, height, channels, PngWriter.DEFAULT_LEVEL,
+                Runtime.getRuntime().availableProcessors());
+        int[][] block = new int[blockHeight(width, height)][width];
+        int alpha = 0xFF000000;
+        for (int y = 0; y < height; y += block.length) {
+            int rows = Math.min(block.length, height - y);
+            var phase = new CodecEvents.Phase(CodecEvents.DECODE_ROWS);
+            phase.begin();
+            try {
+                for (int i = 0; i < rows; i++) source.nextRow(block[i]);
+            } catch (IndexOutOfBoundsException e) {
+                Helper.fail("The QOI input is truncated");
+            }
+            commit(phase, width, rows, channels, (long) rows * width * 4);
+
+            phase = new CodecEvents.Phase(CodecEvents.PNG_WRITE);
+            phase.begin();
+            for (int i = 0; i < rows; i++) {
+                for (int pixel : block[i]) alpha &= pixel;
+                writer.writeRow(block[i]);
+            }
+            if (y + rows == height) writer.finish();
+            commit(phase, width, rows, channels, (long) rows * width * channels);
+        }
+        long size = source.finish();
+        // The time includes the filtering, the compression being mostly done by other threads
+        long pixels = (long) width * height;
+        CodecMetrics.get().recordDecode(pixels, size, pixels * channels, System.nanoTime() - start);
+        CodecMetrics.get().recordOps(decoder.stats());
+        return new Converted(width, height, channels, size, alpha == 0xFF000000);
+    }
+
+    /**
+     * Chunks of a "Quite Ok Image" file given to the decoder of the calling thread, either all at once
+     * (a buffer) or as the rows need them (a stream). A stream is read in a buffer of pending chunks:
+     * a row is decoded once the buffer holds 5 bytes per pixel (the largest chunk) or the rest of the stream,
+     * and the decoded chunks are dropped from the buffer before it is refilled.
+     */
+    private static final class QoiSource {
+
+        private final ReusableQOIDecoder decoder = ReusableQOIDecoder.forThread();
+        private final InputStream        input;
+        private byte[]                   pending;
+        private int                      end;
+        private long                     size;
+
+        /**
+         * Read the header of a file held in a buffer
+         */
+        private QoiSource(ByteBuffer content){
+            input = null;
+            size = content.remaining();
+            if (size < QOISpecification.HEADER_SIZE)
+                Helper.fail("The input is shorter than a QOI header");
+            decoder.begin(content);
+        }
+
+        /**
+         * Read the header of a file from a stream
+         */
+        private QoiSource(InputStream input) throws IOException {
+            this.input = input;
+            pending = new byte[1 << 16];
+            end = input.readNBytes(pending, 0, QOISpecification.HEADER_SIZE);
+            size = end;
+            if (end < QOISpecification.HEADER_SIZE)
+                Helper.fail("The input is shorter than a QOI header");
+            decoder.begin(ByteBuffer.wrap(pending, 0, end));
+        }
+
+        /**
+         * Decode the next row, reading the chunks it may need first
+         * @throws IndexOutOfBoundsException if the file is truncated
+         */
+        private void nextRow(int[] row) throws IOException {
+            if (input != null) {
+                int from = decoder.position();
+                int needed = (int) Math.min((long) row.length * 5, Integer.MAX_VALUE - 8);
+                if (end - from < needed) {
+                    System.arraycopy(pending, from, pending, 0, end - from);
+                    end -= from;
+                    if (pending.length < needed) pending = Arrays.copyOf(pending, needed);
+                    int read = input.readNBytes(pending, end, pending.length - end);
+                    end += read;
+                    size += read;
+                    decoder.rebase(ByteBuffer.wrap(pending, 0, end), 0);
+                }
+            }
+            decoder.nextRow(row);
+        }
+
+        /**
+         * Read the rest of the file (its end marker)
+         * @return (long) - Size of the file
+         */
+        private long finish() throws IOException {
+            if (input != null) size += input.transferTo(OutputStream.nullOutputStream());
+            return size;
+        }
+    }
+
+    /**
+     * @return (int) - Number of rows of a block of the image, between 1 and its height
+     */
+    private static int blockHeight(int width, int height){
+        return Math.min(height, Math.max(1, BLOCK_PIXELS / Math.max(1, width)));
+    }
+
+    /**
+     * Commit a phase event of a conversion
+     * @param phase (CodecEvents.Phase) - Started phase event
+     * @param width (int) - Width of the image
+     * @param height (int) - Number of rows of the block
+     * @param channels (byte) - Number of channels of the image
+     * @param bytes (long) - Number of bytes produced by the phase (written so far, for the output)
+     */
+    private static void commit(CodecEvents.Phase phase, int width, int height, byte channels, long bytes){
+        if (phase.shouldCommit()) {
+            phase.width = width;
+            phase.height = height;
+            phase.channels = channels;
+            phase.bytes = bytes;
+            phase.commit();
+        }
+    }
+
+    /**
+     * @return (boolean) - true if the array starts with the given prefix
+     */
+    private static boolean startsWith(byte[] array, byte[] prefix){
+        return array.length >= prefix.length && Arrays.equals(array, 0, prefix.length, prefix, 0, prefix.length);
+    }
+
+    // ============================================================================================
+
+    // Hide default constructor
+    private Pipe(){}
+
+}
@@ -0,0 +1,288 @@
+package cs107;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.SequenceInputStream;
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * Streaming reader of the common "PNG" files: 8 bits per channel, RGB or RGBA, not interlaced.
+ * <p>
+ * The compressed data is inflated with an {@link Inflater} and unfiltered one scanline at a time,
+ * straight into ARGB rows: neither the whole image nor a {@code BufferedImage} is ever held, so a
+ * "PNG" to "QOI" conversion is a single pass from the "PNG" stream to the encoder.
+ * <p>
+ * The other files (palettes, grey levels, 16 bits, interlacing, a transparent color or an ICC
+ * profile, which ImageIO applies, and the other formats) are not supported: {@link #isSupported()} is then false and
+ * {@link #replay()} gives the whole stream back for ImageIO. The CRCs of the chunks are not checked.
+ * @version 1.0
+ * @since 1.0
+ */
+public final class PngReader implements AutoCloseable {
+
+    private static final int IHDR = chunkType("IHDR");
+    private static final int IDAT = chunkType("IDAT");
+    private static final int IEND = chunkType("IEND");
+    private static final int TRNS = chunkType("tRNS");
+    private static final int ICCP = chunkType("iCCP");
+
+    private static final int COLOR_RGB  = 2;
+    private static final int COLOR_RGBA = 6;
+
+    private final DataInputStream input;
+    private final InputStream     source;
+    private final Inflater        inflater = new Inflater();
+    private final byte[]          compressed = new byte[1 << 16];
+    private final byte[]          filter = new byte[1];
+    // Bytes read before the first IDAT chunk, to give the stream back when unsupported
+    private ByteArrayOutputStream prefix = new ByteArrayOutputStream();
+    private boolean               supported;
+    private int                   width;
+    private int                   height;
+    private int                   bytesPerPixel;
+    private int                   rowsLeft;
+    private int                   idatLeft;
+    private byte[]                previous;
+    private byte[]                current;
+
+    /**
+     * Read the signature and the chunks of a "PNG" stream up to its image data
+     * @param stream (InputStream) - Stream of the image, positioned on its signature
+     * @throws AssertionError if the stream is null
+     * @throws IOException if the stream cannot be read
+     * @throws RuntimeException if the header of the "PNG" file is corrupted
+     */
+    public PngReader(InputStream stream) throws IOException {
+        assert stream != null : "The stream is null";
+        source = stream;
+        input = new DataInputStream(stream);
+        byte[] signature = input.readNBytes(Pipe.PNG_SIGNATURE.length);
+        prefix.write(signature, 0, signature.length);
+        // Another format: left to ImageIO
+        if (!Arrays.equals(signature, Pipe.PNG_SIGNATURE)) return;
+
+        if (readInt() != 13 || readInt() != IHDR) Helper.fail("The PNG file doesn't start with its header");
+        width = readInt();
+        height = readInt();
+        byte[] header = read(5 + 4);
+        int depth = header[0];
+        int colorType = header[1];
+        int interlace = header[4];
+        supported = depth == 8 && (colorType == COLOR_RGB || colorType == COLOR_RGBA) && interlace == 0
+                && width > 0 && height > 0 && (long) width * 4 + 1 < Integer.MAX_VALUE;
+        bytesPerPixel = colorType == COLOR_RGBA ? 4 : 3;
+
+        // Skip the chunks before the image data, unless one of them changes the colors
+        while (supported) {
+            int length = readInt();
+            int type = readInt();
+            if (length < 0) Helper.fail("The PNG file is corrupted");
+            if (type == IDAT) {
+                idatLeft = length;
+                break;
+            }
+            if (type == TRNS || type == ICCP || type == IEND) supported = false;
+            else read(length + 4);
+        }
+        if (!supported) return;
+
+        prefix = null;
+        rowsLeft = height;
+        previous = new byte[width * bytesPerPixel];
+        current = new byte[width * bytesPerPixel];
+    }
+
+    // ============================================================================================
+    // ======================================= HEADER =============================================
+    // ============================================================================================
+
+    /**
+     * @return (boolean) - true if the image can be read by this reader, false if it needs ImageIO
+     */
+    public boolean isSupported(){
+        return supported;
+    }
+
+    /**
+     * Give the whole stream back, when the image is not supported
+     * @return (InputStream) - The bytes read by this reader, then the rest of the stream
+     * @throws AssertionError if the image is supported
+     */
+    public InputStream replay(){
+        assert !supported : "The image is supported, the stream is already decoded";
+        return new SequenceInputStream(new ByteArrayInputStream(prefix.toByteArray()), source);
+    }
+
+    /**
+     * @return (int) - Width of the image
+     */
+    public int width(){
+        return width;
+    }
+
+    /**
+     * @return (int) - Height of the image
+     */
+    public int height(){
+        return height;
+    }
+
+    /**
+     * @return (byte) - Number of channels of the image
+     */
+    public byte channels(){
+        return (byte) bytesPerPixel;
+    }
+
+    // ============================================================================================
+    // ======================================= ROWS ===============================================
+    // ============================================================================================
+
+    /**
+     * Decode the next row of the image
+     * @param row (int[]) - Where to store the ARGB pixels of the row (at least the width of the image)
+     * @return (boolean) - false if all the rows were already decoded, true otherwise
+     * @throws AssertionError if the image is not supported or the row is too short
+     * @throws IOException if the stream cannot be read
+     * @throws RuntimeException if the image data is truncated or corrupted
+     */
+    public boolean nextRow(int[] row) throws IOException {
+        assert supported : "The image is not supported";
+        assert row != null && row.length >= width : "The row is shorter than the image";
+        if (rowsLeft == 0) return false;
+        inflate(filter);
+        inflate(current);
+        unfilter(filter[0]);
+
+        byte[] line = current;
+        if (bytesPerPixel == 4) {
+            for (int x = 0, i = 0; x < width; x++, i += 4)
+                row[x] = (line[i + 3] & 0xFF) << 24 | (line[i] & 0xFF) << 16 | (line[i + 1] & 0xFF) << 8 | (line[i + 2] & 0xFF);
+        } else {
+            for (int x = 0, i = 0; x < width; x++, i += 3)
+                row[x] = 0xFF000000 | (line[i] & 0xFF) << 16 | (line[i + 1] & 0xFF) << 8 | (line[i + 2] & 0xFF);
+        }
+        // The current scanline is the previous one of the next row
+        current = previous;
+        previous = line;
+        if (--rowsLeft == 0) inflater.end();
+        return true;
+    }
+
+    /**
+     * Release the inflater (the stream is not closed)
+     */
+    @Override
+    public void close(){
+        inflater.end();
+    }
+
+    // ============================================================================================
+    // ===================================== UTILITIES ============================================
+    // ============================================================================================
+
+    /**
+     * Fill a buffer with inflated data, reading the IDAT chunks as needed
+     */
+    private void inflate(byte[] buffer) throws IOException {
+        int filled = 0;
+        try {
+            while (filled < buffer.length) {
+                int inflated = inflater.inflate(buffer, filled, buffer.length - filled);
+                filled += inflated;
+                if (inflated > 0) continue;
+                if (inflater.finished() || inflater.needsDictionary()) Helper.fail("The PNG image data is truncated");
+                if (inflater.needsInput()) feed();
+            }
+        } catch (DataFormatException e) {
+            Helper.fail("The PNG image data is corrupted: %s", e.getMessage());
+        }
+    }
+
+    /**
+     * Give the inflater the next piece of the IDAT chunks
+     */
+    private void feed() throws IOException {
+        while (idatLeft == 0) {
+            // CRC of the previous chunk, then the next one, which must continue the image data
+            input.skipNBytes(4);
+            int length = input.readInt();
+            if (input.readInt() != IDAT || length < 0) Helper.fail("The PNG image data is truncated");
+            idatLeft = length;
+        }
+        int length = Math.min(idatLeft, compressed.length);
+        input.readFully(compressed, 0, length);
+        idatLeft -= length;
+        inflater.setInput(compressed, 0, length);
+    }
+
+    /**
+     * Undo the filter of the current scanline, using the previous one
+     * (all zeros before the first row, as the specification requires)
+     */
+    private void unfilter(int type){
+        byte[] line = current;
+        byte[] above = previous;
+        int bpp = bytesPerPixel;
+        switch (type) {
+            case 0 -> { }
+            case 1 -> {
+                for (int i = bpp; i < line.length; i++) line[i] += line[i - bpp];
+            }
+            case 2 -> {
+                for (int i = 0; i < line.length; i++) line[i] += above[i];
+            }
+            case 3 -> {
+                for (int i = 0; i < bpp; i++) line[i] += (byte) ((above[i] & 0xFF) >>> 1);
+                for (int i = bpp; i < line.length; i++)
+                    line[i] += (byte) (((line[i - bpp] & 0xFF) + (above[i] & 0xFF)) >>> 1);
+            }
+            case 4 -> {
+                for (int i = 0; i < bpp; i++) line[i] += above[i];
+                for (int i = bpp; i < line.length; i++)
+                    line[i] += (byte) paeth(line[i - bpp] & 0xFF, above[i] & 0xFF, above[i - bpp] & 0xFF);
+            }
+            default -> Helper.fail("The PNG image uses the unknown filter %d", type);
+        }
+    }
+
+    /**
+     * Paeth predictor of the "PNG" specification
+     */
+    private static int paeth(int a, int b, int c){
+        int p = a + b - c;
+        int pa = Math.abs(p - a);
+        int pb = Math.abs(p - b);
+        int pc = Math.abs(p - c);
+        if (pa <= pb && pa <= pc) return a;
+        return pb <= pc ? b : c;
+    }
+
+    /**
+     * Read bytes of the header, keeping them to replay the stream
+     */
+    private byte[] read(int length) throws IOException {
+        byte[] bytes = input.readNBytes(length);
+        prefix.write(bytes, 0, bytes.length);
+        if (bytes.length != length) throw new EOFException("The PNG file is truncated");
+        return bytes;
+    }
+
+    /**
+     * Read a big endian integer of the header, keeping it to replay the stream
+     */
+    private int readInt() throws IOException {
+        return ArrayUtils.readInt(read(4), 0);
+    }
+
+    private static int chunkType(String name){
+        return name.charAt(0) << 24 | name.charAt(1) << 16 | name.charAt(2) << 8 | name.charAt(3);
+    }
+
+}
@@ -0,0 +1,360 @@
+package cs107;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.Adler32;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * Streaming "PNG" writer compressing on several threads.
+ * <p>
+ * The rows are filtered as they arrive and gathered in blocks of {@value #BLOCK_SIZE} bytes.
+ * Each block is deflated on its own by a worker thread, primed with the last 32 KiB of the block
+ * before it as dictionary and ended with a sync flush, like pigz: the compressed blocks, written in
+ * order as IDAT chunks, are one valid zlib stream, almost as small as a single-threaded one.
+ * The checksum of the stream (Adler-32) is computed in order by the writing thread.
+ * <p>
+ * The level trades speed for size, as in zlib:
+ * <ul>
+ *     <li>0: no filter, stored blocks;</li>
+ *     <li>1 to 3: "Sub" filter on every row, fast deflate;</li>
+ *     <li>4 to 9: for each row, the filter with the smallest sum of absolute values
+ *     (the heuristic of libpng), with the deflate level.</li>
+ * </ul>
+ * @version 1.0
+ * @since 1.0
+ */
+public final class PngWriter {
+
+    /**
+     * Default level: the first one choosing the filters, which matters most for flat images.
+     * Higher levels mostly make deflate slower (3 times slower at 6 for 5% smaller photos).
+     */
+    public static final int DEFAULT_LEVEL = 4;
+
+    /**
+     * Size of the uncompressed blocks deflated in parallel (the block size of pigz)
+     */
+    private static final int BLOCK_SIZE = 128 * 1024;
+
+    /**
+     * Size of the window of deflate, primed from the previous block
+     */
+    private static final int DICTIONARY_SIZE = 32 * 1024;
+
+    private static final byte[] IHDR = {'I', 'H', 'D', 'R'};
+    private static final byte[] IDAT = {'I', 'D', 'A', 'T'};
+    private static final byte[] IEND = {'I', 'E', 'N', 'D'};
+
+    /**
+     * Workers shared by all the writers, created on first use
+     */
+    private static final class Workers {
+        private static final ExecutorService POOL = Executors.newFixedThreadPool(
+                Runtime.getRuntime().availableProcessors(), r -> {
+                    var thread = new Thread(r, "png-deflate");
+                    thread.setDaemon(true);
+                    return thread;
+                });
+    }
+
+    private final OutputStream          output;
+    private final int                   width;
+    private final int                   bytesPerPixel;
+    private final int                   level;
+    private final int                   parallelism;
+    private final Adler32               adler = new Adler32();
+    private final ArrayDeque<Future<byte[]>> inFlight = new ArrayDeque<>();
+    private final byte[][]              candidates = new byte[5][];
+    private byte[]                      raw;
+    private byte[]                      previous;
+    private byte[]                      block = new byte[BLOCK_SIZE * 2];
+    private int                         filled;
+    private byte[]                      dictionary;
+    private int                         rowsLeft;
+    private boolean                     headerWritten;
+
+    /**
+     * Start a "PNG" file: write its signature and its header
+     * @param output (OutputStream) - Where to write the file (flushed by {@link #finish()}, not closed)
+     * @param width (int) - Width of the image
+     * @param height (int) - Height of the image
+     * @param channels (byte) - Number of channels of the image, RGB or RGBA
+     * @param level (int) - Compression level, in [0, 9]
+     * @param threads (int) - Maximal number of blocks deflated at the same time for this file,
+     *                1 to deflate on the calling thread
+     * @throws AssertionError if a parameter is invalid
+     * @throws IOException if the output cannot be written
+     */
+    public PngWriter(OutputStream output, int width, int height, byte channels, int level, int threads) throws IOException {
+        assert output != null : "The output is null";
+        assert width > 0 && height > 0 : "The image is empty";
+        assert channels == QOISpecification.RGB || channels == QOISpecification.RGBA : "The number of channels is not equal to RGB or RGBA";
+        assert level >= 0 && level <= 9 : "The level is outside of [0, 9]";
+        assert threads > 0 : "The number of threads is not positive";
+        this.output = output;
+        this.width = width;
+        this.bytesPerPixel = channels;
+        this.level = level;
+        this.parallelism = threads;
+        this.rowsLeft = height;
+        int stride = width * channels;
+        raw = new byte[stride];
+        previous = new byte[stride];
+        for (int i = 0; i < candidates.length; i++) candidates[i] = new byte[stride];
+        if (block.length < stride + 1) block = new byte[stride + 1];
+
+        output.write(Pipe.PNG_SIGNATURE);
+        byte[] header = new byte[13];
+        ArrayUtils.writeInt(header, 0, width);
+        ArrayUtils.writeInt(header, 4, height);
+        header[8] = 8;
+        header[9] = (byte) (channels == QOISpecification.RGBA ? 6 : 2);
+        chunk(IHDR, header, 0, header.length);
+    }
+
+    /**
+     * Write an image as "PNG", deflating on the available processors
+     * @param image (Helper.Image) - The image
+     * @param output (OutputStream) - Where to write the file (flushed, not closed)
+     * @param level (int) - Compression level, in [0, 9]
+     * @throws AssertionError if the image is null or the level is invalid
+     * @throws IOException if the output cannot be written
+     */
+    public static void write(Helper.Image image, OutputStream output, int level) throws IOException {
+        assert image != null : "The image is null";
+        int[][] data = image.data();
+        var writer = new PngWriter(output, data[0].length, data.length, image.channels(), level,
+                Runtime.getRuntime().availableProcessors());
+        for (int[] row : data) writer.writeRow(row);
+        writer.finish();
+    }
+
+    // ============================================================================================
+    // ======================================== ROWS ==============================================
+    // ============================================================================================
+
+    /**
+     * Filter and queue the next row of the image
+     * @param row (int[]) - ARGB pixels of the row (at least the width of the image)
+     * @throws AssertionError if the row is too short or all the rows were already written
+     * @throws IOException if the output cannot be written
+     */
+    public void writeRow(int[] row) throws IOException {
+        assert row != null && row.length >= width : "The row is shorter than the image";
+        assert rowsLeft > 0 : "All the rows were already written";
+        if (bytesPerPixel == 4) {
+            for (int x = 0, i = 0; x < width; x++, i += 4) {
+                int argb = row[x];
+                raw[i] = (byte) (argb >>> 16);
+                raw[i + 1] = (byte) (argb >>> 8);
+                raw[i + 2] = (byte) argb;
+                raw[i + 3] = (byte) (argb >>> 24);
+            }
+        } else {
+            for (int x = 0, i = 0; x < width; x++, i += 3) {
+                int argb = row[x];
+                raw[i] = (byte) (argb >>> 16);
+                raw[i + 1] = (byte) (argb >>> 8);
+                raw[i + 2] = (byte) argb;
+            }
+        }
+
+        int filter = filter();
+        if (filled + raw.length + 1 > block.length) submit(false);
+        block[filled++] = (byte) filter;
+        System.arraycopy(filter == 0 ? raw : candidates[filter], 0, block, filled, raw.length);
+        filled += raw.length;
+        // The current row is the previous one of the next row
+        byte[] swap = previous;
+        previous = raw;
+        raw = swap;
+
+        if (--rowsLeft > 0 && filled >= BLOCK_SIZE) submit(false);
+    }
+
+    /**
+     * Write the last block and the end of the file, then flush the output
+     * @throws AssertionError if rows are missing
+     * @throws IOException if the output cannot be written
+     */
+    public void finish() throws IOException {
+        assert rowsLeft == 0 : "Rows of the image are missing";
+        submit(true);
+        while (!inFlight.isEmpty()) writeNext();
+        chunk(IEND, new byte[0], 0, 0);
+        output.flush();
+    }
+
+    // ============================================================================================
+    // ====================================== FILTERS =============================================
+    // ============================================================================================
+
+    /**
+     * Choose the filter of the current row, leaving the filtered row in its candidate buffer
+     * @return (int) - The filter type, 0 (none: the row is used as is) to 4 (Paeth)
+     */
+    private int filter(){
+        if (level == 0) return 0;
+        int bpp = bytesPerPixel;
+        byte[] line = raw;
+        byte[] above = previous;
+        byte[] sub = candidates[1];
+        for (int i = 0; i < bpp; i++) sub[i] = line[i];
+        for (int i = bpp; i < line.length; i++) sub[i] = (byte) (line[i] - line[i - bpp]);
+        if (level <= 3) return 1;
+
+        byte[] up = candidates[2];
+        byte[] average = candidates[3];
+        byte[] paeth = candidates[4];
+        for (int i = 0; i < bpp; i++) {
+            up[i] = (byte) (line[i] - above[i]);
+            average[i] = (byte) (line[i] - ((above[i] & 0xFF) >>> 1));
+            paeth[i] = (byte) (line[i] - above[i]);
+        }
+        for (int i = bpp; i < line.length; i++) {
+            int a = line[i - bpp] & 0xFF;
+            int b = above[i] & 0xFF;
+            int c = above[i - bpp] & 0xFF;
+            up[i] = (byte) (line[i] - b);
+            average[i] = (byte) (line[i] - ((a + b) >>> 1));
+            paeth[i] = (byte) (line[i] - paeth(a, b, c));
+        }
+
+        int best = 0;
+        long bestSum = sum(line);
+        for (int type = 1; type < candidates.length; type++) {
+            long sum = sum(candidates[type]);
+            if (sum < bestSum) {
+                bestSum = sum;
+                best = type;
+            }
+        }
+        return best;
+    }
+
+    /**
+     * Sum of the absolute values of the bytes of a row, taken as signed
+     */
+    private static long sum(byte[] row){
+        long sum = 0;
+        for (byte value : row) sum += Math.abs(value);
+        return sum;
+    }
+
+    /**
+     * Paeth predictor of the "PNG" specification
+     */
+    private static int paeth(int a, int b, int c){
+        int p = a + b - c;
+        int pa = Math.abs(p - a);
+        int pb = Math.abs(p - b);
+        int pc = Math.abs(p - c);
+        if (pa <= pb && pa <= pc) return a;
+        return pb <= pc ? b : c;
+    }
+
+    // ============================================================================================
+    // ====================================== DEFLATE =============================================
+    // ============================================================================================
+
+    /**
+     * Give the filled block to a worker (or deflate it here), primed with the end of the previous one
+     */
+    private void submit(boolean last) throws IOException {
+        byte[] data = Arrays.copyOf(block, filled);
+        filled = 0;
+        adler.update(data);
+        byte[] primer = dictionary;
+        dictionary = Arrays.copyOfRange(data, Math.max(0, data.length - DICTIONARY_SIZE), data.length);
+        boolean first = !headerWritten;
+        headerWritten = true;
+        long checksum = adler.getValue();
+
+        // At most one block per thread is waiting: the rows are not buffered without bound
+        while (inFlight.size() >= parallelism) writeNext();
+        if (parallelism == 1) {
+            writeIdat(deflate(data, primer, first, last, checksum));
+        } else {
+            inFlight.add(Workers.POOL.submit(() -> deflate(data, primer, first, last, checksum)));
+        }
+    }
+
+    /**
+     * Deflate a block to a piece of the zlib stream
+     * @return (byte[]) - The compressed block, with the zlib header if first and the checksum if last
+     */
+    private byte[] deflate(byte[] data, byte[] primer, boolean first, boolean last, long checksum){
+        var compressed = new ByteArrayOutputStream(data.length / 2 + 64);
+        if (first) {
+            // zlib header: deflate with a 32 KiB window, the level hint, and the check bits
+            int flags = level <= 1 ? 0x01 : level <= 5 ? 0x5E : level == 6 ? 0x9C : 0xDA;
+            compressed.write(0x78);
+            compressed.write(flags);
+        }
+        var deflater = new Deflater(level, true);
+        try {
+            if (primer != null) deflater.setDictionary(primer);
+            deflater.setInput(data);
+            // A sync flush ends the block on a byte boundary, where the next one can start
+            int flush = last ? Deflater.NO_FLUSH : Deflater.SYNC_FLUSH;
+            if (last) deflater.finish();
+            byte[] buffer = new byte[64 * 1024];
+            while (true) {
+                int length = deflater.deflate(buffer, 0, buffer.length, flush);
+                compressed.write(buffer, 0, length);
+                if (last ? deflater.finished() : length < buffer.length) break;
+            }
+        } finally {
+            deflater.end();
+        }
+        if (last) {
+            for (int shift = 24; shift >= 0; shift -= 8) compressed.write((int) (checksum >>> shift));
+        }
+        return compressed.toByteArray();
+    }
+
+    /**
+     * Wait for the oldest block and write it
+     */
+    private void writeNext() throws IOException {
+        try {
+            writeIdat(inFlight.poll().get());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while compressing the image", e);
+        } catch (ExecutionException e) {
+            throw new IOException("Cannot compress the image", e.getCause());
+        }
+    }
+
+    private void writeIdat(byte[] compressed) throws IOException {
+        chunk(IDAT, compressed, 0, compressed.length);
+    }
+
+    /**
+     * Write a chunk: its length, its type, its data and the CRC of its type and data
+     */
+    private void chunk(byte[] type, byte[] data, int offset, int length) throws IOException {
+        byte[] header = new byte[8];
+        ArrayUtils.writeInt(header, 0, length);
+        System.arraycopy(type, 0, header, 4, 4);
+        var crc = new CRC32();
+        crc.update(type);
+        crc.update(data, offset, length);
+        byte[] trailer = new byte[4];
+        ArrayUtils.writeInt(trailer, 0, (int) crc.getValue());
+        output.write(header);
+        output.write(data, offset, length);
+        output.write(trailer);
+    }
+
+}
@@ -0,0 +1,186 @@
+package cs107;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Chunk-level analyzer of a "Quite Ok Image" block stream.
+ * <p>
+ * The analyzer only follows the tags of the chunks ({@link QOISpecification}) to know how many
+ * bytes and pixels each of them covers: no pixel is reconstructed and the pixel buffer of
+ * {@link QOIDecoder#decodeData(byte[], int, int)} is never allocated. The only allocations are
+ * the fixed-size histograms and one counter per row of the image.
+ * @version 1.0
+ * @since 1.0
+ */
+public final class QOIAnalyzer {
+
+    // Names of the ops, same indexes as the op counters (those of QOIScan)
+    private static final String[] OP_NAMES =
+            {"QOI_OP_RUN", "QOI_OP_INDEX", "QOI_OP_DIFF", "QOI_OP_LUMA", "QOI_OP_RGB", "QOI_OP_RGBA"};
+
+    /**
+     * Result of an analysis
+     * @param width (int) - Width of the image
+     * @param height (int) - Height of the image
+     * @param channels (int) - Number of channels of the header
+     * @param ops (long[]) - Number of chunks of each op
+     * @param pixels (long[]) - Number of pixels covered by each op
+     * @param runLengths (long[]) - runLengths[n] is the number of QOI_OP_RUN chunks of length n (1 to 62)
+     * @param rowBytes (long[]) - Bytes of the chunks starting in each row
+     * @param streamBytes (long) - Size of the block stream (without header and end marker)
+     */
+    public record Report(int width, int height, int channels, long[] ops, long[] pixels,
+                         long[] runLengths, long[] rowBytes, long streamBytes){
+
+        /**
+         * @return (double) - Part of the chunks that aren't runs which hit the hash table
+         */
+        public double indexHitRate(){
+            long chunks = ops[QOIScan.INDEX] + ops[QOIScan.DIFF] + ops[QOIScan.LUMA]
+                    + ops[QOIScan.RGB] + ops[QOIScan.RGBA];
+            return chunks == 0 ? 0 : (double) ops[QOIScan.INDEX] / chunks;
+        }
+
+        /**
+         * @return (double) - Average number of bytes per pixel of the whole stream
+         */
+        public double bytesPerPixel(){
+            long total = (long) width * height;
+            return total == 0 ? 0 : (double) streamBytes / total;
+        }
+
+        /**
+         * Print the report in the Terminal
+         * @param worstRows (int) - Number of most expensive rows to list
+         */
+        public void print(int worstRows){
+            long total = (long) width * height;
+            System.out.println("======================================= QOI ANALYSIS =====================================");
+            System.out.printf("== %dx%d, %d channels, %d bytes of chunks, %.3f bytes per pixel%n",
+                    width, height, channels, streamBytes, bytesPerPixel());
+            System.out.println("==    Method    |   Chunks   |   Pixels   |  % pixels  |   Bytes    | Bytes/pixel");
+            for (int op = 0; op < OP_NAMES.length; op++) {
+                long bytes = ops[op] * QOIScan.OP_SIZES[op];
+                System.out.printf("== %-12s | %10d | %10d | %9.2f%% | %10d | %.3f%n", OP_NAMES[op], ops[op],
+                        pixels[op], total == 0 ? 0 : 100d * pixels[op] / total, bytes,
+                        pixels[op] == 0 ? 0 : (double) bytes / pixels[op]);
+            }
+            System.out.printf("== Index hit rate : %.2f%%%n", 100 * indexHitRate());
+            System.out.print("== Run lengths    :");
+            for (int n = 1; n < runLengths.length; n++)
+                if (runLengths[n] != 0) System.out.printf(" %d:%d", n, runLengths[n]);
+            System.out.println();
+
+            System.out.println("== Bytes per pixel by band of rows :");
+            int bands = Math.min(10, height);
+            for (int band = 0; band < bands; band++) {
+                int from = (int) ((long) height * band / bands);
+                int to = (int) ((long) height * (band + 1) / bands);
+                long bytes = 0;
+                for (int y = from; y < to; y++) bytes += rowBytes[y];
+                System.out.printf("==   rows %6d - %6d : %.3f%n", from, to - 1,
+                        (double) bytes / ((long) (to - from) * width));
+            }
+
+            System.out.printf("== Most expensive rows (of %d bytes at most) :%n", (long) width * (channels + 1));
+            boolean[] listed = new boolean[height];
+            for (int i = 0; i < Math.min(worstRows, height); i++) {
+                int worst = -1;
+                for (int y = 0; y < height; y++)
+                    if (!listed[y] && (worst < 0 || rowBytes[y] > rowBytes[worst])) worst = y;
+                listed[worst] = true;
+                System.out.printf("==   row %6d : %d bytes (%.3f bytes per pixel)%n",
+                        worst, rowBytes[worst], (double) rowBytes[worst] / width);
+            }
+            System.out.println("===================================== END QOI ANALYSIS ===================================");
+        }
+    }
+
+    // ============================================================================================
+    // ===================================== ANALYZER API =========================================
+    // ============================================================================================
+
+    /**
+     * Analyze a "Quite Ok Image" file, mapped in memory instead of being read
+     * @param path (String) - Path of the file
+     * @return (Report) - The analysis
+     */
+    public static Report analyze(String path){
+        try (var channel = FileChannel.open(Path.of(path), StandardOpenOption.READ)) {
+            return analyze(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+        } catch (IOException e) {
+            return Helper.fail("An error occurred while trying to read from : \"%s\"%n", path);
+        }
+    }
+
+    /**
+     * Analyze the content of a "Quite Ok Image" file
+     * @param content (byte[]) - Content of the file
+     * @return (Report) - The analysis
+     */
+    public static Report analyze(byte[] content){
+        assert content != null : "The content is null";
+        return analyze(ByteBuffer.wrap(content));
+    }
+
+    /**
+     * Analyze the content of a "Quite Ok Image" file
+     * @param content (ByteBuffer) - Content of the file, from index 0 to its limit
+     * @return (Report) - The analysis
+     * @throws AssertionError if the header is invalid
+     */
+    public static Report analyze(ByteBuffer content){
+        assert content != null : "The content is null";
+        byte[] header = new byte[QOISpecification.HEADER_SIZE];
+        content.get(0, header);
+        int[] info = QOIDecoder.decodeHeader(header);
+        int width = info[0];
+        int height = info[1];
+
+        long[] ops = new long[OP_NAMES.length];
+        long[] pixels = new long[OP_NAMES.length];
+        long[] runLengths = new long[63];
+        long[] rowBytes = new long[height];
+
+        long total = (long) width * height;
+        long position = 0;
+        int idx = QOISpecification.HEADER_SIZE;
+        while (position < total) {
+            byte chunk = content.get(idx);
+            int op;
+            int covered = 1;
+            if (chunk == QOISpecification.QOI_OP_RGB_TAG) op = QOIScan.RGB;
+            else if (chunk == QOISpecification.QOI_OP_RGBA_TAG) op = QOIScan.RGBA;
+            else {
+                switch ((byte) (chunk & 0b11_00_00_00)) {
+                    case QOISpecification.QOI_OP_INDEX_TAG -> op = QOIScan.INDEX;
+                    case QOISpecification.QOI_OP_DIFF_TAG -> op = QOIScan.DIFF;
+                    case QOISpecification.QOI_OP_LUMA_TAG -> op = QOIScan.LUMA;
+                    default -> {
+                        op = QOIScan.RUN;
+                        covered = (chunk & 0b11_11_11) + 1;
+                        runLengths[covered]++;
+                    }
+                }
+            }
+            ops[op]++;
+            pixels[op] += covered;
+            rowBytes[(int) (position / width)] += QOIScan.OP_SIZES[op];
+            position += covered;
+            idx += QOIScan.OP_SIZES[op];
+        }
+
+        long streamBytes = idx - QOISpecification.HEADER_SIZE;
+        return new Report(width, height, info[2], ops, pixels, runLengths, rowBytes, streamBytes);
+    }
+
+    // ============================================================================================
+
+    // Hide default constructor
+    private QOIAnalyzer(){}
+
+}
@@ -0,0 +1,260 @@
+package cs107;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.stream.Stream;
+
+/**
+ * Archive of many "Quite Ok Image" files (sprites, icons, ...) in a single file,
+ * read through one memory mapping instead of one file read per image.
+ * <p>
+ * Layout of an archive (integers in "Big Endian"):
+ * <pre>
+ *     header    : "qoia", number of members (4), offset of the directory (8)
+ *     members   : the "Quite Ok Image" files, one after the other
+ *     directory : for each member, sorted by name:
+ *                 length of the name (2), name (UTF-8), offset (8), length (4),
+ *                 width (4), height (4), channels (1), color space (1)
+ * </pre>
+ * Opening an archive maps it and reads its directory; a member is then found by binary search
+ * and decoded straight from the mapping, without copying its file.
+ * @version 1.0
+ * @since 1.0
+ */
+public final class QOIArchive {
+
+    /**
+     * Magic number at the start of an archive
+     */
+    public static final byte[] MAGIC = {'q', 'o', 'i', 'a'};
+
+    private static final int HEADER_SIZE = 16;
+
+    /**
+     * Member of an archive
+     * @param name (String) - Name of the member (its path in the packed folder, with '/')
+     * @param offset (long) - Offset of its "Quite Ok Image" file in the archive
+     * @param length (int) - Length of its file
+     * @param width (int) - Width of its image
+     * @param height (int) - Height of its image
+     * @param channels (byte) - Number of channels of its image
+     * @param colorSpace (byte) - Color space of its image
+     */
+    public record Entry(String name, long offset, int length, int width, int height, byte channels, byte colorSpace){}
+
+    private final MappedByteBuffer mapping;
+    private final Entry[]          entries;
+    private final String[]         names;
+
+    /**
+     * Open an archive: map it and read its directory
+     * @param path (String) - Path of the archive
+     * @throws AssertionError if the path is null
+     * @throws RuntimeException if the file cannot be read or is not a valid archive
+     */
+    public QOIArchive(String path){
+        assert path != null : "The path is null";
+        MappedByteBuffer map = null;
+        try (var channel = FileChannel.open(Path.of(path), StandardOpenOption.READ)) {
+            if (channel.size() > Integer.MAX_VALUE) Helper.fail("The archive %s is larger than 2 GiB", path);
+            map = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        } catch (IOException e) {
+            Helper.fail("An error occurred while trying to open the archive : \"%s\"%n", path);
+        }
+        mapping = map;
+        mapping.order(ByteOrder.BIG_ENDIAN);
+
+        if (mapping.limit() < HEADER_SIZE || mapping.getInt(0) != ArrayUtils.toInt(MAGIC))
+            Helper.fail("The file %s is not a QOI archive", path);
+        int count = mapping.getInt(4);
+        long directory = mapping.getLong(8);
+        if (count < 0 || directory < HEADER_SIZE || directory > mapping.limit())
+            Helper.fail("The directory of the archive %s is corrupted", path);
+
+        entries = new Entry[count];
+        names = new String[count];
+        int position = (int) directory;
+        try {
+            for (int i = 0; i < count; i++) {
+                int nameLength = Short.toUnsignedInt(mapping.getShort(position));
+                byte[] name = new byte[nameLength];
+                mapping.get(position + 2, name);
+                position += 2 + nameLength;
+                entries[i] = new Entry(new String(name, StandardCharsets.UTF_8), mapping.getLong(position),
+                        mapping.getInt(position + 8), mapping.getInt(position + 12), mapping.getInt(position + 16),
+                        mapping.get(position + 20), mapping.get(position + 21));
+                names[i] = entries[i].name();
+                position += 22;
+                if (entries[i].offset() < HEADER_SIZE || entries[i].offset() + entries[i].length() > directory)
+                    Helper.fail("The member %s of the archive %s is outside of it", names[i], path);
+            }
+        } catch (IndexOutOfBoundsException e) {
+            Helper.fail("The directory of the archive %s is truncated", path);
+        }
+    }
+
+    // ============================================================================================
+    // ===================================== MEMBERS ==============================================
+    // ============================================================================================
+
+    /**
+     * @return (int) - Number of members of the archive
+     */
+    public int size(){
+        return entries.length;
+    }
+
+    /**
+     * @return (List<Entry>) - Members of the archive, sorted by name
+     */
+    public List<Entry> entries(){
+        return List.of(entries);
+    }
+
+    /**
+     * Find a member of the archive
+     * @param name (String) - Name of the member
+     * @return (Entry) - The member, null if the archive doesn't contain it
+     */
+    public Entry entry(String name){
+        int index = Arrays.binarySearch(names, name);
+        return index < 0 ? null : entries[index];
+    }
+
+    /**
+     * Give the "Quite Ok Image" file of a member, without copying it
+     * @param name (String) - Name of the member
+     * @return (ByteBuffer) - Read-only view of the file in the mapping
+     * @throws RuntimeException if the archive doesn't contain the member
+     */
+    public ByteBuffer content(String name){
+        Entry entry = entry(name);
+        if (entry == null) Helper.fail("The archive does not contain %s", name);
+        return mapping.slice((int) entry.offset(), entry.length()).order(ByteOrder.BIG_ENDIAN);
+    }
+
+    /**
+     * Decode a member straight from the mapping
+     * @param name (String) - Name of the member
+     * @return (Helper.Image) - The image of the member
+     * @throws RuntimeException if the archive doesn't contain the member
+     */
+    public Helper.Image decode(String name){
+        var decoder = ReusableQOIDecoder.forThread();
+        decoder.begin(content(name));
+        int[][] data = new int[decoder.height()][decoder.width()];
+        for (int[] row : data) decoder.nextRow(row);
+        return Helper.generateImage(data, decoder.channels(), decoder.colorSpace());
+    }
+
+    // ============================================================================================
+    // ===================================== BUILDER ==============================================
+    // ============================================================================================
+
+    /**
+     * Pack the "QOI" and "PNG" files of a folder (and its sub-folders) in an archive.
+     * The files are read, and the "PNG" ones encoded, in parallel; the name of a member
+     * is its path relative to the folder, with '/' as separator.
+     * @param folder (String) - Folder to pack
+     * @param archive (String) - Path of the archive to write
+     * @return (int) - Number of packed images
+     * @throws AssertionError if a path is null
+     * @throws RuntimeException if a file cannot be read or the archive cannot be written
+     */
+    public static int pack(String folder, String archive){
+        assert folder != null && archive != null : "The folder or the archive is null";
+        Path root = Path.of(folder);
+        List<Path> files;
+        try (Stream<Path> walk = Files.walk(root)) {
+            files = walk.filter(Files::isRegularFile)
+                    .filter(p -> p.toString().endsWith(".qoi") || p.toString().endsWith(".png"))
+                    .toList();
+        } catch (IOException e) {
+            return Helper.fail("An error occurred while trying to list : \"%s\"%n", folder);
+        }
+
+        record Member(String name, byte[] file){}
+        Member[] members = files.parallelStream()
+                .map(p -> new Member(root.relativize(p).toString().replace(p.getFileSystem().getSeparator(), "/"),
+                        load(p.toString())))
+                .sorted(Comparator.comparing(Member::name))
+                .toArray(Member[]::new);
+        for (int i = 1; i < members.length; i++)
+            if (members[i].name().equals(members[i - 1].name()))
+                Helper.fail("Two members of the archive are named %s", members[i].name());
+
+        try (var channel = FileChannel.open(Path.of(archive), StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            long position = HEADER_SIZE;
+            long[] offsets = new long[members.length];
+            for (int i = 0; i < members.length; i++) {
+                offsets[i] = position;
+                position += write(channel, ByteBuffer.wrap(members[i].file()), position);
+            }
+
+            var directory = new ByteArrayOutputStream();
+            var entry = ByteBuffer.allocate(22);
+            for (int i = 0; i < members.length; i++) {
+                byte[] name = members[i].name().getBytes(StandardCharsets.UTF_8);
+                if (name.length > 0xFFFF) Helper.fail("The name %s is too long", members[i].name());
+                byte[] file = members[i].file();
+                directory.write(name.length >>> 8);
+                directory.write(name.length);
+                directory.write(name, 0, name.length);
+                entry.clear();
+                entry.putLong(offsets[i]).putInt(file.length)
+                        .putInt(ArrayUtils.readInt(file, 4)).putInt(ArrayUtils.readInt(file, 8))
+                        .put(file[12]).put(file[13]);
+                directory.write(entry.array(), 0, entry.capacity());
+            }
+            long directoryOffset = position;
+            write(channel, ByteBuffer.wrap(directory.toByteArray()), directoryOffset);
+
+            var header = ByteBuffer.allocate(HEADER_SIZE).put(MAGIC).putInt(members.length).putLong(directoryOffset);
+            write(channel, header.flip(), 0);
+        } catch (IOException e) {
+            Helper.fail("An error occurred while trying to write to : \"%s\"%n", archive);
+        }
+        return members.length;
+    }
+
+    /**
+     * Give the "Quite Ok Image" file of an image: read as is for a "QOI" file, encoded for a "PNG" one
+     * @param path (String) - Path of the image
+     * @return (byte[]) - The "Quite Ok Image" file
+     */
+    private static byte[] load(String path){
+        if (path.endsWith(".png")) {
+            var encoder = ReusableQOIEncoder.forThread();
+            encoder.encode(Helper.readImage(path));
+            return encoder.toByteArray();
+        }
+        byte[] file = Helper.read(path);
+        if (file.length < QOISpecification.HEADER_SIZE + QOISpecification.QOI_EOF.length
+                || !Arrays.equals(file, 0, 4, QOISpecification.QOI_MAGIC, 0, 4))
+            Helper.fail("The file %s is not a QOI file", path);
+        return file;
+    }
+
+    /**
+     * Write a whole buffer at a position of a file
+     * @return (int) - Number of written bytes
+     */
+    private static int write(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        int total = 0;
+        while (buffer.hasRemaining()) total += channel.write(buffer, position + total);
+        return total;
+    }
+
+}
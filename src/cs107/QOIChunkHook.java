@@ -0,0 +1,52 @@
+package cs107;
+
+/**
+ * Extension point of the "Quite Ok Image" encoder and decoder on the chunks that store a pixel
+ * in full (QOI_OP_RGB and QOI_OP_RGBA).
+ * <p>
+ * The encoder ({@link ReusableQOIEncoder}) lets the hook replace the pixel before it is written,
+ * and keeps using the replaced pixel as "previous pixel" and in its hash table, so that the stream
+ * stays decodable. The decoder ({@link ReusableQOIDecoder}) only lets the hook observe the chunks.
+ * Pixels are ARGB integers, as in {@link Helper.Image}.
+ * When no hook is given ({@code null}), the codec calls {@link #NONE}, which does nothing.
+ * @version 1.0
+ * @since 1.0
+ */
+public interface QOIChunkHook {
+
+    /**
+     * Hook leaving the pixels unchanged, used when no hook is given
+     */
+    QOIChunkHook NONE = new QOIChunkHook() {};
+
+    /**
+     * Called by the encoder before a pixel is written in a QOI_OP_RGB chunk
+     * @param pixel (int) - The pixel to encode (ARGB)
+     * @return (int) - The pixel to write instead (ARGB, its alpha is ignored), can be the given pixel
+     */
+    default int encodeRGB(int pixel){
+        return pixel;
+    }
+
+    /**
+     * Called by the encoder before a pixel is written in a QOI_OP_RGBA chunk
+     * @param pixel (int) - The pixel to encode (ARGB)
+     * @return (int) - The pixel to write instead (ARGB), can be the given pixel
+     */
+    default int encodeRGBA(int pixel){
+        return pixel;
+    }
+
+    /**
+     * Called by the decoder after a QOI_OP_RGB chunk has been decoded
+     * @param pixel (int) - The decoded pixel (ARGB)
+     */
+    default void decodedRGB(int pixel){}
+
+    /**
+     * Called by the decoder after a QOI_OP_RGBA chunk has been decoded
+     * @param pixel (int) - The decoded pixel (ARGB)
+     */
+    default void decodedRGBA(int pixel){}
+
+}
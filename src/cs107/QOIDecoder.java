@@ -1,5 +1,7 @@
 package cs107;
 
+import java.nio.ByteBuffer;
+
 import static cs107.Helper.Image;
 
 /**
@@ -42,8 +44,8 @@ public final class QOIDecoder {
                 "The color space is not equal to ALL or sRGB";
 
         int[] output = new int[4];
-        output[0] = ArrayUtils.toInt(ArrayUtils.extract(header,4,4));
-        output[1] = ArrayUtils.toInt(ArrayUtils.extract(header,8,4));
+        output[0] = ArrayUtils.readInt(header, 4);
+        output[1] = ArrayUtils.readInt(header, 8);
         output[2] = header[header.length-2];
         output[3] = header[header.length-1];
         return output;
@@ -54,7 +56,9 @@ public final class QOIDecoder {
     // ==================================================================================
 
     /**
-     * Store the pixel in the buffer and return the number of consumed bytes
+     * Store the pixel in the buffer and return the number of consumed bytes.
+     * The pixel is written into the array of 4 bytes already at this position, if any
+     * (as in the buffer of {@link #decodeData(byte[], int, int)}): no array is allocated then.
      * @author Elie BRUNO (elie.bruno@epfl.ch)
      * @param buffer (byte[][]) - Buffer where to store the pixel
      * @param input (byte[]) - Stream of bytes to read from
@@ -70,16 +74,22 @@ public final class QOIDecoder {
                 "The variable position doesn't point towards a valid location in the buffer";
         assert (idx+2 < input.length): "input does not contain enough data to recover the pixel";
 
-        byte[]   extracted = ArrayUtils.extract(input,idx,3);
-        byte[]   toBuffer = new byte[4];
-        System.arraycopy(extracted, 0, toBuffer, 0, extracted.length);
-        toBuffer[3]=alpha;
+        byte[]   toBuffer = pixelAt(buffer, position);
+        // One load of the 4 bytes ending with the pixel: the tag (or the next chunk) is replaced by alpha
+        if (idx > 0) {
+            ArrayUtils.writeInt(toBuffer, 0, ArrayUtils.readInt(input, idx - 1) << 8 | (alpha & 0xFF));
+        } else {
+            System.arraycopy(input, idx, toBuffer, 0, 3);
+            toBuffer[3] = alpha;
+        }
         buffer[position] = toBuffer;
         return 3;
     }
 
     /**
-     * Store the pixel in the buffer and return the number of consumed bytes
+     * Store the pixel in the buffer and return the number of consumed bytes.
+     * The pixel is written into the array of 4 bytes already at this position, if any
+     * (as in the buffer of {@link #decodeData(byte[], int, int)}): no array is allocated then.
      * @author Elie BRUNO (elie.bruno@epfl.ch)
      * @param buffer (byte[][]) - Buffer where to store the pixel
      * @param input (byte[]) - Stream of bytes to read from
@@ -94,11 +104,23 @@ public final class QOIDecoder {
                 "The variable position doesn't point towards a valid location in the buffer";
         assert ((idx + 3) < input.length): "Input does not contain enough data to recover the pixel";
 
-        byte[] toBuffer = ArrayUtils.extract(input,idx,4);
+        byte[] toBuffer = pixelAt(buffer, position);
+        ArrayUtils.writeInt(toBuffer, 0, ArrayUtils.readInt(input, idx));
         buffer[position] = toBuffer;
         return 4;
     }
 
+    /**
+     * Give the array where to write the pixel at a position of a buffer
+     * @param buffer (byte[][]) - Buffer of pixels
+     * @param position (int) - Index in the buffer
+     * @return (byte[]) - The array of the position if it has 4 bytes, a new array otherwise
+     */
+    private static byte[] pixelAt(byte[][] buffer, int position){
+        byte[] pixel = buffer[position];
+        return pixel != null && pixel.length == 4 ? pixel : new byte[4];
+    }
+
     /**
      * Create a new pixel following the "QOI_OP_DIFF" schema.
      * @author Elie BRUNO (elie.bruno@epfl.ch)
@@ -243,6 +265,44 @@ public final class QOIDecoder {
         return buffer;
     }
 
+    /**
+     * Decode the block stream of an image whose header announces 3 channels directly to ARGB data,
+     * with the {@link ReusableQOIDecoder} of the calling thread. If a QOI_OP_RGBA chunk is found
+     * anyway, null is returned, so that the caller can fall back to {@link #decodeData(byte[], int, int)}.
+     * @param data (byte[]) - Data to decode
+     * @param offset (int) - Index in data of the first chunk
+     * @param width (int) - The width of the expected output
+     * @param height (int) - The height of the expected output
+     * @return (int[][]) - ARGB image data, or null if the stream contains a QOI_OP_RGBA chunk
+     * @throws AssertionError if data is null or the dimensions are negative
+     */
+    public static int[][] decodeDataRGB(byte[] data, int offset, int width, int height) {
+        int[][] output = decodeDataARGB(data, offset, width, height);
+        if (width == 0 || height == 0) return output;
+        return ReusableQOIDecoder.forThread().stats()[QOIScan.RGBA] == 0 ? output : null;
+    }
+
+    /**
+     * Decode the block stream of an image directly to ARGB data, tracking the pixels as integers
+     * instead of arrays, with the {@link ReusableQOIDecoder} of the calling thread
+     * @param data (byte[]) - Data to decode
+     * @param offset (int) - Index in data of the first chunk
+     * @param width (int) - The width of the expected output
+     * @param height (int) - The height of the expected output
+     * @return (int[][]) - ARGB image data
+     * @throws AssertionError if data is null or the dimensions are negative
+     */
+    public static int[][] decodeDataARGB(byte[] data, int offset, int width, int height) {
+        assert data != null : "The data is null";
+        assert (width > -1) : "The width is negative";
+        assert (height > -1) : "The height is negative";
+
+        int[][] output = new int[height][width];
+        if (width > 0 && height > 0)
+            ReusableQOIDecoder.forThread().decodeData(ByteBuffer.wrap(data), offset, output);
+        return output;
+    }
+
     /**
      * Decode a file using the "Quite Ok Image" Protocol
      * @author Sebastian Kugler (362022)
@@ -251,25 +311,78 @@ public final class QOIDecoder {
      * @throws AssertionError if content is null
      */
     public static Image decodeQoiFile(byte[] content){
+        return decodeQoiFile(content, null);
+    }
+
+    /**
+     * Decode a file using the "Quite Ok Image" Protocol, letting a hook
+     * observe the QOI_OP_RGB and QOI_OP_RGBA chunks
+     * @param content (byte[]) - Content of the file to decode
+     * @param hook (QOIChunkHook) - Hook called on the QOI_OP_RGB and QOI_OP_RGBA chunks, can be null
+     * @return (Image) - Decoded image
+     * @throws AssertionError if content is null
+     */
+    public static Image decodeQoiFile(byte[] content, QOIChunkHook hook){
 
         assert content != null : "The content is null";
+        long start = System.nanoTime();
+        var decodeEvent = new CodecEvents.Decode();
+        decodeEvent.begin();
         assert ArrayUtils.equals(ArrayUtils.extract(
                 content, content.length-8, 8),QOISpecification.QOI_EOF) :
                 "The magic number is not valid";
 
         int[] header = decodeHeader(ArrayUtils.extract(content, 0, QOISpecification.HEADER_SIZE));
 
-        byte[] blockStream = ArrayUtils.extract(content, QOISpecification.HEADER_SIZE,
-                content.length - QOISpecification.HEADER_SIZE - QOISpecification.QOI_EOF.length);
-
         int width = header[0];
         int height = header[1];
         byte channels =(byte) header[2];
         byte colorSpace = (byte) header[3];
 
-        return Helper.generateImage(
-                ArrayUtils.channelsToImage(
-                        decodeData(blockStream, width, height), height, width), channels, colorSpace);
+        // Straight to ARGB data, with the decoder of the calling thread
+        // (an RGB header with QOI_OP_RGBA chunks anyway still decodes as ARGB)
+        var phase = new CodecEvents.Phase(CodecEvents.DECODE_DATA);
+        phase.begin();
+        int[][] data;
+        var decoder = ReusableQOIDecoder.forThread();
+        decoder.hook(hook);
+        try {
+            data = decodeDataARGB(content, QOISpecification.HEADER_SIZE, width, height);
+        } finally {
+            decoder.hook(null);
+        }
+        CodecMetrics.get().recordOps(decoder.stats());
+        commit(phase, width, height, channels, (long) width * height * 4);
+
+        Image image = Helper.generateImage(data, channels, colorSpace);
+        long pixelCount = (long) width * height;
+        CodecMetrics.get().recordDecode(pixelCount, content.length, pixelCount * channels, System.nanoTime() - start);
+        if (decodeEvent.shouldCommit()) {
+            decodeEvent.width = width;
+            decodeEvent.height = height;
+            decodeEvent.channels = channels;
+            decodeEvent.bytes = content.length;
+            decodeEvent.commit();
+        }
+        return image;
+    }
+
+    /**
+     * Commit a phase event of the decoder
+     * @param phase (CodecEvents.Phase) - Started phase event
+     * @param width (int) - Width of the decoded image
+     * @param height (int) - Height of the decoded image
+     * @param channels (byte) - Number of channels of the decoded image
+     * @param bytes (long) - Number of bytes produced by the phase
+     */
+    private static void commit(CodecEvents.Phase phase, int width, int height, byte channels, long bytes){
+        if (phase.shouldCommit()) {
+            phase.width = width;
+            phase.height = height;
+            phase.channels = channels;
+            phase.bytes = bytes;
+            phase.commit();
+        }
     }
 
 }
\ No newline at end of file
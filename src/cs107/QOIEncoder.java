@@ -37,11 +37,13 @@ public final class QOIEncoder {
         assert image.color_space() == QOISpecification.sRGB ||
                 image.color_space() == QOISpecification.ALL : "The image color space is corrupted";
 
-        return ArrayUtils.concat(
-                QOISpecification.QOI_MAGIC,
-                ArrayUtils.fromInt(image.data()[0].length),
-                ArrayUtils.fromInt(image.data().length),
-                ArrayUtils.concat(image.channels(), image.color_space()));
+        byte[] header = new byte[QOISpecification.HEADER_SIZE];
+        System.arraycopy(QOISpecification.QOI_MAGIC, 0, header, 0, QOISpecification.QOI_MAGIC.length);
+        ArrayUtils.writeInt(header, 4, image.data()[0].length);
+        ArrayUtils.writeInt(header, 8, image.data().length);
+        header[12] = image.channels();
+        header[13] = image.color_space();
+        return header;
     }
 
     // ==================================================================================
@@ -325,7 +327,199 @@ public final class QOIEncoder {
             prevPixel = image[i];
         }
 
-        // Statistics
+        printStatistics(stats);
+
+        // flatten the 2D array to 1D
+        return ArrayUtils.concat(encodedPixels.toArray(new byte[0][0]));
+    }
+
+    /**
+     * Encode a fully opaque image using the "Quite Ok Image" Protocol, with the
+     * {@link ReusableQOIEncoder} of the calling thread: the pixels are encoded as ARGB integers,
+     * without formatting them first. No QOI_OP_RGBA chunk can occur.
+     * The output is the same as {@link #encodeData(byte[][])} on the formatted image.
+     * @param data (int[][]) - ARGB image data, every pixel must be fully opaque
+     *             (see {@link ArrayUtils#isOpaque(int[][])})
+     * @return (byte[]) - "Quite Ok Image" representation of the image
+     * @throws AssertionError if the data is null or empty
+     */
+    public static byte[] encodeDataRGB(int[][] data) {
+        assert data != null && data.length > 0 && data[0].length > 0 : "The data is null or empty";
+
+        var encoder = ReusableQOIEncoder.forThread();
+        encoder.beginStream();
+        for (int[] line : data) encoder.encodePixels(line, 0, line.length);
+        encoder.flushRun();
+
+        printStatistics(encoder.stats());
+        return encoder.toByteArray();
+    }
+
+    /**
+     * Encode the given image using the "Quite Ok Image" Protocol, allowing every R, G and B
+     * channel of the decoded image to differ from the original by at most {@code maxError}
+     * (the alpha channel is kept exact). A pixel is snapped, in this order, onto the previous
+     * pixel (extending a run), onto the hash table entry of its hash, or onto a value reachable
+     * with a QOI_OP_DIFF or QOI_OP_LUMA chunk; only when none is close enough is it stored in full.
+     * The encoder tracks the pixels as the decoder will rebuild them, so the output is a
+     * standard stream for {@link QOIDecoder#decodeData(byte[], int, int)}.
+     * With {@code maxError == 0}, the decoded image is exactly the original one.
+     * @param data (int[][]) - ARGB image data
+     * @param maxError (int) - Maximal absolute error of a channel, in [0, 255]
+     * @return (byte[]) - "Quite Ok Image" representation of the image
+     * @throws AssertionError if the data is null or empty or maxError is invalid
+     */
+    public static byte[] encodeDataLossy(int[][] data, int maxError) {
+        assert data != null && data.length > 0 && data[0].length > 0 : "The data is null or empty";
+        assert maxError >= 0 && maxError <= 255 : "The maximal error is outside of [0, 255]";
+
+        // Initialization
+        byte[] output     = new byte[data.length * data[0].length * 5];
+        int[]  hashTable  = new int[64];
+        int    prevPixel  = 0xFF000000;
+        int    runCounter = 0;
+        int    pos        = 0;
+        int[]  stats      = new int[6];
+
+        for (int[] line : data) {
+            for (int pixel : line) {
+
+                // ---QOI_OP_RUN---
+                if (isClose(pixel, prevPixel, maxError)) {
+                    // The decoder stores the pixel of a run in its table too
+                    hashTable[QOIScan.hash(prevPixel)] = prevPixel;
+                    if (++runCounter == 62) {
+                        output[pos++] = (byte) (QOISpecification.QOI_OP_RUN_TAG | (runCounter - 1));
+                        stats[QOIScan.RUN] += runCounter;
+                        runCounter = 0;
+                    }
+                    continue;
+                }
+                if (runCounter > 0) {
+                    output[pos++] = (byte) (QOISpecification.QOI_OP_RUN_TAG | (runCounter - 1));
+                    stats[QOIScan.RUN] += runCounter;
+                    runCounter = 0;
+                }
+
+                int hash = QOIScan.hash(pixel);
+                int decoded;
+
+                // ---QOI_OP_INDEX---
+                if (isClose(pixel, hashTable[hash], maxError)) {
+                    output[pos++] = (byte) hash;
+                    stats[QOIScan.INDEX]++;
+                    decoded = hashTable[hash];
+                } else if ((pixel >>> 24) == (prevPixel >>> 24)) {
+                    int dr = (byte) ((pixel >>> 16) - (prevPixel >>> 16));
+                    int dg = (byte) ((pixel >>> 8) - (prevPixel >>> 8));
+                    int db = (byte) (pixel - prevPixel);
+                    int cdr = clamp(dr, LIM_DIFF_LO, LIM_DIFF_HI);
+                    int cdg = clamp(dg, LIM_DIFF_LO, LIM_DIFF_HI);
+                    int cdb = clamp(db, LIM_DIFF_LO, LIM_DIFF_HI);
+                    int lumaDg = lumaDg(pixel, prevPixel, dr, dg, db, maxError);
+
+                    // ---QOI_OP_DIFF---
+                    if (isClose(pixel, decoded = add(prevPixel, cdr, cdg, cdb), maxError)) {
+                        output[pos++] = (byte) (QOISpecification.QOI_OP_DIFF_TAG
+                                | (cdr + 2) << 4 | (cdg + 2) << 2 | (cdb + 2));
+                        stats[QOIScan.DIFF]++;
+                    }
+
+                    // ---QOI_OP_LUMA---
+                    else if (lumaDg != Integer.MIN_VALUE) {
+                        int drdg = clamp(dr - lumaDg, LIM_DRDB_LO + 1, OFF_LIM_DRDB_HI - 1);
+                        int dbdg = clamp(db - lumaDg, LIM_DRDB_LO + 1, OFF_LIM_DRDB_HI - 1);
+                        decoded = add(prevPixel, lumaDg + drdg, lumaDg, lumaDg + dbdg);
+                        output[pos++] = (byte) (QOISpecification.QOI_OP_LUMA_TAG | (lumaDg + OFF_LIM_DG_HI));
+                        output[pos++] = (byte) ((drdg + OFF_LIM_DRDB_HI) << 4 | (dbdg + OFF_LIM_DRDB_HI));
+                        stats[QOIScan.LUMA]++;
+                    }
+
+                    // ---QOI_OP_RGB---
+                    else {
+                        output[pos++] = QOISpecification.QOI_OP_RGB_TAG;
+                        output[pos++] = (byte) (pixel >>> 16);
+                        output[pos++] = (byte) (pixel >>> 8);
+                        output[pos++] = (byte) pixel;
+                        stats[QOIScan.RGB]++;
+                        decoded = pixel;
+                    }
+                }
+
+                // ---QOI_OP_RGBA---
+                else {
+                    output[pos++] = QOISpecification.QOI_OP_RGBA_TAG;
+                    output[pos++] = (byte) (pixel >>> 16);
+                    output[pos++] = (byte) (pixel >>> 8);
+                    output[pos++] = (byte) pixel;
+                    output[pos++] = (byte) (pixel >>> 24);
+                    stats[QOIScan.RGBA]++;
+                    decoded = pixel;
+                }
+
+                hashTable[QOIScan.hash(decoded)] = decoded;
+                prevPixel = decoded;
+            }
+        }
+        if (runCounter > 0) {
+            output[pos++] = (byte) (QOISpecification.QOI_OP_RUN_TAG | (runCounter - 1));
+            stats[QOIScan.RUN] += runCounter;
+        }
+
+        printStatistics(stats);
+        return ArrayUtils.extract(output, 0, pos);
+    }
+
+    /**
+     * Check if two ARGB pixels have the same alpha and R, G, B channels at most maxError apart
+     */
+    private static boolean isClose(int pixel, int other, int maxError) {
+        return (pixel >>> 24) == (other >>> 24)
+                && Math.abs(((pixel >>> 16) & 0xFF) - ((other >>> 16) & 0xFF)) <= maxError
+                && Math.abs(((pixel >>> 8) & 0xFF) - ((other >>> 8) & 0xFF)) <= maxError
+                && Math.abs((pixel & 0xFF) - (other & 0xFF)) <= maxError;
+    }
+
+    /**
+     * Add wrapping differences to the R, G and B channels of an ARGB pixel
+     */
+    private static int add(int pixel, int dr, int dg, int db) {
+        return (pixel & 0xFF000000)
+                | (((pixel >>> 16) + dr) & 0xFF) << 16
+                | (((pixel >>> 8) + dg) & 0xFF) << 8
+                | ((pixel + db) & 0xFF);
+    }
+
+    private static int clamp(int value, int lo, int hi) {
+        return Math.max(lo, Math.min(hi, value));
+    }
+
+    /**
+     * Find the green difference of a QOI_OP_LUMA chunk rebuilding a pixel close enough to the target
+     * @return (int) - The green difference, Integer.MIN_VALUE if no QOI_OP_LUMA chunk is close enough
+     */
+    private static int lumaDg(int pixel, int prevPixel, int dr, int dg, int db, int maxError) {
+        int lo = Math.max(LIM_DG_LO + 1, dg - maxError);
+        int hi = Math.min(OFF_LIM_DG_HI - 1, dg + maxError);
+        // Try the exact green difference first, then the closest ones
+        for (int delta = 0; dg - delta >= lo || dg + delta <= hi; delta++) {
+            for (int candidate : new int[]{dg - delta, dg + delta}) {
+                if (candidate < lo || candidate > hi) continue;
+                int drdg = clamp(dr - candidate, LIM_DRDB_LO + 1, OFF_LIM_DRDB_HI - 1);
+                int dbdg = clamp(db - candidate, LIM_DRDB_LO + 1, OFF_LIM_DRDB_HI - 1);
+                if (isClose(pixel, add(prevPixel, candidate + drdg, candidate, candidate + dbdg), maxError))
+                    return candidate;
+            }
+        }
+        return Integer.MIN_VALUE;
+    }
+
+    /**
+     * Print the statistics of an encoding and record them in the {@link CodecMetrics}
+     * @param stats (int[]) - Statistics, indexes: 0-QOI_OP_RUN, 1-QIO_OP_INDEX, 2-QOI_OP_DIFF,
+     *              3-QOI_OP_LUMA, 4-QOI_OP_RGB, 5-QOI_OP_RGBA
+     */
+    private static void printStatistics(int[] stats) {
         System.out.println("====== Encoding Statistics ======");
         System.out.println("    Method    |   Pixels encoded");
         System.out.println("QOI_OP_RUN    |   " + stats[0] );
@@ -335,9 +529,7 @@ public final class QOIEncoder {
         System.out.println("QOI_OP_RGB    |   " + stats[4] );
         System.out.println("QOI_OP_RGBA   |   " + stats[5] );
         System.out.println("=================================");
-
-        // flatten the 2D array to 1D
-        return ArrayUtils.concat(encodedPixels.toArray(new byte[0][0]));
+        CodecMetrics.get().recordOps(stats);
     }
 
     /**
@@ -350,9 +542,109 @@ public final class QOIEncoder {
      * TO CREATE THE FILE, YOU'LL NEED TO CALL Helper::write
      */
     public static byte[] qoiFile(Helper.Image image) {
+        return qoiFile(image, null);
+    }
+
+    /**
+     * Creates the representation in memory of the "Quite Ok Image" file, letting a hook
+     * replace the pixels written in QOI_OP_RGB and QOI_OP_RGBA chunks
+     * @param image (Helper.Image) - Image to encode
+     * @param hook (QOIChunkHook) - Hook called on the QOI_OP_RGB and QOI_OP_RGBA chunks, can be null
+     * @return (byte[]) - Binary representation of the "Quite Ok File" of the image
+     * @throws AssertionError if the image is null
+     */
+    public static byte[] qoiFile(Helper.Image image, QOIChunkHook hook) {
+        return qoiFile(image, hook, true);
+    }
+
+    /**
+     * Creates the representation in memory of the "Quite Ok Image" file, printing the statistics
+     * of the encoding or not (for the callers encoding in a loop)
+     * @param image (Helper.Image) - Image to encode
+     * @param hook (QOIChunkHook) - Hook called on the QOI_OP_RGB and QOI_OP_RGBA chunks, can be null
+     * @param print (boolean) - True to print the statistics in the Terminal
+     * @return (byte[]) - Binary representation of the "Quite Ok File" of the image
+     * @throws AssertionError if the image is null
+     */
+    public static byte[] qoiFile(Helper.Image image, QOIChunkHook hook, boolean print) {
+        assert image != null:"The image is null.";
+        long start = System.nanoTime();
+        var encodeEvent = new CodecEvents.Encode();
+        encodeEvent.begin();
+        // Straight to the file, with the encoder of the calling thread
+        var phase = new CodecEvents.Phase(CodecEvents.ENCODE_DATA);
+        phase.begin();
+        var encoder = ReusableQOIEncoder.forThread();
+        encoder.hook(hook);
+        try {
+            encoder.encode(image);
+        } finally {
+            encoder.hook(null);
+        }
+        byte[] file = encoder.toByteArray();
+        commit(phase, image, file.length);
+        if (print) printStatistics(encoder.stats());
+        else CodecMetrics.get().recordOps(encoder.stats());
+        return recordEncode(image, file, start, encodeEvent);
+    }
+
+    /**
+     * Record the encoding of a file in the {@link CodecMetrics} and commit its event
+     * @param image (Helper.Image) - Encoded image
+     * @param file (byte[]) - The "Quite Ok Image" file
+     * @param start (long) - Value of {@link System#nanoTime()} at the start of the encoding
+     * @param encodeEvent (CodecEvents.Encode) - Started encoding event
+     * @return (byte[]) - The file
+     */
+    private static byte[] recordEncode(Helper.Image image, byte[] file, long start, CodecEvents.Encode encodeEvent){
+        int width = image.data()[0].length;
+        int height = image.data().length;
+        long pixels = (long) width * height;
+        CodecMetrics.get().recordEncode(pixels, pixels * image.channels(), file.length, System.nanoTime() - start);
+        if (encodeEvent.shouldCommit()) {
+            encodeEvent.width = width;
+            encodeEvent.height = height;
+            encodeEvent.channels = image.channels();
+            encodeEvent.bytes = file.length;
+            encodeEvent.commit();
+        }
+        return file;
+    }
+
+    /**
+     * Creates the representation in memory of the near-lossless "Quite Ok Image" file of an image
+     * (see {@link #encodeDataLossy(int[][], int)})
+     * @param image (Helper.Image) - Image to encode
+     * @param maxError (int) - Maximal absolute error of the R, G and B channels, in [0, 255]
+     * @return (byte[]) - Binary representation of the "Quite Ok File" of the image
+     * @throws AssertionError if the image is null
+     */
+    public static byte[] qoiFileLossy(Helper.Image image, int maxError) {
         assert image != null:"The image is null.";
-        return ArrayUtils.concat(qoiHeader(image),
-                encodeData(ArrayUtils.imageToChannels(image.data())),
-                QOISpecification.QOI_EOF);
+        long start = System.nanoTime();
+        var phase = new CodecEvents.Phase(CodecEvents.ENCODE_DATA);
+        phase.begin();
+        byte[] data = encodeDataLossy(image.data(), maxError);
+        commit(phase, image, data.length);
+        byte[] file = ArrayUtils.concat(qoiHeader(image), data, QOISpecification.QOI_EOF);
+        long pixels = (long) image.data().length * image.data()[0].length;
+        CodecMetrics.get().recordEncode(pixels, pixels * image.channels(), file.length, System.nanoTime() - start);
+        return file;
+    }
+
+    /**
+     * Commit a phase event of the encoder
+     * @param phase (CodecEvents.Phase) - Started phase event
+     * @param image (Helper.Image) - Image being encoded
+     * @param bytes (long) - Number of bytes produced by the phase
+     */
+    private static void commit(CodecEvents.Phase phase, Helper.Image image, long bytes) {
+        if (phase.shouldCommit()) {
+            phase.width = image.data()[0].length;
+            phase.height = image.data().length;
+            phase.channels = image.channels();
+            phase.bytes = bytes;
+            phase.commit();
+        }
     }
 }
\ No newline at end of file
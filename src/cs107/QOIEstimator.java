@@ -0,0 +1,165 @@
+package cs107;
+
+import java.io.File;
+
+/**
+ * Estimator of the size of the "Quite Ok Image" encoding of an image, without encoding it.
+ * <p>
+ * Bands of rows, evenly spread over the image, are scanned with {@link QOIScan} and the bytes and
+ * op mix are extrapolated to the whole image. Each band starts from the encoder state left by the
+ * band of rows above it, as in the full encoding: from a fresh state, the first pixels of every band
+ * would be costly QOI_OP_RGB chunks instead of indexes and diffs, and the estimate would be biased
+ * upward (+12% on "references/EPFL.png", whose hash table needs several rows to fill).
+ * The confidence bound treats the bytes per row of each band as a sample of the bytes per row
+ * of the image (normal approximation with finite population correction). The rows above the warm-up
+ * still lower the size a little, so the lower bound is also widened by the fresh-state penalty
+ * measured on the bands (their size from a fresh state minus their size after the warm-up).
+ * @version 1.0
+ * @since 1.0
+ */
+public final class QOIEstimator {
+
+    /**
+     * Default part of the rows to scan
+     */
+    public static final double DEFAULT_FRACTION = 0.1;
+
+    /**
+     * Default number of rows of a band
+     */
+    public static final int DEFAULT_BAND_HEIGHT = 8;
+
+    /**
+     * Minimal number of scanned bands, so that small images still get a usable interval
+     */
+    private static final int MIN_BANDS = 16;
+
+    /**
+     * z-score of a two-sided 95% confidence interval
+     */
+    private static final double Z_95 = 1.96;
+
+    /**
+     * Size of the header and the end marker of a "Quite Ok Image" file
+     */
+    private static final int OVERHEAD = QOISpecification.HEADER_SIZE + QOISpecification.QOI_EOF.length;
+
+    /**
+     * Result of an estimation
+     * @param bytes (long) - Estimated size of the "Quite Ok Image" file
+     * @param low (long) - Lower bound of the 95% confidence interval of the size, widened by the fresh-state penalty
+     * @param high (long) - Upper bound of the 95% confidence interval of the size
+     * @param opMix (double[]) - Estimated part of the pixels covered by each op
+     *              (same indexes as {@link QOIScan})
+     * @param sampledRows (long) - Number of scanned rows
+     * @param rows (int) - Number of rows of the image
+     */
+    public record Estimate(long bytes, long low, long high, double[] opMix, long sampledRows, int rows){}
+
+    // ============================================================================================
+    // ==================================== ESTIMATOR API =========================================
+    // ============================================================================================
+
+    /**
+     * Estimate the size of the encoding of an image with the default sampling
+     * @param image (Helper.Image) - Image to estimate
+     * @return (Estimate) - The estimation
+     */
+    public static Estimate estimate(Helper.Image image){
+        return estimate(image, DEFAULT_FRACTION, DEFAULT_BAND_HEIGHT);
+    }
+
+    /**
+     * Estimate the size of the encoding of an image
+     * @param image (Helper.Image) - Image to estimate
+     * @param fraction (double) - Part of the rows to scan, in ]0, 1]
+     * @param bandHeight (int) - Number of rows of a band
+     * @return (Estimate) - The estimation
+     */
+    public static Estimate estimate(Helper.Image image, double fraction, int bandHeight){
+        assert image != null : "The image is null";
+        int rows = image.data().length;
+        int totalBands = (rows + bandHeight - 1) / bandHeight;
+        double sampled = Math.min(1, Math.max(fraction, (double) MIN_BANDS / totalBands));
+        var bands = QOIScan.sample(image, sampled, bandHeight, bandHeight);
+
+        var total = new QOIScan.Counts();
+        for (var band : bands) total.merge(band);
+        double scale = (double) rows / total.rows;
+        double bytes = total.bytes() * scale;
+
+        // Same bands from a fresh state: what the missing history can still cost, at most
+        long freshBytes = 0;
+        for (var band : QOIScan.sample(image, sampled, bandHeight)) freshBytes += band.bytes();
+        double penalty = Math.max(0, freshBytes - total.bytes()) * scale;
+
+        // Variance of the bytes per row between the bands
+        double meanPerRow = (double) total.bytes() / total.rows;
+        double squares = 0;
+        for (var band : bands) {
+            double deviation = (double) band.bytes() / band.rows - meanPerRow;
+            squares += deviation * deviation;
+        }
+        int n = bands.length;
+        double margin = 0;
+        if (n > 1 && n < totalBands) {
+            double stdDev = Math.sqrt(squares / (n - 1));
+            double correction = Math.sqrt(1 - (double) n / totalBands);
+            margin = Z_95 * stdDev / Math.sqrt(n) * correction * rows;
+        }
+
+        double[] opMix = new double[6];
+        long pixels = total.totalPixels();
+        for (int op = 0; op < opMix.length; op++)
+            opMix[op] = pixels == 0 ? 0 : (double) total.pixels[op] / pixels;
+
+        return new Estimate(Math.round(bytes) + OVERHEAD,
+                Math.max(OVERHEAD, Math.round(bytes - margin - penalty) + OVERHEAD),
+                Math.round(bytes + margin) + OVERHEAD,
+                opMix, total.rows, rows);
+    }
+
+    /**
+     * Compare the estimation with the full encoding of images (by default, the "PNG" files of
+     * the folder "references/") and print the result in the Terminal
+     * @param args (String[]) - Paths of the images to check, empty for the references
+     */
+    public static void main(String[] args){
+        String[] paths = args;
+        if (paths.length == 0) {
+            File[] references = new File("references").listFiles((dir, name) -> name.endsWith(".png"));
+            assert references != null : "The folder references/ is missing";
+            paths = new String[references.length];
+            for (int i = 0; i < references.length; i++) paths[i] = references[i].getPath();
+        }
+
+        System.out.println("==================================== QOI SIZE ESTIMATOR ==================================");
+        System.out.println("== Image                         |   Estimate  | 95% interval            |    Actual   | Error");
+        var outside = new StringBuilder();
+        int outsideCount = 0;
+        for (String path : paths) {
+            var image = Helper.readImage(path);
+            var estimate = estimate(image);
+
+            // Without the statistics of the encoding, which would hide the report
+            long actual = QOIEncoder.qoiFile(image, null, false).length;
+            boolean inside = estimate.low() <= actual && actual <= estimate.high();
+            System.out.printf("== %-30s| %11d | [%9d, %9d] | %11d | %+.2f%%%s%n", path, estimate.bytes(),
+                    estimate.low(), estimate.high(), actual, 100d * (estimate.bytes() - actual) / actual,
+                    inside ? "" : " (outside)");
+            if (!inside) {
+                outside.append(' ').append(path);
+                outsideCount++;
+            }
+        }
+        System.out.println("==========================================================================================");
+        System.out.printf("== %d / %d images outside of their 95%% interval%s%n", outsideCount, paths.length,
+                outsideCount == 0 ? "" : " :" + outside);
+    }
+
+    // ============================================================================================
+
+    // Hide default constructor
+    private QOIEstimator(){}
+
+}
@@ -0,0 +1,340 @@
+package cs107;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Flow;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Reactive ({@link Flow}) adapters of the "Quite Ok Image" codec.
+ * <p>
+ * {@link Encoder} receives the pixels of an image as buffers of ARGB integers (big endian,
+ * typically one row per buffer, but a pixel may be split between two buffers) and publishes
+ * the "Quite Ok Image" file in pieces. {@link Decoder} receives a file in pieces of any size
+ * and publishes its rows, one buffer of ARGB integers per row.
+ * <p>
+ * Both processors follow the demand of their (single) subscriber: an item is only requested
+ * upstream when the subscriber wants one and nothing is buffered. A slow sink therefore slows
+ * the whole pipeline down instead of letting the stream queue up in memory.
+ * @version 1.0
+ * @since 1.0
+ */
+public final class QOIFlow {
+
+    // ============================================================================================
+    // ======================================= ENCODER ============================================
+    // ============================================================================================
+
+    /**
+     * Processor encoding the pixels of an image to a "Quite Ok Image" file.
+     * Each published buffer holds the chunks produced by one received buffer
+     * (nothing is published for a received buffer that doesn't complete a row).
+     */
+    public static final class Encoder extends Processor {
+
+        private final ReusableQOIEncoder encoder = new ReusableQOIEncoder();
+        private final byte[] rowBytes;
+        private final int[]  row;
+        private int          filled;
+        private boolean      ended;
+
+        /**
+         * Create an encoder of an image
+         * @param width (int) - Width of the image
+         * @param height (int) - Height of the image
+         * @param channels (byte) - Number of channels of the image
+         * @param colorSpace (byte) - Color space of the image
+         * @throws AssertionError if the dimensions, the channels or the color space are invalid
+         */
+        public Encoder(int width, int height, byte channels, byte colorSpace){
+            encoder.begin(width, height, channels, colorSpace);
+            rowBytes = new byte[width * 4];
+            row = new int[width];
+        }
+
+        @Override
+        void accept(ByteBuffer input){
+            while (input.hasRemaining()) {
+                int length = Math.min(input.remaining(), rowBytes.length - filled);
+                input.get(rowBytes, filled, length);
+                filled += length;
+                if (filled == rowBytes.length) {
+                    for (int x = 0; x < row.length; x++) row[x] = ArrayUtils.readInt(rowBytes, x * 4);
+                    encoder.encodeRow(row);
+                    filled = 0;
+                }
+            }
+        }
+
+        @Override
+        ByteBuffer next(boolean last){
+            if (last && !ended) {
+                if (filled != 0) throw new IllegalStateException("The last row of the image is incomplete");
+                encoder.end();
+                ended = true;
+            }
+            return encoder.size() == 0 ? null : ByteBuffer.wrap(encoder.drain());
+        }
+    }
+
+    // ============================================================================================
+    // ======================================= DECODER ============================================
+    // ============================================================================================
+
+    /**
+     * Processor decoding a "Quite Ok Image" file to the rows of its image.
+     * Each published buffer holds one row, as ARGB integers (big endian).
+     * A row is only decoded when the subscriber asks for it.
+     */
+    public static final class Decoder extends Processor {
+
+        private final ReusableQOIDecoder decoder = new ReusableQOIDecoder();
+        private byte[]        pending = new byte[1 << 12];
+        private int           start;
+        private int           end;
+        private boolean       begun;
+        private int[]         row;
+        private volatile int  width;
+        private volatile int  height;
+        private volatile byte channels;
+
+        /**
+         * @return (int) - Width of the image, 0 until its header is received
+         */
+        public int width(){
+            return width;
+        }
+
+        /**
+         * @return (int) - Height of the image, 0 until its header is received
+         */
+        public int height(){
+            return height;
+        }
+
+        /**
+         * @return (byte) - Number of channels of the image, 0 until its header is received
+         */
+        public byte channels(){
+            return channels;
+        }
+
+        @Override
+        void accept(ByteBuffer input){
+            // Drop what is decoded, then append the input
+            if (begun) start = decoder.position();
+            System.arraycopy(pending, start, pending, 0, end - start);
+            end -= start;
+            start = 0;
+            if (end + input.remaining() > pending.length)
+                pending = Arrays.copyOf(pending, Math.max(end + input.remaining(), pending.length * 2));
+            int length = input.remaining();
+            input.get(pending, end, length);
+            end += length;
+            if (begun) decoder.rebase(ByteBuffer.wrap(pending, 0, end), 0);
+        }
+
+        @Override
+        ByteBuffer next(boolean last){
+            if (!begun) {
+                if (end - start < QOISpecification.HEADER_SIZE) {
+                    if (last) throw new IllegalStateException("The file is shorter than a header");
+                    return null;
+                }
+                decoder.begin(ByteBuffer.wrap(pending, start, end - start));
+                row = new int[decoder.width()];
+                channels = decoder.channels();
+                height = decoder.height();
+                width = decoder.width();
+                begun = true;
+            }
+            // A row never takes more than 5 bytes per pixel: decode it once they are all there
+            if (!last && end - decoder.position() < row.length * 5) return null;
+            try {
+                if (!decoder.nextRow(row)) return null;
+            } catch (IndexOutOfBoundsException e) {
+                throw new IllegalStateException("The file is truncated", e);
+            }
+            ByteBuffer output = ByteBuffer.allocate(row.length * 4);
+            output.asIntBuffer().put(row);
+            return output;
+        }
+    }
+
+    // ============================================================================================
+    // ===================================== PROCESSOR ============================================
+    // ============================================================================================
+
+    /**
+     * Processor with a single subscriber, pulling the items of its publisher one at a time
+     * when its subscriber has demand and no output is available.
+     * <p>
+     * All the signals end up in {@link #drain()}, which runs on one thread at a time
+     * (the thread that finds no drain running), so the codec itself is never shared.
+     */
+    abstract static sealed class Processor implements Flow.Processor<ByteBuffer, ByteBuffer> permits Encoder, Decoder {
+
+        private final Queue<ByteBuffer> inputs = new ConcurrentLinkedQueue<>();
+        private final AtomicLong        demand = new AtomicLong();
+        private final AtomicInteger     wip    = new AtomicInteger();
+
+        private volatile Flow.Subscription                 upstream;
+        private volatile Flow.Subscriber<? super ByteBuffer> downstream;
+        private volatile boolean                           done;
+        private volatile boolean                           cancelled;
+        private volatile Throwable                         error;
+
+        // Only used by the drain
+        private ByteBuffer ready;
+        private boolean    requested;
+        private boolean    terminated;
+
+        /**
+         * Consume a received buffer
+         * @param input (ByteBuffer) - The buffer
+         */
+        abstract void accept(ByteBuffer input);
+
+        /**
+         * Produce the next output from what was received
+         * @param last (boolean) - true if nothing more will be received
+         * @return (ByteBuffer) - The output, null if more input is needed (or if everything is published when last)
+         * @throws IllegalStateException if the received data is invalid
+         */
+        abstract ByteBuffer next(boolean last);
+
+        @Override
+        public void subscribe(Flow.Subscriber<? super ByteBuffer> subscriber){
+            if (downstream != null) {
+                subscriber.onSubscribe(new Flow.Subscription() {
+                    @Override public void request(long n){}
+                    @Override public void cancel(){}
+                });
+                subscriber.onError(new IllegalStateException("The processor already has a subscriber"));
+                return;
+            }
+            downstream = subscriber;
+            subscriber.onSubscribe(new Flow.Subscription() {
+                @Override
+                public void request(long n){
+                    if (n <= 0) {
+                        error = new IllegalArgumentException("The demand must be positive: " + n);
+                        done = true;
+                        if (upstream != null) upstream.cancel();
+                    } else {
+                        demand.getAndAccumulate(n, (current, added) -> current + added < 0 ? Long.MAX_VALUE : current + added);
+                    }
+                    drain();
+                }
+
+                @Override
+                public void cancel(){
+                    cancelled = true;
+                    if (upstream != null) upstream.cancel();
+                    drain();
+                }
+            });
+            drain();
+        }
+
+        @Override
+        public void onSubscribe(Flow.Subscription subscription){
+            if (upstream != null) {
+                subscription.cancel();
+                return;
+            }
+            upstream = subscription;
+            if (cancelled) subscription.cancel();
+            drain();
+        }
+
+        @Override
+        public void onNext(ByteBuffer item){
+            inputs.offer(item);
+            drain();
+        }
+
+        @Override
+        public void onError(Throwable throwable){
+            error = throwable;
+            done = true;
+            drain();
+        }
+
+        @Override
+        public void onComplete(){
+            done = true;
+            drain();
+        }
+
+        /**
+         * Publish what the subscriber asks for and request more input when needed
+         */
+        private void drain(){
+            if (wip.getAndIncrement() != 0) return;
+            int missed = 1;
+            do {
+                if (cancelled || terminated) {
+                    inputs.clear();
+                } else if (downstream != null && upstream != null) {
+                    step();
+                }
+                missed = wip.addAndGet(-missed);
+            } while (missed != 0);
+        }
+
+        /**
+         * One round of the drain: emit while there is demand, then complete or request more
+         */
+        private void step(){
+            var subscriber = downstream;
+            try {
+                while (error == null && !cancelled) {
+                    if (ready == null) ready = next(done && inputs.isEmpty());
+                    if (ready != null) {
+                        if (demand.get() == 0) break;
+                        demand.decrementAndGet();
+                        ByteBuffer output = ready;
+                        ready = null;
+                        subscriber.onNext(output);
+                        continue;
+                    }
+                    ByteBuffer input = inputs.poll();
+                    if (input == null) break;
+                    requested = false;
+                    accept(input);
+                }
+                if (error == null && !cancelled && ready == null && done && inputs.isEmpty()
+                        && (ready = next(true)) == null) {
+                    terminated = true;
+                    subscriber.onComplete();
+                    return;
+                }
+            } catch (RuntimeException | AssertionError e) {
+                upstream.cancel();
+                error = e;
+            }
+            if (cancelled) return;
+            if (error != null) {
+                terminated = true;
+                ready = null;
+                inputs.clear();
+                subscriber.onError(error);
+                return;
+            }
+            if (!done && !requested && ready == null && demand.get() > 0 && inputs.isEmpty()) {
+                requested = true;
+                upstream.request(1);
+            }
+        }
+    }
+
+    // ============================================================================================
+
+    // Hide default constructor
+    private QOIFlow(){}
+
+}
@@ -0,0 +1,255 @@
+package cs107;
+
+import java.util.stream.IntStream;
+
+/**
+ * Op selection of the "Quite Ok Image" encoder without the encoding.
+ * <p>
+ * The scan applies the same rules, in the same order, as {@link QOIEncoder#encodeData(byte[][])}
+ * (run, index, diff, luma, rgb, rgba) directly on the ARGB pixels of a {@link Helper.Image},
+ * but only counts the chunks instead of emitting them: no byte is written and no pixel is copied.
+ * Bands of rows can be scanned independently, each one starting from a fresh encoder state,
+ * or from the state left by the rows just above it.
+ * @version 1.0
+ * @since 1.0
+ */
+public final class QOIScan {
+
+    // Indexes of the counters, same order as the statistics of QOIEncoder.encodeData
+    public static final int RUN   = 0;
+    public static final int INDEX = 1;
+    public static final int DIFF  = 2;
+    public static final int LUMA  = 3;
+    public static final int RGB   = 4;
+    public static final int RGBA  = 5;
+
+    /**
+     * Size in bytes of each op, same indexes as the counters
+     */
+    public static final int[] OP_SIZES = {1, 1, 1, 2, 4, 5};
+
+    /**
+     * "Previous pixel" of a fresh encoder, in ARGB
+     */
+    private static final int START_ARGB = 0xFF000000;
+
+    /**
+     * Chunks and pixels counted by a scan
+     */
+    public static final class Counts {
+
+        /**
+         * Number of chunks of each op
+         */
+        public final long[] chunks = new long[6];
+
+        /**
+         * Number of pixels covered by each op
+         */
+        public final long[] pixels = new long[6];
+
+        /**
+         * Number of scanned rows
+         */
+        public long rows;
+
+        /**
+         * @return (long) - Size of the block stream the encoder would produce
+         */
+        public long bytes(){
+            long bytes = 0;
+            for (int op = 0; op < chunks.length; op++) bytes += chunks[op] * OP_SIZES[op];
+            return bytes;
+        }
+
+        /**
+         * @return (long) - Number of scanned pixels
+         */
+        public long totalPixels(){
+            long total = 0;
+            for (long p : pixels) total += p;
+            return total;
+        }
+
+        /**
+         * Add the counts of another scan to these ones
+         * @param other (Counts) - Counts to add
+         * @return (Counts) - this
+         */
+        public Counts merge(Counts other){
+            for (int op = 0; op < chunks.length; op++) {
+                chunks[op] += other.chunks[op];
+                pixels[op] += other.pixels[op];
+            }
+            rows += other.rows;
+            return this;
+        }
+    }
+
+    // ============================================================================================
+    // ======================================= SCAN API ===========================================
+    // ============================================================================================
+
+    /**
+     * Scan a whole image, as {@link QOIEncoder#encodeData(byte[][])} would encode it
+     * @param image (Helper.Image) - Image to scan
+     * @return (Counts) - Exact chunk counts of the encoding of the image
+     */
+    public static Counts scan(Helper.Image image){
+        assert image != null : "The image is null";
+        return scan(image.data(), 0, image.data().length);
+    }
+
+    /**
+     * Scan a band of rows, starting from a fresh encoder state
+     * @param data (int[][]) - ARGB pixels of the image
+     * @param fromRow (int) - First row of the band
+     * @param toRow (int) - Last row of the band (exclusive)
+     * @return (Counts) - Chunk counts of the encoding of the band alone
+     * @throws AssertionError if the band is outside the image
+     */
+    public static Counts scan(int[][] data, int fromRow, int toRow){
+        return scan(data, fromRow, fromRow, toRow);
+    }
+
+    /**
+     * Scan a band of rows, starting from the encoder state left by the rows above it.
+     * The rows from {@code warmRow} to {@code fromRow} only fill the hash table and the previous pixel:
+     * their chunks are not counted (a run pending at {@code fromRow} is left to them).
+     * @param data (int[][]) - ARGB pixels of the image
+     * @param warmRow (int) - First row setting the state of the encoder, fromRow for a fresh state
+     * @param fromRow (int) - First row of the band
+     * @param toRow (int) - Last row of the band (exclusive)
+     * @return (Counts) - Chunk counts of the encoding of the band
+     * @throws AssertionError if the rows are outside the image
+     */
+    public static Counts scan(int[][] data, int warmRow, int fromRow, int toRow){
+        assert data != null : "The data is null";
+        assert 0 <= warmRow && warmRow <= fromRow && fromRow <= toRow && toRow <= data.length :
+                "The band is outside the image";
+
+        var counts = new Counts();
+        int[] hashTable = new int[64];
+        int prev = START_ARGB;
+        int run = 0;
+
+        for (int y = warmRow; y < fromRow; y++) {
+            for (int argb : data[y]) {
+                hashTable[hash(argb)] = argb;
+                prev = argb;
+            }
+        }
+        for (int y = fromRow; y < toRow; y++) {
+            for (int argb : data[y]) {
+                if (argb == prev) {
+                    if (++run == 62) {
+                        counts.chunks[RUN]++;
+                        counts.pixels[RUN] += run;
+                        run = 0;
+                    }
+                    continue;
+                }
+                if (run > 0) {
+                    counts.chunks[RUN]++;
+                    counts.pixels[RUN] += run;
+                    run = 0;
+                }
+                int op = classify(argb, prev, hashTable);
+                counts.chunks[op]++;
+                counts.pixels[op]++;
+                hashTable[hash(argb)] = argb;
+                prev = argb;
+            }
+        }
+        if (run > 0) {
+            counts.chunks[RUN]++;
+            counts.pixels[RUN] += run;
+        }
+        counts.rows = toRow - fromRow;
+        return counts;
+    }
+
+    /**
+     * Scan a sample of the image: bands of {@code bandHeight} rows, evenly spread, each one
+     * starting from a fresh encoder state. The bands are scanned in parallel.
+     * @param image (Helper.Image) - Image to scan
+     * @param fraction (double) - Part of the rows to scan, in ]0, 1]
+     * @param bandHeight (int) - Number of rows of a band
+     * @return (Counts[]) - Counts of each scanned band
+     * @throws AssertionError if the fraction or the band height is invalid
+     */
+    public static Counts[] sample(Helper.Image image, double fraction, int bandHeight){
+        return sample(image, fraction, bandHeight, 0);
+    }
+
+    /**
+     * Scan a sample of the image: bands of {@code bandHeight} rows, evenly spread, each one
+     * starting from the encoder state left by the {@code warmRows} rows above it (the first band of
+     * the image starts from a fresh state, as the encoder does). The bands are scanned in parallel.
+     * @param image (Helper.Image) - Image to scan
+     * @param fraction (double) - Part of the rows to scan, in ]0, 1]
+     * @param bandHeight (int) - Number of rows of a band
+     * @param warmRows (int) - Number of rows above a band setting its state, 0 for a fresh state
+     * @return (Counts[]) - Counts of each scanned band
+     * @throws AssertionError if the fraction, the band height or the number of rows is invalid
+     */
+    public static Counts[] sample(Helper.Image image, double fraction, int bandHeight, int warmRows){
+        assert image != null : "The image is null";
+        assert fraction > 0 && fraction <= 1 : "The fraction is outside of ]0, 1]";
+        assert bandHeight > 0 : "The band height is not positive";
+        assert warmRows >= 0 : "The number of rows setting the state is negative";
+
+        int[][] data = image.data();
+        int bands = (data.length + bandHeight - 1) / bandHeight;
+        int sampled = Math.max(1, Math.min(bands, (int) Math.round(bands * fraction)));
+        return IntStream.range(0, sampled).parallel()
+                .mapToObj(i -> {
+                    int band = (int) ((long) i * bands / sampled);
+                    int fromRow = band * bandHeight;
+                    return scan(data, Math.max(0, fromRow - warmRows), fromRow,
+                            Math.min(data.length, fromRow + bandHeight));
+                })
+                .toArray(Counts[]::new);
+    }
+
+    // ============================================================================================
+
+    // Hide default constructor
+    private QOIScan(){}
+
+    /**
+     * Choose the op of a pixel that is not the previous one
+     * @param argb (int) - The pixel
+     * @param prev (int) - The previous pixel
+     * @param hashTable (int[]) - Hash table of the encoder
+     * @return (int) - Index of the op
+     */
+    static int classify(int argb, int prev, int[] hashTable){
+        if (hashTable[hash(argb)] == argb) return INDEX;
+        if ((argb >>> 24) != (prev >>> 24)) return RGBA;
+
+        int dr = (byte) ((argb >> 16) - (prev >> 16));
+        int dg = (byte) ((argb >> 8) - (prev >> 8));
+        int db = (byte) (argb - prev);
+        if (dr >= -2 && dr <= 1 && dg >= -2 && dg <= 1 && db >= -2 && db <= 1) return DIFF;
+
+        int drdg = (byte) (dr - dg);
+        int dbdg = (byte) (db - dg);
+        if (dg >= -32 && dg <= 31 && drdg >= -8 && drdg <= 7 && dbdg >= -8 && dbdg <= 7) return LUMA;
+        return RGB;
+    }
+
+    /**
+     * Hash of an ARGB pixel, same value as {@link QOISpecification#hash(byte[])} on its RGBA bytes
+     * @param argb (int) - The pixel
+     * @return (int) - Index in the hash table
+     */
+    static int hash(int argb){
+        int r = (argb >>> 16) & 0xFF;
+        int g = (argb >>> 8) & 0xFF;
+        int b = argb & 0xFF;
+        int a = argb >>> 24;
+        return (r * 3 + g * 5 + b * 7 + a * 11) & 63;
+    }
+
+}
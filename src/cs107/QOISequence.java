@@ -0,0 +1,480 @@
+package cs107;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+
+/**
+ * Container of a sequence of frames of the same size (a screen recording, for instance),
+ * storing each frame relative to the previous one.
+ * <p>
+ * Layout of a file (integers in "Big Endian"):
+ * <pre>
+ *     header   : "qois", width (4), height (4), channels (1), color space (1)
+ *     frames   : type (1), length (4), payload (length bytes)   -- once per frame
+ *     index    : offset of each frame (8)
+ *     footer   : offset of the index (8), number of frames (4), "qsix"
+ * </pre>
+ * A keyframe is a plain "Quite Ok Image" file. The payload of a delta frame is a list of segments
+ * covering the pixels in order: {@code skip} pixels that are the same as in the previous frame,
+ * then {@code literal} pixels encoded with the chunks of the protocol (both counts as varints).
+ * The state of the chunks (previous pixel and hash table) starts fresh with each frame and
+ * continues from one literal to the next; after a skip, the previous pixel is the last skipped one.
+ * <p>
+ * The reader keeps one frame, and decodes a delta frame in place: skipped pixels are not even
+ * touched. The index lets it seek to any frame from the closest keyframe before it.
+ * The reader addresses the whole sequence in one {@link ByteBuffer}: a sequence is limited to
+ * {@link #MAX_SIZE} bytes, and the writer refuses a frame that would make it longer.
+ * @version 1.0
+ * @since 1.0
+ */
+public final class QOISequence {
+
+    /**
+     * Magic number at the start of a sequence
+     */
+    public static final byte[] MAGIC = {'q', 'o', 'i', 's'};
+
+    /**
+     * Magic number at the end of a sequence, after its index
+     */
+    public static final byte[] INDEX_MAGIC = {'q', 's', 'i', 'x'};
+
+    // Types of frames
+    public static final byte KEYFRAME = 0;
+    public static final byte DELTA    = 1;
+
+    /**
+     * Default number of frames between two forced keyframes
+     */
+    public static final int DEFAULT_KEYFRAME_INTERVAL = 120;
+
+    /**
+     * Maximal size of a sequence, index and footer included (the largest {@link ByteBuffer})
+     */
+    public static final long MAX_SIZE = Integer.MAX_VALUE;
+
+    /**
+     * Minimal number of matching pixels worth a skip (shorter matches are left to the chunks)
+     */
+    private static final int MIN_SKIP = 4;
+
+    private static final int HEADER_SIZE       = 14;
+    private static final int FRAME_HEADER_SIZE = 5;
+    private static final int FOOTER_SIZE       = 16;
+
+    // ============================================================================================
+    // ======================================= WRITER =============================================
+    // ============================================================================================
+
+    /**
+     * Writer of a sequence to a stream. The index is written by {@link #close()}.
+     */
+    public static final class Writer implements AutoCloseable {
+
+        private final OutputStream       output;
+        private final int                width;
+        private final int                height;
+        private final byte               channels;
+        private final byte               colorSpace;
+        private final int                keyframeInterval;
+        private final ReusableQOIEncoder encoder = new ReusableQOIEncoder();
+        private int[]                    previous;
+        private int[]                    current;
+        private long[]                   offsets = new long[64];
+        private long                     position;
+        private int                      frames;
+        private int                      keyframes;
+        private int                      lastKeyframeSize;
+        private final byte[]             scratch = new byte[16];
+
+        /**
+         * Create a writer with a keyframe every {@link #DEFAULT_KEYFRAME_INTERVAL} frames
+         * @param output (OutputStream) - Where to write the sequence (not closed by the writer)
+         * @param width (int) - Width of the frames
+         * @param height (int) - Height of the frames
+         * @param channels (byte) - Number of channels of the frames
+         * @param colorSpace (byte) - Color space of the frames
+         * @throws IOException if the header cannot be written
+         */
+        public Writer(OutputStream output, int width, int height, byte channels, byte colorSpace) throws IOException {
+            this(output, width, height, channels, colorSpace, DEFAULT_KEYFRAME_INTERVAL);
+        }
+
+        /**
+         * Create a writer
+         * @param output (OutputStream) - Where to write the sequence (not closed by the writer)
+         * @param width (int) - Width of the frames
+         * @param height (int) - Height of the frames
+         * @param channels (byte) - Number of channels of the frames
+         * @param colorSpace (byte) - Color space of the frames
+         * @param keyframeInterval (int) - Maximal number of frames between two keyframes
+         * @throws AssertionError if a parameter is invalid
+         * @throws IOException if the header cannot be written
+         */
+        public Writer(OutputStream output, int width, int height, byte channels, byte colorSpace,
+                      int keyframeInterval) throws IOException {
+            assert output != null : "The output is null";
+            assert width > 0 && height > 0 : "The frames are empty";
+            assert channels == QOISpecification.RGB || channels == QOISpecification.RGBA : "The channels are corrupted";
+            assert colorSpace == QOISpecification.sRGB || colorSpace == QOISpecification.ALL : "The color space is corrupted";
+            assert keyframeInterval > 0 : "The keyframe interval is not positive";
+            this.output = output;
+            this.width = width;
+            this.height = height;
+            this.channels = channels;
+            this.colorSpace = colorSpace;
+            this.keyframeInterval = keyframeInterval;
+            this.previous = new int[width * height];
+            this.current = new int[width * height];
+
+            System.arraycopy(MAGIC, 0, scratch, 0, MAGIC.length);
+            ArrayUtils.writeInt(scratch, 4, width);
+            ArrayUtils.writeInt(scratch, 8, height);
+            scratch[12] = channels;
+            scratch[13] = colorSpace;
+            output.write(scratch, 0, HEADER_SIZE);
+            position = HEADER_SIZE;
+        }
+
+        /**
+         * Append a frame to the sequence. It is stored as a keyframe if it is the first one,
+         * if the keyframe interval is reached, or if its delta isn't smaller than the last keyframe.
+         * @param frame (Helper.Image) - The frame
+         * @return (boolean) - true if the frame was stored as a keyframe
+         * @throws AssertionError if the frame doesn't have the size of the sequence
+         * @throws IOException if the frame cannot be written
+         * @throws RuntimeException if the sequence would be longer than {@link #MAX_SIZE} bytes
+         *                          (the frame is not written, the sequence can still be closed)
+         */
+        public boolean write(Helper.Image frame) throws IOException {
+            assert frame != null : "The frame is null";
+            int[][] data = frame.data();
+            assert data.length == height && data[0].length == width : "The frame doesn't have the size of the sequence";
+            for (int y = 0; y < height; y++) System.arraycopy(data[y], 0, current, y * width, width);
+
+            boolean key = frames % keyframeInterval == 0;
+            if (!key) {
+                encodeDelta();
+                key = encoder.size() >= lastKeyframeSize;
+            }
+            if (key) {
+                encoder.begin(width, height, channels, colorSpace);
+                for (int[] row : data) encoder.encodeRow(row);
+                encoder.end();
+                lastKeyframeSize = encoder.size();
+                keyframes++;
+            }
+            writeFrame(key ? KEYFRAME : DELTA);
+
+            int[] swap = previous;
+            previous = current;
+            current = swap;
+            return key;
+        }
+
+        /**
+         * Write the index and the footer of the sequence, and flush the stream
+         * @throws IOException if the stream cannot be written
+         */
+        @Override
+        public void close() throws IOException {
+            long indexOffset = position;
+            byte[] index = new byte[frames * 8];
+            for (int i = 0; i < frames; i++) writeLong(index, i * 8, offsets[i]);
+            output.write(index);
+            writeLong(scratch, 0, indexOffset);
+            ArrayUtils.writeInt(scratch, 8, frames);
+            System.arraycopy(INDEX_MAGIC, 0, scratch, 12, INDEX_MAGIC.length);
+            output.write(scratch, 0, FOOTER_SIZE);
+            output.flush();
+        }
+
+        /**
+         * @return (int) - Number of written frames
+         */
+        public int frames(){
+            return frames;
+        }
+
+        /**
+         * @return (int) - Number of written keyframes
+         */
+        public int keyframes(){
+            return keyframes;
+        }
+
+        /**
+         * @return (long) - Number of bytes written so far
+         */
+        public long size(){
+            return position;
+        }
+
+        /**
+         * Encode the current frame relative to the previous one, as skip and literal segments
+         */
+        private void encodeDelta(){
+            int[] cur = current;
+            int[] ref = previous;
+            int n = cur.length;
+            encoder.beginStream();
+            int i = 0;
+            while (i < n) {
+                int skipEnd = matchEnd(cur, ref, i);
+                int skip = skipEnd - i >= MIN_SKIP || skipEnd == n ? skipEnd - i : 0;
+                int from = i + skip;
+                int to = from;
+                while (to < n) {
+                    if (cur[to] != ref[to]) {
+                        to++;
+                        continue;
+                    }
+                    int end = matchEnd(cur, ref, to);
+                    if (end - to >= MIN_SKIP || end == n) break;
+                    to = end;
+                }
+                writeVarint(skip);
+                writeVarint(to - from);
+                if (skip > 0) encoder.previous(ref[from - 1]);
+                encoder.encodePixels(cur, from, to);
+                encoder.flushRun();
+                i = to;
+            }
+        }
+
+        /**
+         * @return (int) - End (exclusive) of the run of pixels equal in both frames starting at from
+         */
+        private static int matchEnd(int[] cur, int[] ref, int from){
+            int mismatch = Arrays.mismatch(cur, from, cur.length, ref, from, ref.length);
+            return mismatch < 0 ? cur.length : from + mismatch;
+        }
+
+        /**
+         * Append a varint (7 bits per byte, least significant first) to the encoder
+         */
+        private void writeVarint(int value){
+            int length = 0;
+            while ((value & ~0x7F) != 0) {
+                scratch[length++] = (byte) (value & 0x7F | 0x80);
+                value >>>= 7;
+            }
+            scratch[length++] = (byte) value;
+            encoder.writeRaw(scratch, length);
+        }
+
+        /**
+         * Write the frame held by the encoder, and record its offset
+         */
+        private void writeFrame(byte type) throws IOException {
+            // The frame and the grown index must still be readable from a single ByteBuffer
+            long end = position + FRAME_HEADER_SIZE + encoder.size() + (frames + 1) * 8L + FOOTER_SIZE;
+            if (end > MAX_SIZE)
+                Helper.fail("The QOI sequence cannot be longer than %d bytes (frame %d)", MAX_SIZE, frames);
+            if (frames == offsets.length) offsets = Arrays.copyOf(offsets, frames * 2);
+            offsets[frames++] = position;
+            scratch[0] = type;
+            ArrayUtils.writeInt(scratch, 1, encoder.size());
+            output.write(scratch, 0, FRAME_HEADER_SIZE);
+            position += FRAME_HEADER_SIZE + encoder.size();
+            encoder.drainTo(output);
+        }
+    }
+
+    // ============================================================================================
+    // ======================================= READER =============================================
+    // ============================================================================================
+
+    /**
+     * Reader of a sequence, with random access to its frames
+     */
+    public static final class Reader {
+
+        private final ByteBuffer         content;
+        private final int                width;
+        private final int                height;
+        private final byte               channels;
+        private final byte               colorSpace;
+        private final long[]             offsets;
+        private final ReusableQOIDecoder decoder = new ReusableQOIDecoder();
+        private final int[]              frame;
+        private int                      current = -1;
+
+        /**
+         * Open a sequence held in memory
+         * @param content (byte[]) - Content of the sequence
+         * @throws AssertionError if the content is null
+         * @throws RuntimeException if the content is not a valid sequence
+         */
+        public Reader(byte[] content){
+            this(ByteBuffer.wrap(content));
+        }
+
+        /**
+         * Open a sequence held in a buffer (a memory-mapped file, for instance), from index 0
+         * @param content (ByteBuffer) - Content of the sequence
+         * @throws AssertionError if the content is null
+         * @throws RuntimeException if the content is not a valid sequence
+         */
+        public Reader(ByteBuffer content){
+            assert content != null : "The content is null";
+            this.content = content.duplicate().order(ByteOrder.BIG_ENDIAN);
+            int limit = this.content.limit();
+            if (limit < HEADER_SIZE + FOOTER_SIZE || !hasMagic(0, MAGIC) || !hasMagic(limit - 4, INDEX_MAGIC))
+                Helper.fail("The content is not a QOI sequence");
+            this.width = this.content.getInt(4);
+            this.height = this.content.getInt(8);
+            this.channels = this.content.get(12);
+            this.colorSpace = this.content.get(13);
+            long indexOffset = this.content.getLong(limit - FOOTER_SIZE);
+            int count = this.content.getInt(limit - 8);
+            if (indexOffset < HEADER_SIZE || indexOffset + count * 8L != limit - FOOTER_SIZE)
+                Helper.fail("The index of the QOI sequence is corrupted");
+            this.offsets = new long[count];
+            for (int i = 0; i < count; i++) {
+                offsets[i] = this.content.getLong((int) indexOffset + i * 8);
+                // Each frame header lies before the index, so that the offsets fit in an int
+                if (offsets[i] < HEADER_SIZE || offsets[i] > indexOffset - FRAME_HEADER_SIZE)
+                    Helper.fail("The index of the QOI sequence is corrupted");
+            }
+            this.frame = new int[width * height];
+        }
+
+        /**
+         * Give a frame of the sequence. The next frame is decoded from the current one,
+         * any other frame from the closest keyframe before it.
+         * @param index (int) - Index of the frame
+         * @return (int[]) - ARGB pixels of the frame, row after row. The array is overwritten
+         *                   by the next call.
+         * @throws AssertionError if the index is outside the sequence
+         */
+        public int[] frame(int index){
+            assert index >= 0 && index < offsets.length : "The index is outside the sequence";
+            int key = index;
+            while (type(key) != KEYFRAME) key--;
+            int from = current >= key && current <= index ? current + 1 : key;
+            for (int i = from; i <= index; i++) decodeFrame(i);
+            current = index;
+            return frame;
+        }
+
+        /**
+         * Give a frame of the sequence as an image
+         * @param index (int) - Index of the frame
+         * @return (Helper.Image) - Copy of the frame
+         * @throws AssertionError if the index is outside the sequence
+         */
+        public Helper.Image image(int index){
+            int[] pixels = frame(index);
+            int[][] data = new int[height][];
+            for (int y = 0; y < height; y++) data[y] = Arrays.copyOfRange(pixels, y * width, (y + 1) * width);
+            return Helper.generateImage(data, channels, colorSpace);
+        }
+
+        /**
+         * @param index (int) - Index of a frame
+         * @return (boolean) - true if the frame is a keyframe
+         */
+        public boolean isKeyframe(int index){
+            return type(index) == KEYFRAME;
+        }
+
+        /**
+         * @return (int) - Number of frames of the sequence
+         */
+        public int frameCount(){
+            return offsets.length;
+        }
+
+        /**
+         * @return (int) - Width of the frames
+         */
+        public int width(){
+            return width;
+        }
+
+        /**
+         * @return (int) - Height of the frames
+         */
+        public int height(){
+            return height;
+        }
+
+        /**
+         * @return (byte) - Number of channels of the frames
+         */
+        public byte channels(){
+            return channels;
+        }
+
+        /**
+         * Decode a frame over the previous one
+         */
+        private void decodeFrame(int index){
+            int offset = (int) offsets[index];
+            int payload = offset + FRAME_HEADER_SIZE;
+            if (content.get(offset) == KEYFRAME) {
+                decoder.begin(content.duplicate().position(payload));
+                decoder.decodePixels(frame, 0, frame.length);
+                return;
+            }
+            int end = payload + content.getInt(offset + 1);
+            int[] position = {payload};
+            decoder.beginStream(content, payload);
+            int i = 0;
+            while (i < frame.length) {
+                int skip = readVarint(position);
+                int literal = readVarint(position);
+                i += skip;
+                if (skip > 0 && literal > 0) decoder.previous(frame[i - 1]);
+                decoder.rebase(content, position[0]);
+                decoder.decodePixels(frame, i, i + literal);
+                position[0] = decoder.position();
+                i += literal;
+            }
+            if (position[0] != end || i != frame.length)
+                Helper.fail("The frame %d of the QOI sequence is corrupted", index);
+        }
+
+        private byte type(int index){
+            return content.get((int) offsets[index]);
+        }
+
+        /**
+         * Read a varint and move the position after it
+         */
+        private int readVarint(int[] position){
+            int value = 0;
+            for (int shift = 0; ; shift += 7) {
+                byte b = content.get(position[0]++);
+                value |= (b & 0x7F) << shift;
+                if (b >= 0) return value;
+            }
+        }
+
+        private boolean hasMagic(int offset, byte[] magic){
+            for (int i = 0; i < magic.length; i++)
+                if (content.get(offset + i) != magic[i]) return false;
+            return true;
+        }
+    }
+
+    // ============================================================================================
+    // ===================================== UTILITIES ============================================
+    // ============================================================================================
+
+    /**
+     * Write a long in "Big Endian"
+     */
+    private static void writeLong(byte[] array, int offset, long value){
+        ArrayUtils.writeInt(array, offset, (int) (value >>> 32));
+        ArrayUtils.writeInt(array, offset + 4, (int) value);
+    }
+
+    // Hide default constructor
+    private QOISequence(){}
+
+}
@@ -0,0 +1,366 @@
+package cs107;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+
+/**
+ * "Quite Ok Image" Decoder keeping its state and its output rows between images.
+ * <p>
+ * The decoder reads a {@link ByteBuffer} (an array, a mapped file, ...) with absolute accesses
+ * only, so the position of the buffer is never changed. An image can be decoded at once,
+ * into rows that are kept for the next image of the same size, or row by row
+ * ({@link #begin(ByteBuffer)} and {@link #nextRow(int[])}) into rows owned by the caller.
+ * <p>
+ * An instance is not thread-safe: each worker thread should use its own,
+ * for instance the one of {@link #forThread()}.
+ * @version 1.0
+ * @since 1.0
+ */
+public final class ReusableQOIDecoder {
+
+    /**
+     * Decoder of each thread, see {@link #forThread()}
+     */
+    private static final ThreadLocal<ReusableQOIDecoder> LOCAL = ThreadLocal.withInitial(ReusableQOIDecoder::new);
+
+    /**
+     * The magic number of the protocol, as a big endian integer
+     */
+    private static final int MAGIC = ArrayUtils.toInt(QOISpecification.QOI_MAGIC);
+
+    private static final int RGB_TAG  = QOISpecification.QOI_OP_RGB_TAG & 0xFF;
+    private static final int RGBA_TAG = QOISpecification.QOI_OP_RGBA_TAG & 0xFF;
+
+    private final int[]  hashTable = new int[64];
+    private final int[]  stats     = new int[6];
+    private ByteBuffer   source;
+    private boolean      swap;
+    private int          idx;
+    private int          prevPixel;
+    private int          runCounter;
+    private int          width;
+    private int          height;
+    private int          rowsLeft;
+    private byte         channels;
+    private byte         colorSpace;
+    private int[][]      rows;
+    private QOIChunkHook hook = QOIChunkHook.NONE;
+
+    // ============================================================================================
+    // ===================================== INSTANCES ============================================
+    // ============================================================================================
+
+    /**
+     * Create a decoder without rows
+     */
+    public ReusableQOIDecoder(){
+        reset();
+    }
+
+    /**
+     * Give the decoder confined to the calling thread. It is created on the first call,
+     * and kept (with its rows) for the lifetime of the thread.
+     * @return (ReusableQOIDecoder) - The decoder of the calling thread
+     */
+    public static ReusableQOIDecoder forThread(){
+        return LOCAL.get();
+    }
+
+    /**
+     * Set the hook called on the QOI_OP_RGB and QOI_OP_RGBA chunks, until it is replaced
+     * (it is kept by {@link #reset()})
+     * @param hook (QOIChunkHook) - The hook, null for none
+     */
+    public void hook(QOIChunkHook hook){
+        this.hook = hook == null ? QOIChunkHook.NONE : hook;
+    }
+
+    /**
+     * Forget the current image (the rows are kept) and release the source buffer
+     */
+    public void reset(){
+        Arrays.fill(hashTable, 0);
+        Arrays.fill(stats, 0);
+        source = null;
+        idx = 0;
+        prevPixel = 0xFF000000;
+        runCounter = 0;
+        width = 0;
+        height = 0;
+        rowsLeft = 0;
+        channels = 0;
+        colorSpace = 0;
+    }
+
+    // ============================================================================================
+    // ====================================== DECODING ============================================
+    // ============================================================================================
+
+    /**
+     * Decode a whole file into the rows of this decoder
+     * @param content (byte[]) - Content of the file
+     * @return (Helper.Image) - The image, whose data is overwritten by the next image decoded
+     *                          with this instance
+     * @throws AssertionError if the content is null or the header is invalid
+     */
+    public Helper.Image decode(byte[] content){
+        assert content != null : "The content is null";
+        return decode(ByteBuffer.wrap(content));
+    }
+
+    /**
+     * Decode a whole file, starting at the position of the buffer, into the rows of this decoder
+     * @param content (ByteBuffer) - Content of the file
+     * @return (Helper.Image) - The image, whose data is overwritten by the next image decoded
+     *                          with this instance
+     * @throws AssertionError if the content is null or the header is invalid
+     */
+    public Helper.Image decode(ByteBuffer content){
+        begin(content);
+        if (rows == null || rows.length != height || rows[0].length != width)
+            rows = new int[height][width];
+        for (int[] line : rows) nextRow(line);
+        return Helper.generateImage(rows, channels, colorSpace);
+    }
+
+    /**
+     * Decode a block stream (without header) into the given rows, starting from a fresh state
+     * @param data (ByteBuffer) - Buffer containing the chunks
+     * @param offset (int) - Index in the buffer of the first chunk
+     * @param output (int[][]) - ARGB rows to fill, giving the dimensions of the image
+     * @throws AssertionError if a parameter is null or the offset is outside the buffer
+     */
+    public void decodeData(ByteBuffer data, int offset, int[][] output){
+        assert output != null && output.length > 0 : "The output is null or empty";
+        start(data, offset, output[0].length, output.length);
+        for (int[] line : output) nextRow(line);
+    }
+
+    /**
+     * Start the decoding of a file row by row: read its header, at the position of the buffer.
+     * {@link #nextRow(int[])} then gives the rows one at a time.
+     * @param content (ByteBuffer) - Content of the file
+     * @throws AssertionError if the content is null or the header is invalid
+     */
+    public void begin(ByteBuffer content){
+        assert content != null : "The content is null";
+        int start = content.position();
+        assert content.limit() - start >= QOISpecification.HEADER_SIZE : "The content is shorter than a header";
+        boolean bigEndian = content.order() == ByteOrder.BIG_ENDIAN;
+        int magic = content.getInt(start);
+        int w = content.getInt(start + 4);
+        int h = content.getInt(start + 8);
+        if (!bigEndian) {
+            magic = Integer.reverseBytes(magic);
+            w = Integer.reverseBytes(w);
+            h = Integer.reverseBytes(h);
+        }
+        byte c = content.get(start + 12);
+        byte cs = content.get(start + 13);
+        assert magic == MAGIC : "The magic number is not valid";
+        assert c == QOISpecification.RGB || c == QOISpecification.RGBA : "The number of channels is not equal to RGB or RGBA";
+        assert cs == QOISpecification.ALL || cs == QOISpecification.sRGB : "The color space is not equal to ALL or sRGB";
+
+        start(content, start + QOISpecification.HEADER_SIZE, w, h);
+        channels = c;
+        colorSpace = cs;
+    }
+
+    /**
+     * Decode the next row of the image
+     * @param line (int[]) - Where to store the ARGB pixels of the row (at least the width of the image)
+     * @return (boolean) - false if all the rows were already decoded, true otherwise
+     * @throws AssertionError if the row is too short
+     */
+    public boolean nextRow(int[] line){
+        assert line != null && line.length >= width : "The row is shorter than the image";
+        if (rowsLeft == 0) return false;
+        decodePixels(line, 0, width);
+        if (--rowsLeft == 0) source = null;
+        return true;
+    }
+
+    /**
+     * Decode a span of pixels, continuing the current state
+     * @param line (int[]) - Where to store the ARGB pixels
+     * @param from (int) - Index of the first pixel to decode
+     * @param to (int) - Index of the last pixel to decode (exclusive)
+     */
+    void decodePixels(int[] line, int from, int to){
+        ByteBuffer data = source;
+        QOIChunkHook chunks = hook;
+        int[] ops = stats;
+        int i = idx;
+        int prev = prevPixel;
+        int run = runCounter;
+        for (int x = from; x < to; x++) {
+            if (run > 0) {
+                run--;
+                line[x] = prev;
+                continue;
+            }
+            int chunk = data.get(i++) & 0xFF;
+            if (chunk == RGB_TAG) {
+                // One load: the tag byte is replaced by the previous alpha
+                prev = (prev & 0xFF000000) | (readInt(data, i - 1) & 0xFF_FF_FF);
+                i += 3;
+                ops[QOIScan.RGB]++;
+                chunks.decodedRGB(prev);
+            } else if (chunk == RGBA_TAG) {
+                // RGBA in the stream, ARGB in the image
+                prev = Integer.rotateRight(readInt(data, i), 8);
+                i += 4;
+                ops[QOIScan.RGBA]++;
+                chunks.decodedRGBA(prev);
+            } else {
+                switch (chunk >>> 6) {
+                    case 0 -> {
+                        prev = hashTable[chunk];
+                        ops[QOIScan.INDEX]++;
+                    }
+                    case 1 -> {
+                        int r = (prev >>> 16) + ((chunk >>> 4) & 0b11) - 2;
+                        int g = (prev >>> 8) + ((chunk >>> 2) & 0b11) - 2;
+                        int b = prev + (chunk & 0b11) - 2;
+                        prev = (prev & 0xFF000000) | (r & 0xFF) << 16 | (g & 0xFF) << 8 | (b & 0xFF);
+                        ops[QOIScan.DIFF]++;
+                    }
+                    case 2 -> {
+                        int second = data.get(i++) & 0xFF;
+                        int dg = (chunk & 0b11_11_11) - 32;
+                        int r = (prev >>> 16) + dg + (second >>> 4) - 8;
+                        int g = (prev >>> 8) + dg;
+                        int b = prev + dg + (second & 0b11_11) - 8;
+                        prev = (prev & 0xFF000000) | (r & 0xFF) << 16 | (g & 0xFF) << 8 | (b & 0xFF);
+                        ops[QOIScan.LUMA]++;
+                    }
+                    // The pixel of a run is stored in the table too
+                    default -> {
+                        run = chunk & 0b11_11_11;
+                        ops[QOIScan.RUN] += run + 1;
+                    }
+                }
+            }
+            hashTable[QOIScan.hash(prev)] = prev;
+            line[x] = prev;
+        }
+        idx = i;
+        prevPixel = prev;
+        runCounter = run;
+    }
+
+    /**
+     * Start a block stream without header from a fresh state
+     * @param data (ByteBuffer) - Buffer containing the chunks
+     * @param offset (int) - Index in the buffer of the first chunk
+     */
+    void beginStream(ByteBuffer data, int offset){
+        reset();
+        source = data;
+        swap = data.order() != ByteOrder.BIG_ENDIAN;
+        idx = offset;
+    }
+
+    /**
+     * Replace the previous pixel, to predict the next pixel from a pixel that was not decoded
+     * @param argb (int) - The new previous pixel
+     */
+    void previous(int argb){
+        assert runCounter == 0 : "A run is pending";
+        prevPixel = argb;
+    }
+
+    /**
+     * Continue the decoding of the current image in another buffer, for instance when the chunks
+     * arrive in pieces and the remaining ones were moved to the start of a buffer
+     * @param data (ByteBuffer) - Buffer containing the next chunks
+     * @param index (int) - Index in the buffer of the next chunk to decode
+     * @throws AssertionError if the buffer is null or the index is outside the buffer
+     */
+    public void rebase(ByteBuffer data, int index){
+        assert data != null : "The data is null";
+        assert index >= 0 && index <= data.limit() : "The index is outside the buffer";
+        source = data;
+        swap = data.order() != ByteOrder.BIG_ENDIAN;
+        idx = index;
+    }
+
+    // ============================================================================================
+    // ================================== CURRENT IMAGE ===========================================
+    // ============================================================================================
+
+    /**
+     * @return (int) - Width of the current image
+     */
+    public int width(){
+        return width;
+    }
+
+    /**
+     * @return (int) - Height of the current image
+     */
+    public int height(){
+        return height;
+    }
+
+    /**
+     * @return (byte) - Number of channels of the current image (0 if decoded without header)
+     */
+    public byte channels(){
+        return channels;
+    }
+
+    /**
+     * @return (byte) - Color space of the current image (0 if decoded without header)
+     */
+    public byte colorSpace(){
+        return colorSpace;
+    }
+
+    /**
+     * Give the statistics of the current image, same indexes as {@link QOIScan}
+     * (pixels for the runs, chunks for the other ops)
+     * @return (int[]) - Copy of the statistics
+     */
+    public int[] stats(){
+        return stats.clone();
+    }
+
+    /**
+     * @return (int) - Index in the buffer of the next chunk to decode
+     *                 (once all rows are decoded, the index of the end marker)
+     */
+    public int position(){
+        return idx;
+    }
+
+    // ============================================================================================
+    // ===================================== UTILITIES ============================================
+    // ============================================================================================
+
+    /**
+     * Start the decoding of a block stream from a fresh state
+     */
+    private void start(ByteBuffer data, int offset, int width, int height){
+        assert data != null : "The data is null";
+        assert offset >= 0 && offset <= data.limit() : "The offset is outside the buffer";
+        assert width > 0 && height > 0 : "The image is empty";
+        reset();
+        this.source = data;
+        this.swap = data.order() != ByteOrder.BIG_ENDIAN;
+        this.idx = offset;
+        this.width = width;
+        this.height = height;
+        this.rowsLeft = height;
+    }
+
+    /**
+     * Read a big endian integer whatever the order of the buffer
+     */
+    private int readInt(ByteBuffer data, int index){
+        int value = data.getInt(index);
+        return swap ? Integer.reverseBytes(value) : value;
+    }
+
+}
@@ -0,0 +1,401 @@
+package cs107;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+
+/**
+ * "Quite Ok Image" Encoder keeping its state and its output buffer between images.
+ * <p>
+ * The static {@link QOIEncoder} allocates a hash table, a pixel array per pixel and the output
+ * arrays on every call. An instance of this class encodes ARGB rows directly, and its output buffer
+ * only grows: once it has seen its largest image, encoding another one allocates nothing
+ * (except {@link #toByteArray()}, which copies the result out).
+ * <p>
+ * An instance is not thread-safe: each worker thread should use its own,
+ * for instance the one of {@link #forThread()}. The output produced is the same,
+ * byte for byte, as {@link QOIEncoder#qoiFile(Helper.Image)}.
+ * @version 1.0
+ * @since 1.0
+ */
+public final class ReusableQOIEncoder {
+
+    /**
+     * Encoder of each thread, see {@link #forThread()}
+     */
+    private static final ThreadLocal<ReusableQOIEncoder> LOCAL = ThreadLocal.withInitial(ReusableQOIEncoder::new);
+
+    /**
+     * Largest chunk of the protocol (QOI_OP_RGBA)
+     */
+    private static final int MAX_CHUNK_SIZE = 5;
+
+    private final int[]  hashTable = new int[64];
+    private final int[]  stats     = new int[6];
+    private byte[]       buffer    = new byte[0];
+    private int          pos;
+    private long         drained;
+    private int          prevPixel;
+    private int          runCounter;
+    private int          width;
+    private int          rowsLeft;
+    private QOIChunkHook hook = QOIChunkHook.NONE;
+
+    // ============================================================================================
+    // ===================================== INSTANCES ============================================
+    // ============================================================================================
+
+    /**
+     * Create an encoder with an empty buffer
+     */
+    public ReusableQOIEncoder(){
+        reset();
+    }
+
+    /**
+     * Give the encoder confined to the calling thread. It is created on the first call,
+     * and kept (with its buffer) for the lifetime of the thread.
+     * @return (ReusableQOIEncoder) - The encoder of the calling thread
+     */
+    public static ReusableQOIEncoder forThread(){
+        return LOCAL.get();
+    }
+
+    /**
+     * Set the hook called on the QOI_OP_RGB and QOI_OP_RGBA chunks, until it is replaced
+     * (it is kept by {@link #reset()})
+     * @param hook (QOIChunkHook) - The hook, null for none
+     */
+    public void hook(QOIChunkHook hook){
+        this.hook = hook == null ? QOIChunkHook.NONE : hook;
+    }
+
+    /**
+     * Forget the current image (the buffer is kept, but its content is discarded)
+     */
+    public void reset(){
+        Arrays.fill(hashTable, 0);
+        Arrays.fill(stats, 0);
+        pos = 0;
+        drained = 0;
+        prevPixel = 0xFF000000;
+        runCounter = 0;
+        width = 0;
+        rowsLeft = 0;
+    }
+
+    // ============================================================================================
+    // ====================================== ENCODING ============================================
+    // ============================================================================================
+
+    /**
+     * Encode a whole image
+     * @param image (Helper.Image) - Image to encode
+     * @return (int) - Size of the file, stored in the first bytes of {@link #buffer()}
+     * @throws AssertionError if the image is null
+     */
+    public int encode(Helper.Image image){
+        assert image != null : "The image is null";
+        int[][] data = image.data();
+        begin(data[0].length, data.length, image.channels(), image.color_space());
+        for (int[] line : data) encodeRow(line);
+        return end();
+    }
+
+    /**
+     * Start the encoding of an image row by row: {@link #encodeRow(int[])} must then be called
+     * once per row, followed by {@link #end()}
+     * @param width (int) - Width of the image
+     * @param height (int) - Height of the image
+     * @param channels (byte) - Number of channels of the image
+     * @param colorSpace (byte) - Color space of the image
+     * @throws AssertionError if the dimensions, the channels or the color space are invalid
+     */
+    public void begin(int width, int height, byte channels, byte colorSpace){
+        assert width > 0 && height > 0 : "The image is empty";
+        assert channels == QOISpecification.RGB || channels == QOISpecification.RGBA : "The image channels are corrupted";
+        assert colorSpace == QOISpecification.sRGB || colorSpace == QOISpecification.ALL : "The image color space is corrupted";
+        reset();
+        this.width = width;
+        this.rowsLeft = height;
+
+        ensureCapacity(QOISpecification.HEADER_SIZE);
+        System.arraycopy(QOISpecification.QOI_MAGIC, 0, buffer, 0, QOISpecification.QOI_MAGIC.length);
+        ArrayUtils.writeInt(buffer, 4, width);
+        ArrayUtils.writeInt(buffer, 8, height);
+        buffer[12] = channels;
+        buffer[13] = colorSpace;
+        pos = QOISpecification.HEADER_SIZE;
+    }
+
+    /**
+     * Encode the next row of the image
+     * @param row (int[]) - ARGB pixels of the row
+     * @throws AssertionError if the row doesn't have the width of the image or all rows are encoded
+     */
+    public void encodeRow(int[] row){
+        assert row != null && row.length == width : "The row doesn't have the width of the image";
+        assert rowsLeft > 0 : "All the rows of the image are already encoded";
+        encodePixels(row, 0, row.length);
+        rowsLeft--;
+    }
+
+    /**
+     * Encode a span of pixels, continuing the current state (a pending run is kept pending)
+     * @param pixels (int[]) - ARGB pixels
+     * @param from (int) - Index of the first pixel to encode
+     * @param to (int) - Index of the last pixel to encode (exclusive)
+     */
+    void encodePixels(int[] pixels, int from, int to){
+        // One more byte for the run left pending by the previous span, flushed by the first pixel
+        ensureCapacity(pos + 1 + (to - from) * MAX_CHUNK_SIZE);
+
+        byte[]       output = buffer;
+        QOIChunkHook chunks = hook;
+        int          p      = pos;
+        int          prev   = prevPixel;
+        int          run    = runCounter;
+        for (int i = from; i < to; i++) {
+            int pixel = pixels[i];
+
+            // ---QOI_OP_RUN---
+            if (pixel == prev) {
+                if (++run == 62) {
+                    output[p++] = (byte) (QOISpecification.QOI_OP_RUN_TAG | (run - 1));
+                    stats[QOIScan.RUN] += run;
+                    run = 0;
+                }
+                continue;
+            }
+            if (run > 0) {
+                output[p++] = (byte) (QOISpecification.QOI_OP_RUN_TAG | (run - 1));
+                stats[QOIScan.RUN] += run;
+                run = 0;
+            }
+
+            int op = QOIScan.classify(pixel, prev, hashTable);
+            switch (op) {
+                case QOIScan.INDEX -> output[p++] = (byte) QOIScan.hash(pixel);
+                case QOIScan.DIFF -> output[p++] = (byte) (QOISpecification.QOI_OP_DIFF_TAG
+                        | ((pixel >> 16) - (prev >> 16) + 2 & 0b11) << 4
+                        | ((pixel >> 8) - (prev >> 8) + 2 & 0b11) << 2
+                        | (pixel - prev + 2 & 0b11));
+                case QOIScan.LUMA -> {
+                    int dg = (byte) ((pixel >> 8) - (prev >> 8));
+                    int drdg = (byte) ((pixel >> 16) - (prev >> 16) - dg);
+                    int dbdg = (byte) (pixel - prev - dg);
+                    output[p++] = (byte) (QOISpecification.QOI_OP_LUMA_TAG | (dg + 32));
+                    output[p++] = (byte) ((drdg + 8) << 4 | (dbdg + 8));
+                }
+                case QOIScan.RGB -> {
+                    // The stream has no alpha to change
+                    pixel = (pixel & 0xFF000000) | (chunks.encodeRGB(pixel) & 0xFF_FF_FF);
+                    // Tag and pixel with one store
+                    ArrayUtils.writeInt(output, p, (QOISpecification.QOI_OP_RGB_TAG & 0xFF) << 24 | (pixel & 0xFF_FF_FF));
+                    p += 4;
+                }
+                default -> {
+                    pixel = chunks.encodeRGBA(pixel);
+                    output[p++] = QOISpecification.QOI_OP_RGBA_TAG;
+                    // ARGB in the image, RGBA in the stream
+                    ArrayUtils.writeInt(output, p, Integer.rotateLeft(pixel, 8));
+                    p += 4;
+                }
+            }
+            stats[op]++;
+            // After the hook, so that the table holds what the decoder will see
+            hashTable[QOIScan.hash(pixel)] = pixel;
+            prev = pixel;
+        }
+        pos = p;
+        prevPixel = prev;
+        runCounter = run;
+    }
+
+    /**
+     * Write the pending run, if any
+     */
+    void flushRun(){
+        if (runCounter > 0) {
+            ensureCapacity(pos + 1);
+            buffer[pos++] = (byte) (QOISpecification.QOI_OP_RUN_TAG | (runCounter - 1));
+            stats[QOIScan.RUN] += runCounter;
+            runCounter = 0;
+        }
+    }
+
+    /**
+     * Append bytes that are not chunks (the framing of a container) to the buffer
+     * @param bytes (byte[]) - Bytes to append
+     * @param length (int) - Number of bytes to append, from the start of the array
+     */
+    void writeRaw(byte[] bytes, int length){
+        ensureCapacity(pos + length);
+        System.arraycopy(bytes, 0, buffer, pos, length);
+        pos += length;
+    }
+
+    /**
+     * Start a block stream without header: fresh state, empty buffer
+     */
+    void beginStream(){
+        reset();
+    }
+
+    /**
+     * Replace the previous pixel, to predict the next pixel from a pixel that was not encoded
+     * (the pending run must be flushed first)
+     * @param argb (int) - The new previous pixel
+     */
+    void previous(int argb){
+        assert runCounter == 0 : "A run is pending";
+        prevPixel = argb;
+    }
+
+    /**
+     * End the encoding of the image: flush the pending run and append the end marker
+     * @return (int) - Size of the file, stored in the first bytes of {@link #buffer()}
+     * @throws AssertionError if some rows of the image are not encoded
+     */
+    public int end(){
+        assert rowsLeft == 0 : "Some rows of the image are not encoded";
+        flushRun();
+        ensureCapacity(pos + QOISpecification.QOI_EOF.length);
+        System.arraycopy(QOISpecification.QOI_EOF, 0, buffer, pos, QOISpecification.QOI_EOF.length);
+        pos += QOISpecification.QOI_EOF.length;
+        return pos;
+    }
+
+    // ============================================================================================
+    // ===================================== CHECKPOINTS ==========================================
+    // ============================================================================================
+
+    /**
+     * State of the encoder between two rows: the rest of the file only depends on it
+     * and on the remaining rows
+     * @param offset (long) - Index in the file of the next byte to write
+     * @param prevPixel (int) - Previous pixel, in ARGB
+     * @param runCounter (int) - Length of the pending run
+     * @param hashTable (int[]) - Copy of the hash table
+     */
+    public record Checkpoint(long offset, int prevPixel, int runCounter, int[] hashTable){
+
+        /**
+         * Check if two checkpoints lead to the same bytes for the same remaining rows
+         * (their offsets may differ)
+         * @param other (Checkpoint) - The other checkpoint
+         * @return (boolean) - true if both states are the same
+         */
+        public boolean sameState(Checkpoint other){
+            return prevPixel == other.prevPixel && runCounter == other.runCounter
+                    && Arrays.equals(hashTable, other.hashTable);
+        }
+    }
+
+    /**
+     * Take a checkpoint of the encoder, between two rows
+     * @return (Checkpoint) - The current state
+     */
+    public Checkpoint checkpoint(){
+        return new Checkpoint(drained + pos, prevPixel, runCounter, hashTable.clone());
+    }
+
+    /**
+     * Resume the encoding of an image from a checkpoint: the buffer is emptied and will receive
+     * the bytes written after the offset of the checkpoint
+     * @param checkpoint (Checkpoint) - State to restore
+     * @param width (int) - Width of the image
+     * @param rowsLeft (int) - Number of rows of the image after the checkpoint
+     * @throws AssertionError if the checkpoint is null or the dimensions are invalid
+     */
+    public void resume(Checkpoint checkpoint, int width, int rowsLeft){
+        assert checkpoint != null : "The checkpoint is null";
+        assert width > 0 && rowsLeft >= 0 : "The dimensions are invalid";
+        System.arraycopy(checkpoint.hashTable(), 0, hashTable, 0, hashTable.length);
+        Arrays.fill(stats, 0);
+        pos = 0;
+        drained = checkpoint.offset();
+        prevPixel = checkpoint.prevPixel();
+        runCounter = checkpoint.runCounter();
+        this.width = width;
+        this.rowsLeft = rowsLeft;
+    }
+
+    // ============================================================================================
+    // ======================================= OUTPUT =============================================
+    // ============================================================================================
+
+    /**
+     * Give the internal buffer. It is overwritten by the next image encoded with this instance.
+     * @return (byte[]) - The buffer, whose first {@link #size()} bytes are the file
+     */
+    public byte[] buffer(){
+        return buffer;
+    }
+
+    /**
+     * @return (int) - Number of bytes written in the buffer for the current image
+     *                 (since the last {@link #drain()}, if any)
+     */
+    public int size(){
+        return pos;
+    }
+
+    /**
+     * @return (byte[]) - Copy of the file encoded so far
+     */
+    public byte[] toByteArray(){
+        return Arrays.copyOf(buffer, pos);
+    }
+
+    /**
+     * Give the bytes encoded so far and remove them from the buffer, so that an image
+     * can be sent in pieces while it is encoded (the state of the encoder is kept)
+     * @return (byte[]) - The bytes written since the start of the image or the last drain
+     */
+    public byte[] drain(){
+        byte[] output = toByteArray();
+        drained += pos;
+        pos = 0;
+        return output;
+    }
+
+    /**
+     * Write the bytes encoded so far to a stream, without copying them, and remove them from the buffer
+     * @param output (OutputStream) - Where to write the bytes
+     * @throws IOException if the stream cannot be written
+     */
+    public void drainTo(OutputStream output) throws IOException {
+        output.write(buffer, 0, pos);
+        drained += pos;
+        pos = 0;
+    }
+
+    /**
+     * Write the file encoded so far to a stream, without copying it
+     * @param output (OutputStream) - Where to write the file
+     * @throws IOException if the stream cannot be written
+     */
+    public void writeTo(OutputStream output) throws IOException {
+        output.write(buffer, 0, pos);
+    }
+
+    /**
+     * Give the statistics of the current image, same indexes as {@link QOIScan}
+     * (pixels for the runs, chunks for the other ops)
+     * @return (int[]) - Copy of the statistics
+     */
+    public int[] stats(){
+        return stats.clone();
+    }
+
+    /**
+     * Grow the buffer, keeping its content, so that it holds at least the given number of bytes
+     * @param capacity (int) - Needed capacity
+     */
+    private void ensureCapacity(int capacity){
+        if (capacity > buffer.length)
+            buffer = Arrays.copyOf(buffer, Math.max(capacity, buffer.length + (buffer.length >> 1)));
+    }
+
+}
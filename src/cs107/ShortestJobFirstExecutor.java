@@ -0,0 +1,246 @@
+package cs107;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.FileInputStream;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Executor of conversions running the smallest images first.
+ * <p>
+ * The size of a job is its number of pixels, read from the header of its image
+ * ({@link ImageProbe}). Each job gets a virtual deadline, its submission time plus its size times
+ * {@link #agingNanosPerPixel()}, and the waiting job with the earliest deadline runs next: a
+ * thumbnail overtakes a large image submitted at about the same time, but a large image only
+ * waits for the jobs whose deadline is before its own, so it is never starved. The deadline of
+ * a job doesn't change while it waits, which keeps the queue a plain {@link PriorityBlockingQueue}.
+ * <p>
+ * The latency of each job (from its submission to its completion) is recorded in the histogram
+ * of its {@link SizeClass}.
+ * @version 1.0
+ * @since 1.0
+ */
+public final class ShortestJobFirstExecutor implements AutoCloseable {
+
+    /**
+     * Default aging rate: a 100 megapixels image is overtaken by smaller ones for at most 10 seconds,
+     * a 256x256 thumbnail for about 7 milliseconds
+     */
+    public static final long DEFAULT_AGING_NANOS_PER_PIXEL = 100;
+
+    /**
+     * Size classes of the jobs, for the latency report
+     */
+    public enum SizeClass {
+        /** Up to 512x512 pixels */
+        THUMBNAIL(512L * 512),
+        /** Up to 4 megapixels */
+        MEDIUM(4L << 20),
+        /** Up to 32 megapixels */
+        LARGE(32L << 20),
+        /** More than 32 megapixels */
+        HUGE(Long.MAX_VALUE);
+
+        private final long maxPixels;
+
+        SizeClass(long maxPixels){
+            this.maxPixels = maxPixels;
+        }
+
+        /**
+         * Give the class of a job
+         * @param pixels (long) - Size of the job, in pixels
+         * @return (SizeClass) - Smallest class holding the job
+         */
+        public static SizeClass of(long pixels){
+            for (SizeClass sizeClass : values())
+                if (pixels <= sizeClass.maxPixels) return sizeClass;
+            return HUGE;
+        }
+    }
+
+    private final ThreadPoolExecutor pool;
+    private final long               agingNanosPerPixel;
+    private final AtomicLong         sequence = new AtomicLong();
+    private final LatencyHistogram[] latencies = new LatencyHistogram[SizeClass.values().length];
+
+    /**
+     * Create an executor with the default aging rate
+     * @param threads (int) - Number of worker threads
+     * @throws AssertionError if the number of threads isn't positive
+     */
+    public ShortestJobFirstExecutor(int threads){
+        this(threads, DEFAULT_AGING_NANOS_PER_PIXEL);
+    }
+
+    /**
+     * Create an executor
+     * @param threads (int) - Number of worker threads
+     * @param agingNanosPerPixel (long) - Waiting time granted to the smaller jobs per pixel of a job,
+     *                           0 to run the jobs in submission order
+     * @throws AssertionError if the number of threads isn't positive or the aging rate is negative
+     */
+    public ShortestJobFirstExecutor(int threads, long agingNanosPerPixel){
+        assert threads > 0 : "The number of threads is not positive";
+        assert agingNanosPerPixel >= 0 : "The aging rate is negative";
+        this.agingNanosPerPixel = agingNanosPerPixel;
+        for (int i = 0; i < latencies.length; i++) latencies[i] = new LatencyHistogram();
+        AtomicInteger count = new AtomicInteger();
+        this.pool = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS, new PriorityBlockingQueue<>(),
+                r -> {
+                    var thread = new Thread(r, "sjf-" + count.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                });
+        // With every worker started, the jobs always go through the queue and are ordered
+        pool.prestartAllCoreThreads();
+    }
+
+    // ============================================================================================
+    // ===================================== SUBMISSION ===========================================
+    // ============================================================================================
+
+    /**
+     * Convert a file ("PNG" to "QOI" or "QOI" to "PNG", see {@link Pipe#convert}),
+     * with the number of pixels of its header as size
+     * @param path (String) - Path of the file to convert
+     * @return (CompletableFuture<byte[]>) - The converted file
+     * @throws AssertionError if the path is null
+     * @throws RuntimeException if the header of the file cannot be read
+     */
+    public CompletableFuture<byte[]> convert(String path){
+        assert path != null : "The path is null";
+        return submit(ImageProbe.probe(path).pixels(), () -> {
+            var output = new ByteArrayOutputStream();
+            try (var input = new BufferedInputStream(new FileInputStream(path), 1 << 16)) {
+                Pipe.convert(input, output);
+            }
+            return output.toByteArray();
+        });
+    }
+
+    /**
+     * Run a job, before the waiting jobs whose virtual deadline is later
+     * @param pixels (long) - Size of the job, in pixels
+     * @param job (Callable<T>) - The job
+     * @return (CompletableFuture<T>) - Result of the job
+     * @param <T> - Type of the result
+     * @throws AssertionError if the job is null or the size is negative
+     * @throws RejectedExecutionException if the executor is closed
+     */
+    public <T> CompletableFuture<T> submit(long pixels, Callable<T> job){
+        assert job != null : "The job is null";
+        assert pixels >= 0 : "The size is negative";
+        long submitted = System.nanoTime();
+        // Bounded so that deadlines never overflow
+        long aging = Math.min(pixels, Long.MAX_VALUE / 4 / Math.max(1, agingNanosPerPixel)) * agingNanosPerPixel;
+        var task = new Task<T>(submitted + aging, sequence.getAndIncrement(), job, latencies[SizeClass.of(pixels).ordinal()], submitted);
+        pool.execute(task);
+        return task.result;
+    }
+
+    // ============================================================================================
+    // ======================================= METRICS ============================================
+    // ============================================================================================
+
+    /**
+     * Give the latencies of a size class
+     * @param sizeClass (SizeClass) - The size class
+     * @return (LatencyHistogram) - Time from submission to completion of its jobs
+     */
+    public LatencyHistogram latency(SizeClass sizeClass){
+        return latencies[sizeClass.ordinal()];
+    }
+
+    /**
+     * @return (int) - Number of jobs waiting for a worker
+     */
+    public int queued(){
+        return pool.getQueue().size();
+    }
+
+    /**
+     * @return (long) - Waiting time granted to the smaller jobs per pixel of a job, in nanoseconds
+     */
+    public long agingNanosPerPixel(){
+        return agingNanosPerPixel;
+    }
+
+    /**
+     * Print the latency percentiles of each size class having completed jobs
+     */
+    public void printLatencies(){
+        System.out.printf("%-10s %8s %12s %12s %12s%n", "class", "jobs", "p50 (ms)", "p99 (ms)", "mean (ms)");
+        for (SizeClass sizeClass : SizeClass.values()) {
+            LatencyHistogram histogram = latency(sizeClass);
+            if (histogram.count() == 0) continue;
+            System.out.printf("%-10s %8d %12.3f %12.3f %12.3f%n", sizeClass, histogram.count(),
+                    histogram.percentile(50) / 1e6, histogram.percentile(99) / 1e6, histogram.mean() / 1e6);
+        }
+    }
+
+    /**
+     * Stop accepting jobs and wait for the submitted ones to finish
+     */
+    @Override
+    public void close(){
+        pool.shutdown();
+        try {
+            while (!pool.awaitTermination(1, TimeUnit.SECONDS)) Thread.onSpinWait();
+        } catch (InterruptedException e) {
+            pool.shutdownNow();
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    // ============================================================================================
+    // ======================================== TASKS =============================================
+    // ============================================================================================
+
+    /**
+     * Job waiting in the queue, ordered by virtual deadline then by submission
+     */
+    private static final class Task<T> implements Runnable, Comparable<Task<?>> {
+
+        private final long                 deadline;
+        private final long                 order;
+        private final Callable<T>          job;
+        private final LatencyHistogram     latency;
+        private final long                 submitted;
+        private final CompletableFuture<T> result = new CompletableFuture<>();
+
+        private Task(long deadline, long order, Callable<T> job, LatencyHistogram latency, long submitted){
+            this.deadline = deadline;
+            this.order = order;
+            this.job = job;
+            this.latency = latency;
+            this.submitted = submitted;
+        }
+
+        @Override
+        public void run(){
+            try {
+                result.complete(job.call());
+            } catch (Throwable t) {
+                result.completeExceptionally(t);
+            } finally {
+                latency.record(System.nanoTime() - submitted);
+            }
+        }
+
+        @Override
+        public int compareTo(Task<?> other){
+            // Deadlines are compared by difference, as the clock may be negative
+            int byDeadline = Long.signum(deadline - other.deadline);
+            return byDeadline != 0 ? byDeadline : Long.compare(order, other.order);
+        }
+    }
+
+}
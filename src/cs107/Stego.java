@@ -1,11 +1,10 @@
 package cs107;
+import java.io.BufferedOutputStream;
 import java.io.File;
-import java.util.ArrayList;
-// these static imports, in addition to keeping the methods of Stego private
-// are suboptimal (but necessary for the isolation of Stego.java
-// and to not edit other methods of the mini-projects' package)
-import static cs107.QOIEncoder.*;
-import static cs107.QOIDecoder.*;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
 
 /**
  * EXTENSION:
@@ -13,7 +12,7 @@ import static cs107.QOIDecoder.*;
  * This piggybacks off of the QOI encoder/decoder and is implemented to work
  * in parallel to encoding and decoding QOI images.
  * @author  Sebastian Kugler (362022)
- * @version 1.0
+ * @version 1.1
  * @apiNote Extension of the 2022 Mini Project 1
  * @since 1.0
  */
@@ -34,9 +33,14 @@ public class Stego {
     --> To test this extension, uncomment the line for en- or decoding in the main method.
         (a file ./res/messageToEncode.txt must be present containing the string to encode)
 
+    Binary mode: any payload (InputStream / ByteBuffer) can be hidden with embed(...) and read back
+    with extract(...). Bits are packed 1 per channel straight from the stream (no byte-per-bit copy),
+    behind a header made of the magic number "stgb" and the 64 bits payload length. The extraction
+    only walks the chunks (no pixel is decoded) and stops as soon as the payload is complete.
+
     This extension depends on the package cs107.
-    (To fully isolate this class from the rest of the project, a few methods had to be copied
-    from the QOI en-/decoder to be altered only slightly.)
+    (The embedding and the extraction are QOIChunkHook implementations plugged into
+    the QOI en-/decoder, so Stego always runs the same code as a plain conversion.)
 
 */
 
@@ -104,338 +108,491 @@ public class Stego {
     }
 
     /**
-     * Encode the given pixel using the QOI_OP_RGB block.
-     * Overwrite the least significant bit of RGB channels with provided data.
+     * Encoder hook overwriting the least significant bit of the channels of the
+     * QOI_OP_RGB (R, G, B) and QOI_OP_RGBA (R, G, B, A) chunks with the message.
      * @author Sebastian Kugler (362022)
-     * @param pixel (byte[]) - The Pixel to encode
-     * @param asciiLb (byte[]) - message as array of bytes
-     *                provided by {@link #toAsciiLeastBit(String)}
-     * @param position (int) - position in the message to start embedding
-     * @return (byte[]) - QOI_OP_RGB block with additional data embedded
      */
-    private static byte[] qoiOpRGB(byte[] pixel, byte[] asciiLb, int position) {
-        byte[] alteredPixel = new byte[4];
-        for (int i = 0; (i < 3) && (position < asciiLb.length); i++) {
-            alteredPixel[i] = (byte) ((pixel[i] & 0b11_11_11_10) | asciiLb[position]);
-            position++;
+    private static final class Embedder implements QOIChunkHook {
+
+        private final byte[] asciiLb;
+        private int messagePos = 0;
+        private int rgbChunks  = 0;
+        private int rgbaChunks = 0;
+
+        /**
+         * @param asciiLb (byte[]) - message as array of bytes
+         *                provided by {@link #toAsciiLeastBit(String)}
+         */
+        private Embedder(byte[] asciiLb) {
+            this.asciiLb = asciiLb;
         }
-        // always increments position by 3
-        return QOIEncoder.qoiOpRGB(alteredPixel);
-    }
 
-    /**
-     * Encode the given pixel using the QOI_OP_RGBA block.
-     * Overwrite the least significant bit of RGBA channels with provided data.
-     * @author Sebastian Kugler (362022)
-     * @param pixel (byte[]) - The Pixel to encode
-     * @param asciiLb (byte[]) - message as array of bytes
-     *                provided by {@link #toAsciiLeastBit(String)}
-     * @param position (int) - position in the message to start embedding
-     * @return (byte[]) - QOI_OP_RGBA block with additional data embedded
-     */
-    private static byte[] qoiOpRGBA(byte[] pixel, byte[] asciiLb, int position) {
-        byte[] alteredPixel = new byte[4];
-        for (int i = 0; (i < 4) && (position < asciiLb.length); i++) {
-            alteredPixel[i] = (byte) ((pixel[i] & 0b11_11_11_10) | asciiLb[position]);
-            position++;
+        @Override
+        public int encodeRGB(int pixel) {
+            rgbChunks++;
+            return embed(pixel, 3);
+        }
+
+        @Override
+        public int encodeRGBA(int pixel) {
+            rgbaChunks++;
+            return embed(pixel, 4);
+        }
+
+        /**
+         * Overwrite the least significant bit of the first channels of the pixel
+         * @param pixel (int) - The pixel to alter (ARGB)
+         * @param channels (int) - Number of channels stored by the chunk
+         * @return (int) - The altered pixel
+         */
+        private int embed(int pixel, int channels) {
+            for (int i = 0; (i < channels) && (messagePos < asciiLb.length); i++) {
+                pixel = withLeastBit(pixel, i, asciiLb[messagePos]);
+                messagePos++;
+            }
+            return pixel;
+        }
+
+        /**
+         * Print whether the message fit in the image
+         */
+        private void printStatistics() {
+            if (messagePos >= asciiLb.length)
+                System.out.println("Stego: Message successfully e̶n̶c̶o̶d̶e̶d̶! " +
+                        asciiLb.length + " bits were encoded and " +
+                        ((rgbChunks * 3 + rgbaChunks * 4) - asciiLb.length) + " free bits are left.");
+            else
+                System.out.println("Message does not fit in the encoded image. There are " +
+                        (asciiLb.length - messagePos) + " bits left to hide.");
         }
-        // always increments position by 4
-        return QOIEncoder.qoiOpRGBA(alteredPixel);
     }
 
+    // ==================================================================================
+    // ============================== Decoding and extracting ===========================
+    // ==================================================================================
+
     /**
-     * Embed string data in image data while keeping a low visual impact and
-     * encoding the given image using the "Quite Ok Image" Protocol.
-     * The RGB and RGBA blocks are edited at their least significant bits.
+     * Decoder hook reading back the least significant bits of the QOI_OP_RGB and QOI_OP_RGBA
+     * chunks, until the message is complete or the image turns out not to hide a message.
      * @author Sebastian Kugler (362022)
-     * @param image (byte[][]) - Formatted image to encode
-     * @param asciiLb (byte[]) - String to embed, in asciiLb format as provided
-     *                by {@link #toAsciiLeastBit(String)}
-     * @return (byte[]) - "Quite Ok Image" representation of the image
      */
-    private static byte[] encodeData(byte[][] image, byte[] asciiLb) {
-
-        // Initialization
-        byte[]            prevPixel     = QOISpecification.START_PIXEL;
-        byte[][]          hashTable     = new byte[64][4];
-        int               runCounter    = 0;
-        ArrayList<byte[]> encodedPixels = new ArrayList<>();
+    private static final class Extractor implements QOIChunkHook {
 
-        // Statistics:
-        // Indexes: 0-QOI_OP_RUN,   1-QIO_OP_INDEX, 2-QOI_OP_DIFF,
-        //          3-QOI_OP_LUMA,  4-QOI_OP_RGB,   5-QOI_OP_RGBA)
-        int [] stats = new int[6];
+        private final StringBuilder messageSoFar = new StringBuilder();
+        private boolean isStego = true;
+        private int currentChar = 0;
+        private int bits = 0;
+        private String message = null;
 
-        // stego logic
-        int messagePos = 0;
-
-        // Pixel Processing
-        for (int i = 0; i < image.length; i++) {
+        @Override
+        public void decodedRGB(int pixel) {
+            extract(pixel, 3);
+        }
 
-            // ---QOI_OP_RUN---
-            if (ArrayUtils.equals(image[i], prevPixel)) {
-                runCounter++;
+        @Override
+        public void decodedRGBA(int pixel) {
+            extract(pixel, 4);
+        }
 
-                if (runCounter == 62 || i == (image.length - 1)) {
-                    encodedPixels.add(qoiOpRun((byte) runCounter));
-                    stats[0] += runCounter;
-                    runCounter = 0;
+        /**
+         * Extract last-bit data from the channels of a chunk
+         * @param pixel (int) - The decoded pixel (ARGB)
+         * @param channels (int) - Number of channels stored by the chunk
+         */
+        private void extract(int pixel, int channels) {
+            for (int i = 0; (i < channels) && isStego; i++) {
+                currentChar = (currentChar << 1) | leastBit(pixel, i);
+                if (++bits == 8) {
+                    messageSoFar.append((char) currentChar);
+                    currentChar = 0;
+                    bits = 0;
+                    checkSentinels();
                 }
             }
-            else {
-                if (runCounter > 0) {
-                    encodedPixels.add(qoiOpRun((byte) runCounter));
-                    stats[0] += runCounter;
-                    runCounter = 0;
-                }
-
-                // ---QOI_OP_INDEX---
-                // lazy outcomment
-                if (ArrayUtils.equals(image[i], hashTable[QOISpecification.hash(image[i])])) {
-                    encodedPixels.add(qoiOpIndex(QOISpecification.hash(image[i])));
-                    stats[1]++;
+        }
 
-                }
-                else {
-                    if (image[i][QOISpecification.a] == prevPixel[QOISpecification.a]) {
-                        byte[] pixelDiff = calcRGBdiff(image[i], prevPixel);
-
-                        // ---QOI_OP_DIFF---
-                        if(isValidRGBdiff(pixelDiff)) {
-                            encodedPixels.add(qoiOpDiff(pixelDiff));
-                            stats[2]++;
-                        }
-
-                        // ---QOI_OP_LUMA---
-                        else if (isValidLumaDiff(calcLumaDiff(pixelDiff))) {
-                            encodedPixels.add(qoiOpLuma(pixelDiff));
-                            stats[3]++;
-                        }
-
-                        // ---QOI_OP_RGB---
-                        else {
-                            if (messagePos < asciiLb.length) {
-                                byte[] alteredRgbTag = qoiOpRGB (image[i], asciiLb, messagePos);
-                                System.arraycopy(alteredRgbTag, 1, image[i], 0, 3);
-                                encodedPixels.add(alteredRgbTag);
-                                messagePos += 3;
-                            } else
-                                encodedPixels.add(QOIEncoder.qoiOpRGB(image[i]));
-                            stats[4]++;
-                        }
-
-                        // ---QOI_OP_RGBA---
-                    } else {
-                        if (messagePos < asciiLb.length) {
-                            byte[] alteredRgbaTag = qoiOpRGBA(image[i], asciiLb, messagePos);
-                            System.arraycopy(alteredRgbaTag, 1, image[i], 0, 4);
-                            encodedPixels.add(alteredRgbaTag);
-                            messagePos += 4;
-                        } else
-                            encodedPixels.add(QOIEncoder.qoiOpRGBA(image[i]));
-                        stats[5]++;
-                    }
-                    hashTable[QOISpecification.hash(image[i])] = image[i];
-                }
+        private void checkSentinels() {
+            if ((messageSoFar.length() == 5) && !messageSoFar.toString().equals("stgo%"))
+                isStego = false;
+            else if ((messageSoFar.length() >= 10) && messageSoFar.lastIndexOf("%stgo") == messageSoFar.length() - 5) {
+                message = messageSoFar.substring(5, messageSoFar.length() - 5);
+                isStego = false;
             }
-            prevPixel = image[i];
         }
-
-        // Statistics, percent rounded down to next int
-        int pixelsEncoded = stats[0] + stats[1] + stats[2] + stats[3] + stats[4] + stats[5];
-        System.out.println("====== Encoding Statistics ======");
-        System.out.println("    Method    |   Pixels encoded");
-        System.out.println("                  number  | %");
-        System.out.println("QOI_OP_RUN    |   " + stats[0] + "   \t" + stats[0]*100/pixelsEncoded);
-        System.out.println("QOI_OP_INDEX  |   " + stats[1] + "   \t" + stats[1]*100/pixelsEncoded);
-        System.out.println("QOI_OP_DIFF   |   " + stats[2] + "   \t" + stats[2]*100/pixelsEncoded);
-        System.out.println("QOI_OP_LUMA   |   " + stats[3] + "   \t" + stats[3]*100/pixelsEncoded);
-        System.out.println("QOI_OP_RGB    |   " + stats[4] + "   \t" + stats[4]*100/pixelsEncoded);
-        System.out.println("QOI_OP_RGBA   |   " + stats[5] + "   \t" + stats[5]*100/pixelsEncoded);
-        System.out.println("=================================");
-
-        // stego statistics
-        if (messagePos >= asciiLb.length)
-            System.out.println("Stego: Message successfully e̶n̶c̶o̶d̶e̶d̶! " +
-                    asciiLb.length + " bits were encoded and " +
-                    ((stats[4]*3 + stats[5]*4) - asciiLb.length) + " free bits are left.");
-        else
-            System.out.println("Message does not fit in the encoded image. There are " +
-                    (asciiLb.length - messagePos) + " bits left to hide.");
-
-
-        // flatten the 2D array to 1D
-        return ArrayUtils.concat(encodedPixels.toArray(new byte[0][0]));
     }
 
     // ==================================================================================
-    // ============================== Decoding and extracting ===========================
+    // ================================= Binary payloads ================================
     // ==================================================================================
 
     /**
-     * Extract last-bit data from a given pixel's RGB(A) channels
-     * @author Sebastian Kugler (362022)
-     * @param pixel (byte[]) - The pixel in RGB(A) format to extract data from
-     * @param asciiChunk (byte[]) - The two byte chunk to store extracted bits
-     * @param asciiChunkPos (int) - The position in the asciiChunk to write to
+     * Magic number of the header of a binary payload
      */
-    private static void PixelToAsciiLb(byte[] pixel, byte[] asciiChunk, int asciiChunkPos) {
+    private static final byte[] PAYLOAD_MAGIC = {'s', 't', 'g', 'b'};
 
-        for (int i = 0; (i < pixel.length) && (asciiChunkPos < 16); i++) {
-            if (asciiChunkPos < 8)
-                asciiChunk[0] = (byte) ((asciiChunk[0] | (pixel[i] & 0b1) << (7 - asciiChunkPos)));
-            else
-                asciiChunk[1] = (byte) ((asciiChunk[1] | (pixel[i] & 0b1) << (15 - asciiChunkPos)));
-            asciiChunkPos++;
-        }
+    /**
+     * Size of the header of a binary payload: magic number and 64 bits length
+     */
+    private static final int PAYLOAD_HEADER_SIZE = PAYLOAD_MAGIC.length + 8;
+
+    /**
+     * Encode an image to "Quite Ok Image" while hiding a binary payload in it.
+     * The payload is streamed: only a small buffer of it is in memory at a time.
+     * @param image (Helper.Image) - Image to encode
+     * @param payload (InputStream) - Payload to hide, of which exactly {@code length} bytes are read at most
+     * @param length (long) - Number of bytes of the payload
+     * @return (byte[]) - Binary representation of the "Quite Ok File" of the image
+     * @throws AssertionError if the image or the payload is null or the length is negative
+     * @throws RuntimeException if the payload doesn't fit in the image or cannot be read
+     */
+    public static byte[] embed(Helper.Image image, InputStream payload, long length) {
+        assert image != null : "The image is null.";
+        assert payload != null : "The payload is null.";
+        assert length >= 0 : "The length is negative.";
+
+        byte[] header = ArrayUtils.concat(PAYLOAD_MAGIC,
+                ArrayUtils.fromInt((int) (length >>> 32)), ArrayUtils.fromInt((int) length));
+        var bits = new BitReader(header, payload, length);
+        byte[] file = QOIEncoder.qoiFile(image, bits);
+        if (bits.remaining > 0)
+            Helper.fail("The payload does not fit in the image: %d bits are left to hide.", bits.remaining);
+        return file;
     }
 
     /**
-     * Store the decoded pixel in the buffer and the extracted stego data in the {@code asciiChunk}.
-     * @author Sebastian Kugler (362022)
-     * @param buffer (byte[][]) - Buffer where to store the pixel
-     * @param input (byte[]) - Stream of bytes to read from
-     * @param alpha (byte) - Alpha component of the pixel
-     * @param position (int) - Index in the buffer
-     * @param asciiChunk (byte[]) - Two bytes to store the extracted stego data
-     * @param asciiChunkPos (int) - Position in the asciiChunk
-     * @param idx (int) - Index in the input
+     * Encode an image to "Quite Ok Image" while hiding a binary payload in it
+     * @param image (Helper.Image) - Image to encode
+     * @param payload (ByteBuffer) - Payload to hide, from its position to its limit (the position is not changed)
+     * @return (byte[]) - Binary representation of the "Quite Ok File" of the image
+     * @throws RuntimeException if the payload doesn't fit in the image
      */
-    private static void decodeQoiOpRGB(byte[][] buffer, byte[] input, byte alpha, int position, int idx,
-                               byte[] asciiChunk, int asciiChunkPos) {
-        QOIDecoder.decodeQoiOpRGB(buffer, input, alpha, position, idx);
-        byte[] rgb = ArrayUtils.extract(input,idx,3);
-        PixelToAsciiLb(rgb, asciiChunk, asciiChunkPos);
+    public static byte[] embed(Helper.Image image, ByteBuffer payload) {
+        assert payload != null : "The payload is null.";
+        var view = payload.duplicate();
+        InputStream stream = new InputStream() {
+            @Override
+            public int read() {
+                return view.hasRemaining() ? view.get() & 0xFF : -1;
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) {
+                if (!view.hasRemaining()) return -1;
+                int n = Math.min(len, view.remaining());
+                view.get(b, off, n);
+                return n;
+            }
+        };
+        return embed(image, stream, payload.remaining());
     }
 
     /**
-     * Store the decoded pixel in the buffer and the extracted stego data in the {@code asciiChunk}.
-     * @author Sebastian Kugler (362022)
-     * @param buffer (byte[][]) - Buffer where to store the pixel
-     * @param input (byte[]) - Stream of bytes to read from
-     * @param position (int) - Index in the buffer
-     * @param asciiChunk (byte[]) - Two bytes to store the extracted stego data
-     * @param asciiChunkPos (int) - Position in the asciiChunk
-     * @param idx (int) - Index in the input
+     * Extract a binary payload from the content of a "Quite Ok Image" file.
+     * Only the chunks are walked (no pixel is decoded), and the walk stops as soon
+     * as the payload is complete.
+     * @param content (byte[]) - Content of the "Quite Ok Image" file
+     * @param output (OutputStream) - Where to write the payload
+     * @return (long) - Number of bytes of the payload, -1 if the image doesn't hide a binary payload
+     * @throws AssertionError if one of the parameters is null
+     * @throws RuntimeException if the payload is truncated or cannot be written
      */
-    private static void decodeQoiOpRGBA(byte[][] buffer, byte[] input, int position, int idx,
-                                byte[] asciiChunk, int asciiChunkPos) {
+    public static long extract(byte[] content, OutputStream output) {
+        assert content != null : "The content is null";
+        assert output != null : "The output is null";
+
+        int[] header = QOIDecoder.decodeHeader(ArrayUtils.extract(content, 0, QOISpecification.HEADER_SIZE));
+        long pixels = (long) header[0] * header[1];
+        var bits = new BitWriter(new BufferedOutputStream(output, 1 << 16));
 
-        QOIDecoder.decodeQoiOpRGBA(buffer, input, position, idx);
-        byte[] rgba = ArrayUtils.extract(input,idx,4);
+        long position = 0;
+        int idx = QOISpecification.HEADER_SIZE;
+        while (position < pixels && !bits.isComplete()) {
+            byte chunk = content[idx];
+            if (chunk == QOISpecification.QOI_OP_RGB_TAG) {
+                // The tag in place of the alpha, which is not read
+                bits.decodedRGB(ArrayUtils.readInt(content, idx));
+                idx += 4;
+            } else if (chunk == QOISpecification.QOI_OP_RGBA_TAG) {
+                // RGBA in the stream, ARGB for the hook
+                bits.decodedRGBA(Integer.rotateRight(ArrayUtils.readInt(content, idx + 1), 8));
+                idx += 5;
+            } else {
+                byte twoBitTag = (byte) (chunk & 0b11_00_00_00);
+                if (twoBitTag == QOISpecification.QOI_OP_RUN_TAG) position += chunk & 0b11_11_11;
+                idx += twoBitTag == QOISpecification.QOI_OP_LUMA_TAG ? 2 : 1;
+            }
+            position++;
+            if (bits.isNotStego()) return -1;
+        }
 
-        PixelToAsciiLb(rgba, asciiChunk, asciiChunkPos);
+        if (!bits.isComplete())
+            return bits.length < 0 ? -1 : Helper.fail("The payload is truncated: %d bits are missing.", bits.remaining);
+        bits.flush();
+        return bits.length;
     }
 
     /**
-     * Decode the given data using the "Quite Ok Image" Protocol.
-     * Extract additional data using the stego scheme and print it to the console.
-     * @author Sebastian Kugler (362022)
-     * @param data (byte[]) - Data to decode
-     * @param width (int) - The width of the expected output
-     * @param height (int) - The height of the expected output
-     * @return (byte[][]) - Decoded "Quite Ok Image"
-     * @throws AssertionError See handouts section 6.3
+     * Part of the estimated capacity that {@link #fits(Helper.Image, long)} keeps as a margin:
+     * the hidden bits change some pixels, which can turn a few chunks into other ones
      */
-    private static byte[][] decodeData(byte[] data, int width, int height) {
-        // Initialization
-        byte[]      prevPixel   =   QOISpecification.START_PIXEL;
-        byte[][]    hashTable   =   new byte[64][4];
-        byte[][]    buffer      =   new byte[width * height][4];
-        int  idx       = 0;
-        int  position  = 0;
+    private static final double CAPACITY_MARGIN = 0.01;
 
-        // stego logic
-        boolean isStego = true;
-        byte[] asciiChunk = new byte[2];
-        int asciipos = 0;
-        StringBuilder messageSoFar = new StringBuilder();
-        String message;
+    /**
+     * Number of rows of a band of {@link #estimateCapacity(Helper.Image, double)}
+     */
+    private static final int CAPACITY_BAND_HEIGHT = 16;
 
+    /**
+     * Quantile of the normal distribution of a two-sided 95% confidence interval,
+     * for the lower bound of {@link #estimateCapacity(Helper.Image, double)}
+     */
+    private static final double CAPACITY_Z_95 = 1.96;
 
-        assert data != null : "The data is null";
-        assert (width > -1) : "The width is negative";
-        assert (height > -1) : "The height is negative";
+    /**
+     * Count the bits that can be hidden in an image, without encoding it:
+     * 3 per QOI_OP_RGB chunk and 4 per QOI_OP_RGBA chunk of its encoding.
+     * @param image (Helper.Image) - Image to scan
+     * @return (long) - Number of bits available in the encoding of the unmodified image
+     */
+    public static long capacity(Helper.Image image) {
+        return bits(QOIScan.scan(image));
+    }
 
-        // Data decoding
-        while (position < buffer.length) {
+    /**
+     * Estimate the bits that can be hidden in an image from a sample of its rows,
+     * scanned in parallel. Each band starts from the state left by the band height of rows
+     * above it, and the estimate is the lower bound of a 95% confidence interval, widened by
+     * what the missing history can still add (the bits of the bands from a fresh state minus
+     * their bits after the warm-up): the image holds at least as many bits, most of the time.
+     * @param image (Helper.Image) - Image to scan
+     * @param fraction (double) - Part of the rows to scan, in ]0, 1]
+     * @return (long) - Estimated lower bound of the number of bits available in the encoding of the image
+     */
+    public static long estimateCapacity(Helper.Image image, double fraction) {
+        int rows = image.data().length;
+        int totalBands = (rows + CAPACITY_BAND_HEIGHT - 1) / CAPACITY_BAND_HEIGHT;
+        // Every band sampled: the bands would miss the history above their warm-up
+        if (Math.round(totalBands * fraction) >= totalBands) return capacity(image);
+        var bands = QOIScan.sample(image, fraction, CAPACITY_BAND_HEIGHT, CAPACITY_BAND_HEIGHT);
+        long bits = 0;
+        long sampledRows = 0;
+        for (var band : bands) {
+            bits += bits(band);
+            sampledRows += band.rows;
+        }
+        double scale = (double) rows / sampledRows;
+
+        // Without their history, the bands have more QOI_OP_RGB(A) chunks
+        long freshBits = 0;
+        for (var band : QOIScan.sample(image, fraction, CAPACITY_BAND_HEIGHT)) freshBits += bits(band);
+        double penalty = Math.max(0, freshBits - bits) * scale;
+
+        // Variance of the bits per row between the bands
+        double meanPerRow = (double) bits / sampledRows;
+        double squares = 0;
+        for (var band : bands) {
+            double deviation = (double) bits(band) / band.rows - meanPerRow;
+            squares += deviation * deviation;
+        }
+        int n = bands.length;
+        double margin = 0;
+        if (n > 1) {
+            double stdDev = Math.sqrt(squares / (n - 1));
+            double correction = Math.sqrt(1 - (double) n / totalBands);
+            margin = CAPACITY_Z_95 * stdDev / Math.sqrt(n) * correction * rows;
+        }
+        return Math.max(0, (long) Math.floor(bits * scale - margin - penalty));
+    }
 
-            byte chunk = data[idx];
-            // Whole-byte tags
+    /**
+     * @param counts (QOIScan.Counts) - Counts of a scan
+     * @return (long) - Number of bits that the QOI_OP_RGB and QOI_OP_RGBA chunks of the scan can hide
+     */
+    private static long bits(QOIScan.Counts counts) {
+        return counts.chunks[QOIScan.RGB] * 3 + counts.chunks[QOIScan.RGBA] * 4;
+    }
 
-            // ---QOI_OP_RGB---
-            if (chunk == QOISpecification.QOI_OP_RGB_TAG) {
-                if (isStego) {
-                    decodeQoiOpRGB(buffer, data, prevPixel[3], position, idx + 1, asciiChunk, asciipos);
-                    asciipos += 3;
-                } else
-                    QOIDecoder.decodeQoiOpRGB(buffer, data, prevPixel[3], position, idx + 1);
-                idx += 4;
-            }
+    /**
+     * Check whether a binary payload fits in an image before encoding it with
+     * {@link #embed(Helper.Image, InputStream, long)}
+     * @param image (Helper.Image) - Image to hide the payload in
+     * @param payloadBytes (long) - Number of bytes of the payload
+     * @return (boolean) - True if the payload and its header fit, with a margin of {@value #CAPACITY_MARGIN}
+     */
+    public static boolean fits(Helper.Image image, long payloadBytes) {
+        long needed = (PAYLOAD_HEADER_SIZE + payloadBytes) * 8;
+        return needed <= capacity(image) * (1 - CAPACITY_MARGIN);
+    }
 
-            // ---QOI_OP_RGBA---
-            else if (chunk == QOISpecification.QOI_OP_RGBA_TAG) {
-                if (isStego) {
-                    decodeQoiOpRGBA(buffer, data, position, idx + 1, asciiChunk, asciipos);
-                    asciipos += 4;
-                }
-                else
-                    QOIDecoder.decodeQoiOpRGBA(buffer, data, position, idx + 1);
-                idx += 5;
-            } else {
+    /**
+     * Encoder hook hiding the bits of a stream, one per channel of the
+     * QOI_OP_RGB and QOI_OP_RGBA chunks, most significant bit of each byte first.
+     */
+    private static final class BitReader implements QOIChunkHook {
+
+        private final InputStream input;
+        // Bytes to hide, read from the stream by blocks: never past its announced length
+        private final byte[] buffer = new byte[1 << 16];
+        private int position = 0;
+        private int limit;
+        private long unread;
+        private long remaining;
+        private int currentByte;
+        private int bitsLeft = 0;
+
+        /**
+         * @param header (byte[]) - Header to hide before the stream
+         * @param input (InputStream) - Stream of the bytes to hide after the header
+         * @param length (long) - Number of bytes of the stream to hide
+         */
+        private BitReader(byte[] header, InputStream input, long length) {
+            this.input = input;
+            System.arraycopy(header, 0, buffer, 0, header.length);
+            this.limit = header.length;
+            this.unread = length;
+            this.remaining = (header.length + length) * 8;
+        }
 
-                // Two-bit tags
-                byte twoBitTag = (byte) (chunk & 0b11_00_00_00);
+        @Override
+        public int encodeRGB(int pixel) {
+            return embed(pixel, 3);
+        }
 
-                switch (twoBitTag){
-                    case QOISpecification.QOI_OP_INDEX_TAG:
-                        buffer[position] = hashTable[(byte) (chunk & 0b00_11_11_11)];
-                        idx++;
-                        break;
-                    case QOISpecification.QOI_OP_DIFF_TAG:
-                        buffer[position] = decodeQoiOpDiff(prevPixel, chunk);
-                        idx++;
-                        break;
-                    case QOISpecification.QOI_OP_LUMA_TAG:
-                        buffer[position] = decodeQoiOpLuma(prevPixel, ArrayUtils.extract(data, idx, 2));
-                        idx += 2;
-                        break;
-                    case  QOISpecification.QOI_OP_RUN_TAG:
-                        position += decodeQoiOpRun(buffer, prevPixel, chunk, position);
-                        idx++;
-                        break;
-                    default:
-                        assert false : "The universe is invalid";
+        @Override
+        public int encodeRGBA(int pixel) {
+            return embed(pixel, 4);
+        }
 
-                }
+        private int embed(int pixel, int channels) {
+            for (int i = 0; (i < channels) && (remaining > 0); i++) {
+                pixel = withLeastBit(pixel, i, nextBit());
+                remaining--;
             }
+            return pixel;
+        }
 
-            prevPixel = buffer[position];
-            hashTable[QOISpecification.hash(buffer[position])] = buffer[position];
-            position++;
+        private int nextBit() {
+            if (bitsLeft == 0) {
+                if (position == limit) refill();
+                currentByte = buffer[position++] & 0xFF;
+                bitsLeft = 8;
+            }
+            return (currentByte >>> --bitsLeft) & 0b1;
+        }
 
-            // stego logic
-            if (isStego) {
-                if (asciipos > 7) {
-                    messageSoFar.append((char) (asciiChunk[0]));
-                    asciiChunk[0] = asciiChunk[1];
-                    asciipos -= 8;
-                    asciiChunk[1] = 0;
-                }
+        private void refill() {
+            int wanted = (int) Math.min(buffer.length, unread);
+            int read = 0;
+            try {
+                read = input.readNBytes(buffer, 0, wanted);
+            } catch (IOException e) {
+                Helper.fail("An error occurred while trying to read the payload: %s", e.getMessage());
+            }
+            if (read < wanted) Helper.fail("The payload is shorter than its announced length.");
+            unread -= read;
+            position = 0;
+            limit = read;
+        }
+    }
+
+    /**
+     * Decoder hook writing back the bits hidden by a {@link BitReader}: first the header,
+     * then exactly the announced number of bytes of payload.
+     */
+    private static final class BitWriter implements QOIChunkHook {
+
+        private final OutputStream output;
+        private final byte[] header = new byte[PAYLOAD_HEADER_SIZE];
+        private int headerPos = 0;
+        private long length = -1;
+        private long remaining = PAYLOAD_HEADER_SIZE * 8L;
+        private boolean notStego = false;
+        private int currentByte = 0;
+        private int bits = 0;
+
+        private BitWriter(OutputStream output) {
+            this.output = output;
+        }
 
-                if ((messageSoFar.length() > 4) && !messageSoFar.substring(0, 5).equals("stgo%")) {
-                    isStego = false;
+        @Override
+        public void decodedRGB(int pixel) {
+            extract(pixel, 3);
+        }
+
+        @Override
+        public void decodedRGBA(int pixel) {
+            extract(pixel, 4);
+        }
+
+        private boolean isComplete() {
+            return length >= 0 && remaining == 0;
+        }
+
+        private boolean isNotStego() {
+            return notStego;
+        }
+
+        private void extract(int pixel, int channels) {
+            for (int i = 0; (i < channels) && (remaining > 0) && !notStego; i++) {
+                currentByte = (currentByte << 1) | leastBit(pixel, i);
+                remaining--;
+                if (++bits == 8) {
+                    writeByte((byte) currentByte);
+                    currentByte = 0;
+                    bits = 0;
                 }
-                if (messageSoFar.toString().endsWith("%stgo")) {
-                    message = messageSoFar.substring(5, messageSoFar.toString().length() - 5);
-                    System.out.println(message);
-                    isStego = false;
+            }
+        }
+
+        private void writeByte(byte value) {
+            if (length >= 0) {
+                try {
+                    output.write(value);
+                } catch (IOException e) {
+                    Helper.fail("An error occurred while trying to write the payload: %s", e.getMessage());
                 }
+                return;
+            }
+            header[headerPos++] = value;
+            if (headerPos == PAYLOAD_MAGIC.length
+                    && !ArrayUtils.equals(ArrayUtils.extract(header, 0, PAYLOAD_MAGIC.length), PAYLOAD_MAGIC))
+                notStego = true;
+            else if (headerPos == PAYLOAD_HEADER_SIZE) {
+                length = ((long) ArrayUtils.readInt(header, 4) << 32)
+                        | (ArrayUtils.readInt(header, 8) & 0xFFFF_FFFFL);
+                remaining = length * 8;
             }
         }
 
+        private void flush() {
+            try {
+                output.flush();
+            } catch (IOException e) {
+                Helper.fail("An error occurred while trying to write the payload: %s", e.getMessage());
+            }
+        }
+    }
 
-        return buffer;
+    /**
+     * Give the least significant bit of a channel of a pixel
+     * @param pixel (int) - The pixel (ARGB)
+     * @param channel (int) - Index of the channel in the order of the chunks: 0-R, 1-G, 2-B, 3-A
+     * @return (int) - The bit
+     */
+    private static int leastBit(int pixel, int channel) {
+        return (pixel >>> (channel == 3 ? 24 : 16 - 8 * channel)) & 0b1;
+    }
+
+    /**
+     * Replace the least significant bit of a channel of a pixel
+     * @param pixel (int) - The pixel (ARGB)
+     * @param channel (int) - Index of the channel in the order of the chunks: 0-R, 1-G, 2-B, 3-A
+     * @param bit (int) - The new bit, 0 or 1
+     * @return (int) - The altered pixel
+     */
+    private static int withLeastBit(int pixel, int channel, int bit) {
+        int shift = channel == 3 ? 24 : 16 - 8 * channel;
+        return (pixel & ~(1 << shift)) | bit << shift;
     }
 
     // ==================================================================================
@@ -451,8 +608,11 @@ public class Stego {
     private static void stegoQoiToPng(String inputFile, String outputFile) {
         // Read in binary mode the file 'input_file'
         var inputFileContent = Helper.read(inputFile);
-        // Decode the file using the 'QOI' decoder
-        var computedImage = decodeQoiFile(inputFileContent);
+        // Decode the file using the 'QOI' decoder, extracting the message on the way
+        var extractor = new Extractor();
+        var computedImage = QOIDecoder.decodeQoiFile(inputFileContent, extractor);
+        if (extractor.message != null)
+            System.out.println(extractor.message);
         // Write an image to 'output_file'
         Helper.writeImage(outputFile, computedImage);
     }
@@ -506,40 +666,10 @@ public class Stego {
      */
     private static byte[] stegoFile(Helper.Image image,String message) {
         assert image != null:"The image is null.";
-        return ArrayUtils.concat(qoiHeader(image),
-                encodeData(ArrayUtils.imageToChannels(image.data()),
-                        toAsciiLeastBit("stgo%" + message + "%stgo")),
-                QOISpecification.QOI_EOF);
-    }
-
-    /**
-     * Decode a file using the "Quite Ok Image" Protocol
-     * @param content (byte[]) - Content of the file to decode
-     * @return (Image) - Decoded image
-     * @throws AssertionError if content is null
-     */
-    private static Helper.Image decodeQoiFile(byte[] content){
-
-        assert content != null : "The content is null";
-        assert ArrayUtils.equals(ArrayUtils.extract(
-                content, content.length-8, 8),QOISpecification.QOI_EOF) :
-                "The magic number is not valid";
-
-        int[] header = decodeHeader(ArrayUtils.extract(content, 0, QOISpecification.HEADER_SIZE));
-
-        byte[] blockStream = ArrayUtils.extract(content, QOISpecification.HEADER_SIZE,
-                content.length - QOISpecification.HEADER_SIZE - QOISpecification.QOI_EOF.length);
-
-        int width = header[0];
-        int height = header[1];
-        byte channels =(byte) header[2];
-        byte colorSpace = (byte) header[3];
-
-
-        return Helper.generateImage(
-                ArrayUtils.channelsToImage(
-                        decodeData(blockStream, width, height), height, width), channels, colorSpace);
+        var embedder = new Embedder(toAsciiLeastBit("stgo%" + message + "%stgo"));
+        byte[] file = QOIEncoder.qoiFile(image, embedder);
+        embedder.printStatistics();
+        return file;
     }
 
-
 }
@@ -0,0 +1,317 @@
+package cs107;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Stream;
+
+/**
+ * Store of a batch of images cut in square tiles, where each distinct tile is encoded
+ * (with {@link ReusableQOIEncoder}) only once and the images only refer to their tiles.
+ * <p>
+ * Tiles are looked up by a 64-bit hash of their pixels, their dimensions and their number of
+ * channels, then compared pixel by pixel with the tiles of the same hash, decoded again from their
+ * encoding (only the encoded tiles are kept while packing): a collision only costs one more distinct tile.
+ * <p>
+ * Layout of a store (integers in "Big Endian"):
+ * <pre>
+ *     header : "qoit", size of the tiles (4), number of distinct tiles (4), number of images (4)
+ *     tiles  : for each distinct tile, length (4) and "Quite Ok Image" file of the tile
+ *     images : for each image, length of the name (2), name (modified UTF-8), width (4), height (4),
+ *              channels (1), color space (1), then the index of each of its tiles (4), row by row
+ * </pre>
+ * The tiles of the last column and of the last row are cut to the image.
+ * @version 1.0
+ * @since 1.0
+ */
+public final class TileStore {
+
+    /**
+     * Magic number at the start of a store
+     */
+    public static final byte[] MAGIC = {'q', 'o', 'i', 't'};
+
+    /**
+     * Default size of the tiles
+     */
+    public static final int DEFAULT_TILE_SIZE = 256;
+
+    /**
+     * Outcome of the packing of a batch
+     * @param images (int) - Number of packed images
+     * @param tiles (long) - Number of tiles of the images
+     * @param distinct (int) - Number of distinct tiles, encoded once each
+     * @param encodeNanos (long) - Time spent encoding the distinct tiles
+     * @param bytes (long) - Size of the store
+     */
+    public record Report(int images, long tiles, int distinct, long encodeNanos, long bytes){
+
+        /**
+         * @return (double) - Number of tiles per distinct tile (1 without duplicates)
+         */
+        public double dedupRatio(){
+            return distinct == 0 ? 1 : (double) tiles / distinct;
+        }
+
+        /**
+         * @return (long) - Estimated time the duplicated tiles would have taken to encode, in nanoseconds
+         */
+        public long savedNanos(){
+            return distinct == 0 ? 0 : encodeNanos / distinct * (tiles - distinct);
+        }
+    }
+
+    /**
+     * Image of a store: its header and the indices of its tiles, row by row
+     */
+    private record Layout(int width, int height, byte channels, byte colorSpace, int[] tiles){}
+
+    private final int                  tileSize;
+    private final byte[][]             tiles;
+    private final Map<String, Layout>  layouts = new LinkedHashMap<>();
+
+    /**
+     * Read a store
+     * @param path (String) - Path of the store
+     * @throws AssertionError if the path is null
+     * @throws RuntimeException if the file cannot be read or is not a valid store
+     */
+    public TileStore(String path){
+        assert path != null : "The path is null";
+        byte[] content = Helper.read(path);
+        int size = 0;
+        byte[][] files = null;
+        try (var input = new DataInputStream(new ByteArrayInputStream(content))) {
+            if (input.readInt() != ArrayUtils.toInt(MAGIC)) Helper.fail("The file %s is not a tile store", path);
+            size = input.readInt();
+            if (size <= 0) Helper.fail("The tile store %s is corrupted", path);
+            files = new byte[input.readInt()][];
+            int images = input.readInt();
+            for (int i = 0; i < files.length; i++) {
+                files[i] = new byte[input.readInt()];
+                input.readFully(files[i]);
+            }
+            for (int i = 0; i < images; i++) {
+                String name = input.readUTF();
+                int width = input.readInt();
+                int height = input.readInt();
+                byte channels = input.readByte();
+                byte colorSpace = input.readByte();
+                int[] ids = new int[ceilDiv(width, size) * ceilDiv(height, size)];
+                for (int t = 0; t < ids.length; t++) {
+                    ids[t] = input.readInt();
+                    if (ids[t] < 0 || ids[t] >= files.length) Helper.fail("The tile store %s is corrupted", path);
+                }
+                layouts.put(name, new Layout(width, height, channels, colorSpace, ids));
+            }
+        } catch (IOException | NegativeArraySizeException e) {
+            Helper.fail("The tile store %s is truncated or corrupted", path);
+        }
+        tileSize = size;
+        tiles = files;
+    }
+
+    // ============================================================================================
+    // ======================================= READING ============================================
+    // ============================================================================================
+
+    /**
+     * @return (List<String>) - Names of the images of the store, in packing order
+     */
+    public List<String> names(){
+        return List.copyOf(layouts.keySet());
+    }
+
+    /**
+     * @return (int) - Number of distinct tiles of the store
+     */
+    public int distinctTiles(){
+        return tiles.length;
+    }
+
+    /**
+     * Rebuild an image from its tiles
+     * @param name (String) - Name of the image
+     * @return (Helper.Image) - The image
+     * @throws RuntimeException if the store doesn't contain the image
+     */
+    public Helper.Image image(String name){
+        Layout layout = layouts.get(name);
+        if (layout == null) Helper.fail("The tile store does not contain %s", name);
+        int[][] data = new int[layout.height()][layout.width()];
+        int across = ceilDiv(layout.width(), tileSize);
+        // A tile repeated in the image is decoded once
+        Map<Integer, int[][]> decoded = new HashMap<>();
+        for (int t = 0; t < layout.tiles().length; t++) {
+            int[][] tile = decoded.computeIfAbsent(layout.tiles()[t], id -> QOIDecoder.decodeQoiFile(tiles[id]).data());
+            int top = (t / across) * tileSize;
+            int left = (t % across) * tileSize;
+            for (int y = 0; y < tile.length; y++) System.arraycopy(tile[y], 0, data[top + y], left, tile[y].length);
+        }
+        return Helper.generateImage(data, layout.channels(), layout.colorSpace());
+    }
+
+    // ============================================================================================
+    // ======================================== PACKING ===========================================
+    // ============================================================================================
+
+    /**
+     * Pack the "PNG" and "QOI" images of a folder (and its sub-folders) in a store.
+     * The name of an image is its path relative to the folder, with '/' as separator.
+     * @param folder (String) - Folder to pack
+     * @param store (String) - Path of the store to write
+     * @param tileSize (int) - Size of the tiles, in pixels
+     * @return (Report) - Counts and timings of the packing
+     * @throws AssertionError if a path is null or the size of the tiles isn't positive
+     * @throws RuntimeException if a file cannot be read or the store cannot be written
+     */
+    public static Report pack(String folder, String store, int tileSize){
+        assert folder != null && store != null : "The folder or the store is null";
+        assert tileSize > 0 : "The size of the tiles is not positive";
+        Path root = Path.of(folder);
+        List<Path> files;
+        try (Stream<Path> walk = Files.walk(root)) {
+            files = walk.filter(Files::isRegularFile)
+                    .filter(p -> p.toString().endsWith(".qoi") || p.toString().endsWith(".png"))
+                    .sorted()
+                    .toList();
+        } catch (IOException e) {
+            return Helper.fail("An error occurred while trying to list : \"%s\"%n", folder);
+        }
+
+        // The codec of QOIEncoder.qoiFile, without its statistics printed for every tile
+        var encoder = ReusableQOIEncoder.forThread();
+        // Decoder of the tiles of a same hash, reusing its rows from one tile to the next
+        var decoder = new ReusableQOIDecoder();
+        // Distinct tiles of each hash, and the encoding of each distinct tile
+        Map<Long, List<Integer>> ids = new HashMap<>();
+        List<byte[]> encoded = new ArrayList<>();
+        long tiles = 0;
+        long encodeNanos = 0;
+        long bytes = 16;
+        var images = new ByteArrayOutputStream();
+        try (var index = new DataOutputStream(images)) {
+            for (Path file : files) {
+                String name = root.relativize(file).toString().replace(file.getFileSystem().getSeparator(), "/");
+                Helper.Image image = file.toString().endsWith(".png")
+                        ? Helper.readImage(file.toString())
+                        : QOIDecoder.decodeQoiFile(Helper.read(file.toString()));
+                int[][] data = image.data();
+                int height = data.length;
+                int width = data[0].length;
+                index.writeUTF(name);
+                index.writeInt(width);
+                index.writeInt(height);
+                index.writeByte(image.channels());
+                index.writeByte(image.color_space());
+                for (int top = 0; top < height; top += tileSize) {
+                    for (int left = 0; left < width; left += tileSize) {
+                        int w = Math.min(tileSize, width - left);
+                        int h = Math.min(tileSize, height - top);
+                        long hash = hash(data, left, top, w, h, image.channels());
+                        List<Integer> candidates = ids.computeIfAbsent(hash, k -> new ArrayList<>(1));
+                        int id = -1;
+                        for (int candidate : candidates) {
+                            if (matches(decoder.decode(encoded.get(candidate)), data, left, top, w, h, image.channels())) {
+                                id = candidate;
+                                break;
+                            }
+                        }
+                        if (id < 0) {
+                            int[][] crop = crop(data, left, top, w, h);
+                            long start = System.nanoTime();
+                            encoder.encode(Helper.generateImage(crop, image.channels(), image.color_space()));
+                            byte[] tile = encoder.toByteArray();
+                            encodeNanos += System.nanoTime() - start;
+                            id = encoded.size();
+                            candidates.add(id);
+                            encoded.add(tile);
+                            bytes += 4 + tile.length;
+                        }
+                        index.writeInt(id);
+                        tiles++;
+                    }
+                }
+            }
+        } catch (IOException e) {
+            // Writes to memory cannot fail
+            throw new AssertionError(e);
+        }
+
+        try (var output = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(store), 1 << 16))) {
+            output.write(MAGIC);
+            output.writeInt(tileSize);
+            output.writeInt(encoded.size());
+            output.writeInt(files.size());
+            for (byte[] tile : encoded) {
+                output.writeInt(tile.length);
+                output.write(tile);
+            }
+            images.writeTo(output);
+        } catch (IOException e) {
+            Helper.fail("An error occurred while trying to write to : \"%s\"%n", store);
+        }
+        return new Report(files.size(), tiles, encoded.size(), encodeNanos, bytes + images.size());
+    }
+
+    // ============================================================================================
+    // ===================================== UTILITIES ============================================
+    // ============================================================================================
+
+    /**
+     * Hash the pixels of a tile with its dimensions and its number of channels.
+     * Each pixel is mixed with a multiply-rotate step, the result with the finalizer of MurmurHash3.
+     * @return (long) - 64-bit hash of the tile
+     */
+    static long hash(int[][] data, int left, int top, int width, int height, byte channels){
+        long h = 0x9E3779B97F4A7C15L ^ ((long) width << 32 | (long) height << 8 | channels);
+        for (int y = top; y < top + height; y++) {
+            int[] row = data[y];
+            for (int x = left; x < left + width; x++)
+                h = Long.rotateLeft(h ^ (row[x] * 0xC2B2AE3D27D4EB4FL), 31) * 0x9E3779B97F4A7C15L;
+        }
+        h ^= h >>> 33;
+        h *= 0xFF51AFD7ED558CCDL;
+        h ^= h >>> 33;
+        h *= 0xC4CEB9FE1A85EC53L;
+        return h ^ (h >>> 33);
+    }
+
+    /**
+     * Compare a decoded tile with an area of an image
+     */
+    private static boolean matches(Helper.Image tile, int[][] data, int left, int top, int width, int height,
+                                   byte channels){
+        int[][] pixels = tile.data();
+        if (channels != tile.channels() || height != pixels.length || width != pixels[0].length) return false;
+        for (int y = 0; y < height; y++)
+            if (!Arrays.equals(pixels[y], 0, width, data[top + y], left, left + width)) return false;
+        return true;
+    }
+
+    /**
+     * Copy a tile out of an image
+     */
+    private static int[][] crop(int[][] data, int left, int top, int width, int height){
+        int[][] tile = new int[height][];
+        for (int y = 0; y < height; y++) tile[y] = Arrays.copyOfRange(data[top + y], left, left + width);
+        return tile;
+    }
+
+    private static int ceilDiv(int a, int b){
+        return (a + b - 1) / b;
+    }
+
+}
@@ -0,0 +1,383 @@
+package cs107;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Daemon converting the "PNG" and "QOI" files dropped in a spool folder as they arrive.
+ * <p>
+ * The folder is watched with a {@link WatchService}. The events of a file only mark it as
+ * pending: however many events a write produces, the file is converted once, when its size and
+ * modification time stopped changing for {@link #SETTLE_MILLIS} (the writer is done with it).
+ * Conversions run on a {@link ConversionScheduler}, within its memory budget; when too many
+ * conversions wait for their memory, a file simply stays pending until the next round.
+ * <p>
+ * The size and modification time of each converted file are kept in a state file of the output
+ * folder, so that a restarted daemon only converts the files that are new or changed since.
+ * The state file is written once per round in which files were converted or deleted, and only
+ * keeps the files still in the spool folder.
+ * @version 1.0
+ * @since 1.0
+ */
+public final class WatchDaemon implements AutoCloseable {
+
+    /**
+     * Time during which a file must not change before it is converted, in milliseconds
+     */
+    public static final long SETTLE_MILLIS = 500;
+
+    /**
+     * Name of the state file, in the output folder
+     */
+    public static final String STATE_FILE = ".qoi-watch-state";
+
+    /**
+     * Size and modification time of a file, when it was seen or converted
+     * @param size (long) - Size of the file
+     * @param modified (long) - Modification time of the file, in milliseconds
+     */
+    private record Stamp(long size, long modified){}
+
+    /**
+     * File waiting to be stable
+     */
+    private static final class Pending {
+        private Stamp stamp;
+        private long  since;
+    }
+
+    private final Path                spool;
+    private final Path                output;
+    private final Path                stateFile;
+    private final ConversionScheduler scheduler;
+    private final int                 maxQueued;
+    private final WatchService        watcher;
+    private final Map<String, Stamp>  converted = new HashMap<>();
+    // Guarded by the lock of converted: the state file is behind the map
+    private boolean                   dirty;
+    // Only used by the thread of run()
+    private final Map<String, Pending> pending = new HashMap<>();
+    // Files whose conversion is queued or running
+    private final Set<String>          inFlight = ConcurrentHashMap.newKeySet();
+    private final AtomicLong          conversions = new AtomicLong();
+    private final AtomicLong          failures    = new AtomicLong();
+    private volatile boolean          closed;
+
+    /**
+     * Create a daemon and read its state file, if any
+     * @param spoolFolder (String) - Folder to watch
+     * @param outputFolder (String) - Folder where to store the converted files (and the state file)
+     * @param threads (int) - Number of worker threads
+     * @throws AssertionError if a folder is null or the number of threads isn't positive
+     * @throws RuntimeException if a folder cannot be watched or created
+     */
+    public WatchDaemon(String spoolFolder, String outputFolder, int threads){
+        this(spoolFolder, outputFolder, threads, ConversionScheduler.defaultBudget());
+    }
+
+    /**
+     * Create a daemon and read its state file, if any
+     * @param spoolFolder (String) - Folder to watch
+     * @param outputFolder (String) - Folder where to store the converted files (and the state file)
+     * @param threads (int) - Number of worker threads
+     * @param budgetBytes (long) - Memory budget shared by the running conversions, in bytes
+     * @throws AssertionError if a folder is null, the number of threads isn't positive or the budget is too small
+     * @throws RuntimeException if a folder cannot be watched or created
+     */
+    public WatchDaemon(String spoolFolder, String outputFolder, int threads, long budgetBytes){
+        assert spoolFolder != null && outputFolder != null : "A folder is null";
+        assert threads > 0 : "The number of threads is not positive";
+        spool = Path.of(spoolFolder);
+        output = Path.of(outputFolder);
+        stateFile = output.resolve(STATE_FILE);
+        WatchService service = null;
+        try {
+            Files.createDirectories(output);
+            service = spool.getFileSystem().newWatchService();
+            spool.register(service, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY,
+                    StandardWatchEventKinds.ENTRY_DELETE);
+        } catch (IOException e) {
+            Helper.fail("Cannot watch the folder : \"%s\" (%s)%n", spoolFolder, e.getMessage());
+        }
+        watcher = service;
+        scheduler = new ConversionScheduler(budgetBytes, threads);
+        maxQueued = threads * 4;
+        loadState();
+    }
+
+    // ============================================================================================
+    // ======================================= DAEMON =============================================
+    // ============================================================================================
+
+    /**
+     * Convert the files of the spool folder that are new or changed, then the ones arriving,
+     * until the daemon is closed
+     */
+    public void run(){
+        scan();
+        try {
+            while (!closed) {
+                var key = watcher.poll(SETTLE_MILLIS / 2, TimeUnit.MILLISECONDS);
+                if (key != null) {
+                    for (WatchEvent<?> event : key.pollEvents()) {
+                        // Events were lost: look at the whole folder again
+                        if (event.kind() == StandardWatchEventKinds.OVERFLOW) scan();
+                        else if (event.kind() == StandardWatchEventKinds.ENTRY_DELETE) forget(((Path) event.context()).toString());
+                        else mark(((Path) event.context()).toString());
+                    }
+                    key.reset();
+                }
+                dispatch();
+                saveState();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ClosedWatchServiceException e) {
+            // Closed by close()
+        }
+    }
+
+    /**
+     * Stop watching, wait for the running conversions to finish and save the state file
+     */
+    @Override
+    public void close(){
+        closed = true;
+        try {
+            watcher.close();
+        } catch (IOException ignored) {
+            // Nothing more is watched anyway
+        }
+        scheduler.close();
+        saveState();
+    }
+
+    /**
+     * @return (long) - Number of files converted since the start of the daemon
+     */
+    public long conversions(){
+        return conversions.get();
+    }
+
+    /**
+     * @return (long) - Number of files that could not be converted since the start of the daemon
+     */
+    public long failures(){
+        return failures.get();
+    }
+
+    // ============================================================================================
+    // ====================================== PENDING =============================================
+    // ============================================================================================
+
+    /**
+     * Mark all the convertible files of the spool folder as pending,
+     * and forget the converted files that are not in it anymore
+     */
+    private void scan(){
+        Set<String> names = new HashSet<>();
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(spool, "*.{png,qoi}")) {
+            for (Path file : files) names.add(file.getFileName().toString());
+        } catch (IOException e) {
+            System.err.printf("Cannot list the folder %s : %s%n", spool, e.getMessage());
+            return;
+        }
+        names.forEach(this::mark);
+        synchronized (converted) {
+            if (converted.keySet().retainAll(names)) dirty = true;
+        }
+    }
+
+    /**
+     * Mark a file as pending. Marking a file that is already pending changes nothing,
+     * so that the events of a single write are coalesced.
+     */
+    private void mark(String name){
+        if (!name.endsWith(".png") && !name.endsWith(".qoi")) return;
+        pending.computeIfAbsent(name, n -> new Pending());
+    }
+
+    /**
+     * Forget a file deleted from the spool folder
+     */
+    private void forget(String name){
+        pending.remove(name);
+        synchronized (converted) {
+            if (converted.remove(name) != null) dirty = true;
+        }
+    }
+
+    /**
+     * Give the stable pending files to the scheduler
+     */
+    private void dispatch(){
+        long now = System.currentTimeMillis();
+        for (Iterator<Map.Entry<String, Pending>> it = pending.entrySet().iterator(); it.hasNext(); ) {
+            // Enough conversions wait for their memory: the others stay pending
+            if (scheduler.queued() >= maxQueued) return;
+            var entry = it.next();
+            String name = entry.getKey();
+            Pending file = entry.getValue();
+            Stamp stamp = stamp(spool.resolve(name));
+            if (stamp == null) {
+                // Deleted (or renamed) before it was converted
+                it.remove();
+                continue;
+            }
+            if (!stamp.equals(file.stamp)) {
+                // Still being written: wait until it stops changing
+                file.stamp = stamp;
+                file.since = now;
+                continue;
+            }
+            if (now - file.since < SETTLE_MILLIS || inFlight.contains(name)) continue;
+            synchronized (converted) {
+                if (stamp.equals(converted.get(name))) {
+                    it.remove();
+                    continue;
+                }
+            }
+            long peakBytes;
+            try {
+                // Written to a file, the converted image is not held
+                peakBytes = ConversionScheduler.estimatePeakBytes(ImageProbe.probe(spool.resolve(name).toString()));
+            } catch (RuntimeException e) {
+                it.remove();
+                failures.incrementAndGet();
+                System.err.printf("Cannot convert %s : %s%n", name, e);
+                continue;
+            }
+            inFlight.add(name);
+            try {
+                scheduler.submit(peakBytes, () -> {
+                    convert(name, stamp);
+                    return null;
+                });
+                it.remove();
+            } catch (RejectedExecutionException e) {
+                // Closed: the file stays pending
+                inFlight.remove(name);
+                return;
+            }
+        }
+    }
+
+    // ============================================================================================
+    // ===================================== CONVERSION ===========================================
+    // ============================================================================================
+
+    /**
+     * Convert a stable file of the spool folder, then record it for the state file
+     */
+    private void convert(String name, Stamp stamp){
+        String target = name.substring(0, name.length() - 4) + (name.endsWith(".png") ? ".qoi" : ".png");
+        Path temporary = output.resolve(target + ".part");
+        try {
+            try (var input = new BufferedInputStream(Files.newInputStream(spool.resolve(name)), 1 << 16);
+                 var out = new BufferedOutputStream(Files.newOutputStream(temporary), 1 << 16)) {
+                Pipe.convert(input, out);
+            }
+            // Readers of the output folder never see a partial file
+            Files.move(temporary, output.resolve(target), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            synchronized (converted) {
+                converted.put(name, stamp);
+                dirty = true;
+            }
+            conversions.incrementAndGet();
+        } catch (IOException | RuntimeException | AssertionError e) {
+            failures.incrementAndGet();
+            System.err.printf("Cannot convert %s : %s%n", name, e);
+            // A failed conversion leaves no partial file in the output folder
+            try {
+                Files.deleteIfExists(temporary);
+            } catch (IOException ignored) {
+                System.err.printf("Cannot delete %s%n", temporary);
+            }
+        } finally {
+            inFlight.remove(name);
+        }
+    }
+
+    // ============================================================================================
+    // ======================================== STATE =============================================
+    // ============================================================================================
+
+    /**
+     * Read the state file: one line "size modified name" per converted file
+     */
+    private void loadState(){
+        if (!Files.exists(stateFile)) return;
+        try {
+            for (String line : Files.readAllLines(stateFile, StandardCharsets.UTF_8)) {
+                String[] fields = line.split(" ", 3);
+                if (fields.length != 3) continue;
+                converted.put(fields[2], new Stamp(Long.parseLong(fields[0]), Long.parseLong(fields[1])));
+            }
+        } catch (IOException | NumberFormatException e) {
+            // A damaged state only costs conversions done again
+            System.err.printf("Ignoring the state file %s : %s%n", stateFile, e.getMessage());
+            converted.clear();
+        }
+    }
+
+    /**
+     * Write the state file if it is behind, through a temporary file so that a crash never leaves it partial.
+     * The lines are copied under the lock of {@link #converted}, the file is written without it.
+     */
+    private synchronized void saveState(){
+        List<String> lines;
+        synchronized (converted) {
+            if (!dirty) return;
+            lines = new ArrayList<>(converted.size());
+            converted.forEach((name, stamp) -> lines.add(stamp.size() + " " + stamp.modified() + " " + name));
+            dirty = false;
+        }
+        Path temporary = output.resolve(STATE_FILE + ".part");
+        try {
+            Files.write(temporary, lines, StandardCharsets.UTF_8);
+            Files.move(temporary, stateFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            // Tried again next round
+            System.err.printf("Cannot save the state file %s : %s%n", stateFile, e.getMessage());
+            synchronized (converted) {
+                dirty = true;
+            }
+        }
+    }
+
+    /**
+     * Give the size and modification time of a file
+     * @return (Stamp) - The stamp of the file, null if it doesn't exist (anymore)
+     */
+    private static Stamp stamp(Path file){
+        try {
+            var attributes = Files.readAttributes(file, BasicFileAttributes.class);
+            return attributes.isRegularFile() ? new Stamp(attributes.size(), attributes.lastModifiedTime().toMillis()) : null;
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+}